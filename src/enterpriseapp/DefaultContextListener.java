@@ -9,7 +9,10 @@ import org.quartz.impl.StdSchedulerFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import enterpriseapp.hibernate.AuditLogWriter;
+import enterpriseapp.hibernate.ContainerStatistics;
 import enterpriseapp.hibernate.Db;
+import enterpriseapp.job.AuditLogArchiverJob;
 import enterpriseapp.job.LogFilesCollectorJob;
 import enterpriseapp.ui.Constants;
 
@@ -49,6 +52,10 @@ public class DefaultContextListener implements ServletContextListener {
 			LogFilesCollectorJob.scheduleLogFilesCollectorJob();
 		}
 		
+		if(Constants.appAuditArchive()) {
+			AuditLogArchiverJob.scheduleAuditLogArchiverJob();
+		}
+		
 		logger.info("Context initialized (" + contextEvent.getServletContext().getContextPath() + ")");
     }
 
@@ -65,7 +72,10 @@ public class DefaultContextListener implements ServletContextListener {
 			throw new RuntimeException(e);
 		}
 		
+		AuditLogWriter.shutdownInstance();
     	Db.close();
+    	ContainerStatistics.clear();
+    	Utils.unregisterMBeans();
     	logger.info("Context destroyed");
     }
 	
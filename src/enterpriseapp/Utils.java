@@ -6,6 +6,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -13,10 +14,16 @@ import java.text.Normalizer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.Random;
+import java.util.Set;
 import java.util.TimeZone;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.apache.commons.lang3.StringUtils;
 import org.jasypt.encryption.pbe.StandardPBEStringEncryptor;
 import org.jasypt.properties.EncryptableProperties;
@@ -45,6 +52,8 @@ public class Utils {
 	
 	private static Logger logger = LoggerFactory.getLogger(Utils.class);
 	
+	private static final Set<String> mbeanNames = Collections.synchronizedSet(new LinkedHashSet<String>());
+	
 	private static EncryptableProperties properties = new EncryptableProperties(new StandardPBEStringEncryptor());
 	
 	private Utils() {}
@@ -125,6 +134,65 @@ public class Utils {
 		properties.setProperty(key, value);
 	}
 	
+	/**
+	 * Registers an MBean in the platform MBean server. Errors are logged and ignored since monitoring must not stop
+	 * the application.
+	 * @param mbean Object implementing an MBean interface.
+	 * @param name Object name (for example "enterpriseapp:type=Something").
+	 */
+	public static void registerMBean(Object mbean, String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+			
+			if(server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			
+			server.registerMBean(mbean, objectName);
+			mbeanNames.add(name);
+			
+		} catch (Exception e) {
+			logger.warn("Couldn't register MBean " + name, e);
+		}
+	}
+	
+	/**
+	 * Unregisters an MBean registered with registerMBean. Errors are logged and ignored.
+	 * @param name Object name.
+	 */
+	public static void unregisterMBean(String name) {
+		mbeanNames.remove(name);
+		
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+			
+			if(server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			
+		} catch (Exception e) {
+			logger.warn("Couldn't unregister MBean " + name, e);
+		}
+	}
+	
+	/**
+	 * Unregisters all the MBeans registered with registerMBean. Must be called when the application stops, since the
+	 * platform MBean server would keep the application classes loaded after a redeploy.
+	 */
+	public static void unregisterMBeans() {
+		String[] names;
+		
+		synchronized(mbeanNames) {
+			names = mbeanNames.toArray(new String[mbeanNames.size()]);
+		}
+		
+		for(String name : names) {
+			unregisterMBean(name);
+		}
+	}
+	
 	/**
 	 * @deprecated use VaadinService.getCurrentRequest().getContextPath()
 	 */
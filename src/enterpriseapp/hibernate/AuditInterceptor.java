@@ -1,9 +1,14 @@
 package enterpriseapp.hibernate;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Iterator;
+import java.util.List;
 
 import org.hibernate.EmptyInterceptor;
+import org.hibernate.Transaction;
+import org.hibernate.engine.spi.SessionImplementor;
 import org.hibernate.type.Type;
 
 import enterpriseapp.EnterpriseApplication;
@@ -19,6 +24,12 @@ import enterpriseapp.ui.Constants;
  * getContainer(Class<?> clazz) method returns your custom AuditLog class when
  * enterpriseapp.hibernate.dto.AuditLog.class is passed as parameter.
  * 
+ * If the "app.audit.async" property is true, audit logs are saved by an AuditLogWriter after the transaction is
+ * committed instead of being saved in the same flush as the audited entities.
+ * 
+ * Entities with IDENTITY generated ids get their id when they are inserted, after onSave is called, so their audit
+ * logs are saved at the beginning of the next flush (or after commit when saved asynchronously) with the generated id.
+ * 
  * @author Alejandro Duarte
  *
  */
@@ -26,12 +37,35 @@ public class AuditInterceptor extends EmptyInterceptor {
 
 	private static final long serialVersionUID = 1L;
 	
+	private static final ThreadLocal<List<AuditLog>> pendingAuditLogs = new ThreadLocal<List<AuditLog>>();
+	
+	private static final ThreadLocal<List<PendingInsert>> pendingInserts = new ThreadLocal<List<PendingInsert>>();
+	
+	/**
+	 * Audit log of an entity whose id is generated when it is inserted.
+	 */
+	private static class PendingInsert {
+		final Object dto;
+		final AuditLog auditLog;
+		
+		PendingInsert(Object dto, AuditLog auditLog) {
+			this.dto = dto;
+			this.auditLog = auditLog;
+		}
+	}
+	
 	@Override
 	public boolean onSave(Object dto, Serializable id, Object[] valor, String[] propiedad, Type[] tipo) {
 		if(!(AuditLog.class.isAssignableFrom(dto.getClass()))) {
-			AuditLog auditLog = createAuditLog(dto, id, valor, propiedad);
+			DefaultHbnContainer<?> container = getAuditLogContainer();
+			AuditLog auditLog = createAuditLog(container, dto, id, valor, null, propiedad, tipo);
 			auditLog.setAction(Constants.uiCreate);
-			ContainerFactory.getInstance().getContainer(AuditLog.class).addItem(auditLog);
+			
+			if(id == null) {
+				addPendingInsert(dto, auditLog);
+			} else {
+				save(container, auditLog);
+			}
 		}
 		
 		return false;
@@ -40,10 +74,11 @@ public class AuditInterceptor extends EmptyInterceptor {
 	@Override
 	public boolean onFlushDirty(Object dto, Serializable id, Object[] valor, Object[] valorAnterior, String[] propiedad, Type[] tipo) {
 		if(!(AuditLog.class.isAssignableFrom(dto.getClass()))) {
-			AuditLog auditLog = createAuditLog(dto, id, valor, propiedad);
+			DefaultHbnContainer<?> container = getAuditLogContainer();
+			AuditLog auditLog = createAuditLog(container, dto, id, valor, Constants.appAuditDiffOnly() ? valorAnterior : null, propiedad, tipo);
 			auditLog.setAction(Constants.uiModify);
 			
-			ContainerFactory.getInstance().getContainer(AuditLog.class).addItem(auditLog);
+			save(container, auditLog);
 		}
 		
 		return false;
@@ -52,15 +87,105 @@ public class AuditInterceptor extends EmptyInterceptor {
 	@Override
 	public void onDelete(Object dto, Serializable id, Object[] valor, String[] propiedad, Type[] tipo) {
 		if(!(AuditLog.class.isAssignableFrom(dto.getClass()))) {
-			AuditLog auditLog = createAuditLog(dto, id, valor, propiedad);
+			DefaultHbnContainer<?> container = getAuditLogContainer();
+			AuditLog auditLog = createAuditLog(container, dto, id, valor, null, propiedad, tipo);
 			auditLog.setAction(Constants.uiDelete);
-			ContainerFactory.getInstance().getContainer(AuditLog.class).addItem(auditLog);
+			save(container, auditLog);
 		}
 	}
 	
-	private AuditLog createAuditLog(Object dto, Serializable id, Object[] valor, String[] propiedad) {
-		AuditLog auditLog = (AuditLog) ContainerFactory.getInstance().getContainer(AuditLog.class).newInstance();
-		auditLog.setDetails(getDetails(valor, propiedad));
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void preFlush(Iterator entities) {
+		// the entities saved since the last flush are already inserted
+		savePendingInserts();
+	}
+	
+	@Override
+	public void afterTransactionBegin(Transaction tx) {
+		pendingAuditLogs.remove();
+		pendingInserts.remove();
+	}
+	
+	@Override
+	public void afterTransactionCompletion(Transaction tx) {
+		if(tx.wasCommitted() && Constants.appAuditAsync()) {
+			savePendingInserts();
+		}
+		
+		pendingInserts.remove();
+		List<AuditLog> auditLogs = pendingAuditLogs.get();
+		pendingAuditLogs.remove();
+		
+		if(auditLogs != null && tx.wasCommitted()) {
+			AuditLogWriter.getInstance().enqueue(auditLogs);
+		}
+	}
+	
+	private void save(DefaultHbnContainer<?> container, AuditLog auditLog) {
+		if(Constants.appAuditAsync()) {
+			List<AuditLog> auditLogs = pendingAuditLogs.get();
+			
+			if(auditLogs == null) {
+				auditLogs = new ArrayList<AuditLog>();
+				pendingAuditLogs.set(auditLogs);
+			}
+			
+			auditLogs.add(auditLog);
+			
+		} else {
+			container.addItem(auditLog);
+		}
+	}
+	
+	private void addPendingInsert(Object dto, AuditLog auditLog) {
+		List<PendingInsert> inserts = pendingInserts.get();
+		
+		if(inserts == null) {
+			inserts = new ArrayList<PendingInsert>();
+			pendingInserts.set(inserts);
+		}
+		
+		inserts.add(new PendingInsert(dto, auditLog));
+	}
+	
+	/**
+	 * Saves the audit logs of the inserted entities with their generated ids.
+	 */
+	private void savePendingInserts() {
+		List<PendingInsert> inserts = pendingInserts.get();
+		pendingInserts.remove();
+		
+		if(inserts == null) {
+			return;
+		}
+		
+		DefaultHbnContainer<?> container = Constants.appAuditAsync() ? null : getAuditLogContainer();
+		
+		for(PendingInsert insert : inserts) {
+			Serializable id = Db.getSessionFactory().getClassMetadata(insert.dto.getClass()).getIdentifier(insert.dto, (SessionImplementor) null);
+			insert.auditLog.setDtoId("" + id);
+			save(container, insert.auditLog);
+		}
+	}
+	
+	private DefaultHbnContainer<?> getAuditLogContainer() {
+		return ContainerFactory.getInstance().getSessionContainer(AuditLog.class);
+	}
+	
+	/**
+	 * Creates an audit log. If previous values are given, only the changed properties are included in the details.
+	 * Previous values are null when the modified entity was not loaded in the current session (detached update).
+	 */
+	private AuditLog createAuditLog(DefaultHbnContainer<?> container, Object dto, Serializable id, Object[] valor, Object[] valorAnterior, String[] propiedad, Type[] tipo) {
+		AuditLog auditLog = (AuditLog) container.newInstance();
+		
+		if(valorAnterior == null) {
+			auditLog.setDetails(AuditTemplate.renderDetails(dto.getClass(), valor, propiedad));
+		} else {
+			auditLog.setDetails(AuditTemplate.renderDiff(dto.getClass(), valor, valorAnterior, propiedad, tipo));
+		}
+		
 		auditLog.setDate(Calendar.getInstance().getTime());
 		auditLog.setDtoId("" + id);
 		auditLog.setEntityType(dto.getClass().getSimpleName());
@@ -83,16 +208,7 @@ public class AuditInterceptor extends EmptyInterceptor {
 	}
 	
 	public String getDetails(Object[] values, String[] properties) {
-		String details = "";
-		
-		for(int i = 0; i < properties.length; i++) {
-			details += "[" + properties[i] + "=" + values[i] + "]";
-			if(i != properties.length - 1) {
-				details += ", ";
-			}
-		}
-		
-		return details;
+		return AuditTemplate.renderDetails(null, values, properties);
 	}
 	
 }
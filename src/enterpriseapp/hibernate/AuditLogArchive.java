@@ -0,0 +1,576 @@
+package enterpriseapp.hibernate;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.hibernate.Criteria;
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.H2Dialect;
+import org.hibernate.dialect.HSQLDialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.dialect.PostgreSQL81Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.jdbc.Work;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import enterpriseapp.hibernate.dto.AuditLog;
+
+/**
+ * Monthly archive of the AuditLog table. archive(Date, int) moves the audit logs older than a date to one table per
+ * month named &lt;audit table&gt;_YYYYMM (created with the same structure as the audit table), in batches of bounded
+ * size so the audit table is never locked for long. find(...) queries the audit table and only the archive tables of
+ * the months in the requested date range.
+ * 
+ * Archive tables are created with the structure of the audit table on MySQL, PostgreSQL, H2 and HSQLDB (see
+ * isSupported). They are included in database backups (see Db.getAllTableNames and Db.newIncrementalBackup).
+ * 
+ * @author Alejandro Duarte
+ *
+ */
+public class AuditLogArchive {
+	
+	private static Logger logger = LoggerFactory.getLogger(AuditLogArchive.class);
+	
+	private static final String DATE_PROPERTY = "date";
+	private static final String ENTITY_TYPE_PROPERTY = "entityType";
+	private static final String DTO_ID_PROPERTY = "dtoId";
+	
+	private AuditLogArchive() {}
+	
+	/**
+	 * @return The Entity class implementing AuditLog (see ContainerFactory).
+	 */
+	public static Class<?> getAuditLogClass() {
+		return ContainerFactory.getInstance().getContainer(AuditLog.class).entityType;
+	}
+	
+	/**
+	 * Moves the audit logs older than the given date to the monthly archive tables.
+	 * @param before Audit logs older than this date are archived.
+	 * @param batchSize Maximum number of audit logs moved in one transaction.
+	 * @return Number of audit logs archived.
+	 */
+	@SuppressWarnings("unchecked")
+	public static int archive(Date before, int batchSize) {
+		Class<?> auditLogClass = getAuditLogClass();
+		AbstractEntityPersister persister = getPersister(auditLogClass);
+		String table = persister.getTableName();
+		String idColumn = persister.getIdentifierColumnNames()[0];
+		Set<String> archiveTables = getArchiveTableNames(table);
+		int archived = 0;
+		
+		while(true) {
+			Session session = Db.getCurrentSession();
+			Transaction transaction = session.beginTransaction();
+			List<Object[]> rows;
+			
+			try {
+				rows = session.createCriteria(auditLogClass)
+					.add(Restrictions.lt(DATE_PROPERTY, before))
+					.setProjection(Projections.projectionList()
+						.add(Projections.id())
+						.add(Projections.property(DATE_PROPERTY)))
+					.addOrder(Order.asc(DATE_PROPERTY))
+					.setMaxResults(batchSize)
+					.list();
+				
+				transaction.commit();
+				
+			} catch (RuntimeException e) {
+				transaction.rollback();
+				throw e;
+			}
+			
+			if(rows.isEmpty()) {
+				break;
+			}
+			
+			Map<String, List<Object>> idsByArchiveTable = new LinkedHashMap<String, List<Object>>();
+			
+			for(Object[] row : rows) {
+				String archiveTable = getArchiveTableName(table, (Date) row[1]);
+				List<Object> ids = idsByArchiveTable.get(archiveTable);
+				
+				if(ids == null) {
+					ids = new ArrayList<Object>();
+					idsByArchiveTable.put(archiveTable, ids);
+				}
+				
+				ids.add(row[0]);
+			}
+			
+			// DDL commits implicitly on some databases, create the tables before moving the rows
+			for(String archiveTable : idsByArchiveTable.keySet()) {
+				if(!archiveTables.contains(archiveTable)) {
+					createArchiveTable(table, archiveTable);
+					archiveTables.add(archiveTable);
+				}
+			}
+			
+			session = Db.getCurrentSession();
+			transaction = session.beginTransaction();
+			
+			try {
+				for(String archiveTable : idsByArchiveTable.keySet()) {
+					List<Object> ids = idsByArchiveTable.get(archiveTable);
+					
+					session.createSQLQuery("INSERT INTO " + archiveTable + " SELECT * FROM " + table + " WHERE " + idColumn + " IN (:ids)")
+						.setParameterList("ids", ids)
+						.executeUpdate();
+					
+					session.createSQLQuery("DELETE FROM " + table + " WHERE " + idColumn + " IN (:ids)")
+						.setParameterList("ids", ids)
+						.executeUpdate();
+				}
+				
+				transaction.commit();
+				
+			} catch (RuntimeException e) {
+				transaction.rollback();
+				throw e;
+			}
+			
+			archived += rows.size();
+			logger.debug(archived + " audit logs archived");
+		}
+		
+		return archived;
+	}
+	
+	/**
+	 * Condition on a String property of the audit logs (see find(Date, Date, List, List, int)).
+	 */
+	public static class Condition {
+		private final String property;
+		private final String value;
+		private final boolean like;
+		private final boolean ignoreCase;
+		
+		private Condition(String property, String value, boolean like, boolean ignoreCase) {
+			this.property = property;
+			this.value = value;
+			this.like = like;
+			this.ignoreCase = ignoreCase;
+		}
+		
+		/**
+		 * @return A condition matching the audit logs whose property is equal to the given value.
+		 */
+		public static Condition eq(String property, String value) {
+			return new Condition(property, value, false, false);
+		}
+		
+		/**
+		 * @return A condition matching the audit logs whose property matches the given LIKE pattern ("%" matches any
+		 * text).
+		 */
+		public static Condition like(String property, String pattern, boolean ignoreCase) {
+			return new Condition(property, pattern, true, ignoreCase);
+		}
+	}
+	
+	/**
+	 * Finds audit logs in the audit table and in the archive tables of the months between the given dates. Must be
+	 * called inside a transaction.
+	 * @param from Minimum date (inclusive), or null for no minimum.
+	 * @param to Maximum date (exclusive), or null for no maximum.
+	 * @param entityType Entity type, or null for any entity type.
+	 * @param dtoId Entity id, or null for any entity.
+	 * @param maxResults Maximum number of audit logs to return, or 0 for no limit.
+	 * @return Audit logs ordered by date. The audit logs read from the archive tables are read-only in the session.
+	 */
+	public static List<AuditLog> find(Date from, Date to, String entityType, String dtoId, int maxResults) {
+		List<Condition> conditions = new ArrayList<Condition>();
+		
+		if(entityType != null) conditions.add(Condition.eq(ENTITY_TYPE_PROPERTY, entityType));
+		if(dtoId != null) conditions.add(Condition.eq(DTO_ID_PROPERTY, dtoId));
+		
+		return find(from, to, conditions, Collections.singletonList(Order.asc(DATE_PROPERTY)), maxResults);
+	}
+	
+	/**
+	 * Finds audit logs in the audit table and in the archive tables of the months between the given dates. Each table
+	 * is queried with the conditions, the order and the limit, and the results are merged, so the first maxResults
+	 * matching audit logs in the given order are returned. Must be called inside a transaction.
+	 * @param from Minimum date (inclusive), or null for no minimum.
+	 * @param to Maximum date (exclusive), or null for no maximum.
+	 * @param conditions Conditions on the String properties of the audit logs.
+	 * @param orders Order of the audit logs (orders of simple properties or of the identifier property).
+	 * @param maxResults Maximum number of audit logs to return, or 0 for no limit.
+	 * @return Audit logs in the given order. The audit logs read from the archive tables are read-only in the session.
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<AuditLog> find(Date from, Date to, List<Condition> conditions, List<Order> orders, int maxResults) {
+		Class<?> auditLogClass = getAuditLogClass();
+		AbstractEntityPersister persister = getPersister(auditLogClass);
+		String table = persister.getTableName();
+		String dateColumn = getColumnName(persister, DATE_PROPERTY);
+		List<String> archiveTables = getArchiveTableNames(table, from, to);
+		List<AuditLog> auditLogs = new ArrayList<AuditLog>();
+		Session session = Db.getCurrentSession();
+		
+		for(String archiveTable : archiveTables) {
+			StringBuilder sql = new StringBuilder("SELECT * FROM ").append(archiveTable).append(" WHERE 1=1");
+			
+			if(from != null) sql.append(" AND ").append(dateColumn).append(" >= :from");
+			if(to != null) sql.append(" AND ").append(dateColumn).append(" < :to");
+			
+			for(int i = 0; i < conditions.size(); i++) {
+				Condition condition = conditions.get(i);
+				String column = getColumnName(persister, condition.property);
+				sql.append(" AND ").append(condition.ignoreCase ? "LOWER(" + column + ")" : column).append(condition.like ? " LIKE :value" : " = :value").append(i);
+			}
+			
+			for(int i = 0; i < orders.size(); i++) {
+				Order order = orders.get(i);
+				String column = getColumnName(persister, order.getPropertyName());
+				sql.append(i == 0 ? " ORDER BY " : ", ").append(order.isIgnoreCase() ? "LOWER(" + column + ")" : column).append(order.isAscending() ? " ASC" : " DESC");
+			}
+			
+			SQLQuery query = session.createSQLQuery(sql.toString()).addEntity(auditLogClass);
+			
+			if(from != null) query.setTimestamp("from", from);
+			if(to != null) query.setTimestamp("to", to);
+			if(maxResults > 0) query.setMaxResults(maxResults);
+			
+			for(int i = 0; i < conditions.size(); i++) {
+				Condition condition = conditions.get(i);
+				query.setString("value" + i, condition.ignoreCase ? condition.value.toLowerCase() : condition.value);
+			}
+			
+			List<AuditLog> archived = query.list();
+			
+			// archived rows are not in the mapped table, they must never be flushed
+			for(AuditLog auditLog : archived) {
+				session.setReadOnly(auditLog, true);
+			}
+			
+			auditLogs.addAll(archived);
+		}
+		
+		Criteria criteria = session.createCriteria(auditLogClass);
+		
+		if(from != null) criteria.add(Restrictions.ge(DATE_PROPERTY, from));
+		if(to != null) criteria.add(Restrictions.lt(DATE_PROPERTY, to));
+		if(maxResults > 0) criteria.setMaxResults(maxResults);
+		
+		for(Condition condition : conditions) {
+			criteria.add(!condition.like ? Restrictions.eq(condition.property, condition.value)
+				: condition.ignoreCase ? Restrictions.ilike(condition.property, condition.value) : Restrictions.like(condition.property, condition.value));
+		}
+		
+		for(Order order : orders) {
+			criteria.addOrder(order);
+		}
+		
+		auditLogs.addAll(criteria.list());
+		
+		if(!archiveTables.isEmpty()) {
+			Collections.sort(auditLogs, new AuditLogComparator(persister, orders));
+			
+			if(maxResults > 0 && auditLogs.size() > maxResults) {
+				auditLogs = new ArrayList<AuditLog>(auditLogs.subList(0, maxResults));
+			}
+		}
+		
+		return auditLogs;
+	}
+	
+	/**
+	 * Compares audit logs accordingly to a list of orders (null values first).
+	 */
+	private static class AuditLogComparator implements Comparator<AuditLog> {
+		private final AbstractEntityPersister persister;
+		private final List<Order> orders;
+		
+		private AuditLogComparator(AbstractEntityPersister persister, List<Order> orders) {
+			this.persister = persister;
+			this.orders = orders;
+		}
+		
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		@Override
+		public int compare(AuditLog auditLog1, AuditLog auditLog2) {
+			for(Order order : orders) {
+				Object value1 = getValue(auditLog1, order);
+				Object value2 = getValue(auditLog2, order);
+				int result = value1 == null ? (value2 == null ? 0 : -1) : value2 == null ? 1 : ((Comparable) value1).compareTo(value2);
+				
+				if(result != 0) {
+					return order.isAscending() ? result : -result;
+				}
+			}
+			
+			return 0;
+		}
+		
+		private Object getValue(AuditLog auditLog, Order order) {
+			Object value = order.getPropertyName().equals(persister.getIdentifierPropertyName())
+				? persister.getIdentifier(auditLog, (SessionImplementor) null)
+				: persister.getPropertyValue(auditLog, order.getPropertyName());
+			
+			return order.isIgnoreCase() && value != null ? value.toString().toLowerCase() : value;
+		}
+	}
+	
+	/**
+	 * Finds the ids of the entities changed (created, modified or deleted) since the given date, in the audit table and
+	 * in the archive tables. Must be called inside a transaction.
+	 * @param since Minimum date (inclusive).
+	 * @return Entity ids grouped by entity type (simple class name).
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, Set<String>> findChangedIds(Date since) {
+		AbstractEntityPersister persister = getPersister(getAuditLogClass());
+		String table = persister.getTableName();
+		List<String> tables = new ArrayList<String>(getArchiveTableNames(table, since, null));
+		tables.add(table);
+		
+		Map<String, Set<String>> changedIds = new HashMap<String, Set<String>>();
+		Session session = Db.getCurrentSession();
+		
+		for(String auditTable : tables) {
+			String sql = "SELECT DISTINCT " + getColumnName(persister, ENTITY_TYPE_PROPERTY) + ", " + getColumnName(persister, DTO_ID_PROPERTY)
+				+ " FROM " + auditTable + " WHERE " + getColumnName(persister, DATE_PROPERTY) + " >= :since";
+			
+			List<Object[]> rows = session.createSQLQuery(sql).setTimestamp("since", since).list();
+			
+			for(Object[] row : rows) {
+				Set<String> ids = changedIds.get(row[0]);
+				
+				if(ids == null) {
+					ids = new HashSet<String>();
+					changedIds.put((String) row[0], ids);
+				}
+				
+				ids.add((String) row[1]);
+			}
+		}
+		
+		return changedIds;
+	}
+	
+	/**
+	 * Finds the ids of the audit logs archived with a date greater than or equal to the given one. Must be called
+	 * inside a transaction.
+	 * @param table Audit table.
+	 * @param since Minimum date (inclusive).
+	 * @return Ids of the archived audit logs, as strings.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Set<String> findArchivedIds(String table, Date since) {
+		AbstractEntityPersister persister = getPersister(getAuditLogClass());
+		Set<String> ids = new HashSet<String>();
+		Session session = Db.getCurrentSession();
+		
+		for(String archiveTable : getArchiveTableNames(table, since, null)) {
+			String sql = "SELECT " + persister.getIdentifierColumnNames()[0] + " FROM " + archiveTable + " WHERE " + getColumnName(persister, DATE_PROPERTY) + " >= :since";
+			
+			for(Object id : session.createSQLQuery(sql).setTimestamp("since", since).list()) {
+				ids.add(id.toString());
+			}
+		}
+		
+		return ids;
+	}
+	
+	/**
+	 * @return Date of the oldest audit log in the audit table (not archived), or null if the table is empty. Must be
+	 * called inside a transaction.
+	 */
+	public static Date findOldestDate() {
+		return (Date) Db.getCurrentSession().createCriteria(getAuditLogClass())
+			.setProjection(Projections.min(DATE_PROPERTY))
+			.uniqueResult();
+	}
+	
+	/**
+	 * @param from Minimum date, or null for no minimum.
+	 * @param to Maximum date (exclusive), or null for no maximum.
+	 * @return Whether there are archive tables for the months between the given dates.
+	 */
+	public static boolean isArchived(Date from, Date to) {
+		String table = getPersister(getAuditLogClass()).getTableName();
+		return !getArchiveTableNames(table, from, to).isEmpty();
+	}
+	
+	/**
+	 * @return Name of the archive table for the month of the given date.
+	 */
+	public static String getArchiveTableName(String table, Date date) {
+		return table + "_" + new SimpleDateFormat("yyyyMM").format(date);
+	}
+	
+	/**
+	 * @return Names of the existing archive tables for the months between the given dates (both can be null), in
+	 * chronological order.
+	 */
+	public static List<String> getArchiveTableNames(String table, Date from, Date to) {
+		Set<String> existing = getArchiveTableNames(table);
+		List<String> archiveTables = new ArrayList<String>();
+		
+		if(existing.isEmpty()) {
+			return archiveTables;
+		}
+		
+		List<String> sorted = new ArrayList<String>(existing);
+		Collections.sort(sorted);
+		
+		String first = from == null ? sorted.get(0) : getArchiveTableName(table, from);
+		String last = to == null ? sorted.get(sorted.size() - 1) : getArchiveTableName(table, new Date(to.getTime() - 1));
+		
+		for(String archiveTable : sorted) {
+			if(archiveTable.compareTo(first) >= 0 && archiveTable.compareTo(last) <= 0) {
+				archiveTables.add(archiveTable);
+			}
+		}
+		
+		return archiveTables;
+	}
+	
+	/**
+	 * @return Names of all the existing archive tables of the given table.
+	 */
+	public static Set<String> getArchiveTableNames(final String table) {
+		final Set<String> archiveTables = new HashSet<String>();
+		final String archiveTablePattern = "(?i)" + Pattern.quote(table) + "_[0-9]{6}";
+		
+		Session session = Db.getCurrentSession();
+		boolean newTransaction = !session.getTransaction().isActive();
+		
+		if(newTransaction) {
+			session.beginTransaction();
+		}
+		
+		try {
+			session.doWork(new Work() {
+				@Override
+				public void execute(Connection connection) throws SQLException {
+					DatabaseMetaData metaData = connection.getMetaData();
+					// unquoted names are stored in upper case by H2 and HSQLDB, and in lower case by PostgreSQL
+					String pattern = metaData.storesUpperCaseIdentifiers() ? table.toUpperCase() : metaData.storesLowerCaseIdentifiers() ? table.toLowerCase() : table;
+					ResultSet resultSet = metaData.getTables(null, null, pattern + "%", new String[] {"TABLE"});
+					
+					try {
+						while(resultSet.next()) {
+							String name = resultSet.getString("TABLE_NAME");
+							
+							if(name.matches(archiveTablePattern)) {
+								archiveTables.add(table + name.substring(table.length()));
+							}
+						}
+					} finally {
+						resultSet.close();
+					}
+				}
+			});
+			
+		} finally {
+			if(newTransaction) {
+				session.getTransaction().commit();
+			}
+		}
+		
+		return archiveTables;
+	}
+	
+	/**
+	 * @return Whether archive tables can be created in the database of the application (MySQL, PostgreSQL, H2 and
+	 * HSQLDB are supported).
+	 */
+	public static boolean isSupported() {
+		Dialect dialect = getDialect();
+		return dialect instanceof MySQLDialect || dialect instanceof PostgreSQL81Dialect || dialect instanceof H2Dialect || dialect instanceof HSQLDialect;
+	}
+	
+	/**
+	 * Creates the given archive tables of the audit table that don't exist yet (for example, before restoring a backup
+	 * that includes them).
+	 * @param table Audit table.
+	 * @param tables Table names; names that aren't archive tables of the audit table are ignored.
+	 */
+	public static void createArchiveTables(String table, Collection<String> tables) {
+		Set<String> existing = new HashSet<String>();
+		
+		for(String archiveTable : getArchiveTableNames(table)) {
+			existing.add(archiveTable.toLowerCase());
+		}
+		
+		for(String archiveTable : tables) {
+			if(archiveTable.matches("(?i)" + Pattern.quote(table) + "_[0-9]{6}") && existing.add(archiveTable.toLowerCase())) {
+				createArchiveTable(table, archiveTable);
+			}
+		}
+	}
+	
+	private static void createArchiveTable(String table, String archiveTable) {
+		Dialect dialect = getDialect();
+		String sql;
+		
+		if(dialect instanceof MySQLDialect) {
+			sql = "CREATE TABLE IF NOT EXISTS " + archiveTable + " LIKE " + table;
+		} else if(dialect instanceof PostgreSQL81Dialect) {
+			sql = "CREATE TABLE IF NOT EXISTS " + archiveTable + " (LIKE " + table + " INCLUDING ALL)";
+		} else if(dialect instanceof H2Dialect) {
+			sql = "CREATE TABLE IF NOT EXISTS " + archiveTable + " AS SELECT * FROM " + table + " WHERE 1 = 0";
+		} else if(dialect instanceof HSQLDialect) {
+			sql = "CREATE TABLE " + archiveTable + " (LIKE " + table + ")"; // only called for tables not found
+		} else {
+			throw new UnsupportedOperationException("Audit log archive tables can't be created on " + dialect);
+		}
+		
+		Session session = Db.getCurrentSession();
+		Transaction transaction = session.beginTransaction();
+		
+		try {
+			session.createSQLQuery(sql).executeUpdate();
+			transaction.commit();
+			logger.info("Audit log archive table " + archiveTable + " created");
+			
+		} catch (RuntimeException e) {
+			transaction.rollback();
+			throw e;
+		}
+	}
+	
+	private static Dialect getDialect() {
+		return ((SessionFactoryImplementor) Db.getSessionFactory()).getDialect();
+	}
+	
+	private static AbstractEntityPersister getPersister(Class<?> auditLogClass) {
+		return (AbstractEntityPersister) Db.getCurrentSession().getSessionFactory().getClassMetadata(auditLogClass);
+	}
+	
+	private static String getColumnName(AbstractEntityPersister persister, String propertyName) {
+		if(propertyName.equals(persister.getIdentifierPropertyName())) {
+			return persister.getIdentifierColumnNames()[0];
+		}
+		
+		return persister.getPropertyColumnNames(propertyName)[0];
+	}
+	
+}
@@ -0,0 +1,304 @@
+package enterpriseapp.hibernate;
+
+import java.io.Serializable;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vaadin.data.Property;
+import com.vaadin.data.hbnutil.ContainerFilter;
+
+import enterpriseapp.Utils;
+import enterpriseapp.hibernate.dto.AuditLog;
+import enterpriseapp.ui.Constants;
+
+/**
+ * Container of the Entity class implementing AuditLog that also searches the audit log archive (see AuditLogArchive).
+ * 
+ * When the container is filtered by a date range including archived months, its items are the audit logs of the range
+ * found by AuditLogArchive.find(...) in the audit table and in the archive tables, in the sort order of the container
+ * (at most "app.audit.archiveSearchMaxResults" audit logs). Filters of String properties are matched by the queries;
+ * filters of other properties, if any, are matched in memory against the text of the property values before the
+ * limit is applied. Those items are read-only. Otherwise, the container behaves as DefaultHbnContainer.
+ * 
+ * @author Alejandro Duarte
+ *
+ * @param <T> Entity class implementing AuditLog.
+ */
+public class AuditLogContainer<T> extends DefaultHbnContainer<T> {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private static final String DATE_PROPERTY = "date";
+	
+	private Map<Object, EntityItem<T>> archiveItems;
+	private List<Object> archiveIds;
+	private boolean archiveSearched;
+	
+	/**
+	 * Constructor.
+	 * @param clazz Entity class implementing AuditLog.
+	 */
+	public AuditLogContainer(Class<T> clazz) {
+		super(clazz);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param clazz Entity class implementing AuditLog.
+	 * @param cachePolicy Item cache policy.
+	 */
+	public AuditLogContainer(Class<T> clazz, ContainerCachePolicy cachePolicy) {
+		super(clazz, cachePolicy);
+	}
+	
+	/**
+	 * @return Whether the items are the result of a search in the audit log archive.
+	 */
+	public boolean isArchiveSearch() {
+		return getArchiveIds() != null;
+	}
+	
+	/**
+	 * @return Identifiers of the audit logs found in the archive for the current filters, or null if the filters don't
+	 * include archived months.
+	 */
+	protected List<Object> getArchiveIds() {
+		if(!archiveSearched) {
+			archiveSearched = true;
+			searchArchive();
+		}
+		
+		return archiveIds;
+	}
+	
+	protected void searchArchive() {
+		StringContainerFilter dateFilter = getFilter(DATE_PROPERTY);
+		
+		if(dateFilter == null) {
+			return;
+		}
+		
+		Date from;
+		Date to;
+		
+		try {
+			from = parseFilterDate(dateFilter.filterString, null);
+			to = parseFilterDate(dateFilter.filterString2, null);
+		} catch (ParseException e) {
+			// the criteria of the container reject all the audit logs
+			return;
+		}
+		
+		// the date filter includes its maximum date
+		to = to == null ? null : new Date(to.getTime() + 1);
+		
+		if(!AuditLogArchive.isArchived(from, to)) {
+			return;
+		}
+		
+		List<AuditLogArchive.Condition> conditions = new ArrayList<AuditLogArchive.Condition>();
+		boolean matchInMemory = false;
+		
+		for(ContainerFilter containerFilter : filters) {
+			StringContainerFilter filter = (StringContainerFilter) containerFilter;
+			String propertyId = filter.getPropertyId().toString();
+			
+			if(DATE_PROPERTY.equals(propertyId)) {
+				continue;
+			}
+			
+			if(String.class.equals(getType(propertyId))) {
+				String pattern = (filter.onlyMatchPrefix ? "" : "%") + filter.filterString + "%";
+				conditions.add(AuditLogArchive.Condition.like(propertyId, pattern, filter.ignoreCase));
+			} else {
+				matchInMemory = true;
+			}
+		}
+		
+		int maxResults = Constants.appAuditArchiveSearchMaxResults();
+		archiveItems = new LinkedHashMap<Object, EntityItem<T>>();
+		
+		for(AuditLog auditLog : AuditLogArchive.find(from, to, conditions, getOrder(false), matchInMemory ? 0 : maxResults)) {
+			@SuppressWarnings("unchecked")
+			T pojo = (T) auditLog;
+			
+			if(!matchInMemory || matches(pojo)) {
+				archiveItems.put(getIdForPojo(pojo), new EntityItem<T>(pojo));
+			}
+			
+			if(maxResults > 0 && archiveItems.size() == maxResults) {
+				break;
+			}
+		}
+		
+		archiveIds = Collections.unmodifiableList(new ArrayList<Object>(archiveItems.keySet()));
+	}
+	
+	/**
+	 * @return Whether the given audit log matches the filters other than the date filter (compared as text).
+	 */
+	protected boolean matches(T pojo) {
+		for(ContainerFilter containerFilter : filters) {
+			StringContainerFilter filter = (StringContainerFilter) containerFilter;
+			
+			if(DATE_PROPERTY.equals(filter.getPropertyId())) {
+				continue;
+			}
+			
+			Object value = getClassMetadata().getPropertyValue(pojo, filter.getPropertyId().toString());
+			String text = value == null ? "" : value instanceof Date ? Utils.dateTimeToString((Date) value) : value.toString();
+			
+			if(filter.ignoreCase) {
+				text = text.toLowerCase();
+			}
+			
+			if(filter.onlyMatchPrefix ? !text.startsWith(filter.filterString) : !text.contains(filter.filterString)) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	protected StringContainerFilter getFilter(Object propertyId) {
+		if(filters != null) {
+			for(ContainerFilter filter : filters) {
+				if(filter.getPropertyId().equals(propertyId)) {
+					return (StringContainerFilter) filter;
+				}
+			}
+		}
+		
+		return null;
+	}
+	
+	@Override
+	protected void clearInternalCache() {
+		super.clearInternalCache();
+		archiveSearched = false;
+		archiveItems = null;
+		archiveIds = null;
+	}
+	
+	@Override
+	protected boolean isReadOnlyEntity(Object pojo) {
+		return isArchiveSearch() || super.isReadOnlyEntity(pojo);
+	}
+	
+	@Override
+	public T getEntity(Serializable id) {
+		return isArchiveSearch() ? (archiveItems.containsKey(id) ? archiveItems.get(id).getPojo() : null) : super.getEntity(id);
+	}
+	
+	@Override
+	public int size() {
+		return isArchiveSearch() ? archiveIds.size() : super.size();
+	}
+	
+	@Override
+	public boolean containsId(Object entityId) {
+		return isArchiveSearch() ? archiveItems.containsKey(entityId) : super.containsId(entityId);
+	}
+	
+	@Override
+	public EntityItem<T> getItem(Object entityId) {
+		return isArchiveSearch() ? archiveItems.get(entityId) : super.getItem(entityId);
+	}
+	
+	@Override
+	public Property<?> getContainerProperty(Object entityId, Object propertyId) {
+		if(isArchiveSearch()) {
+			EntityItem<T> item = archiveItems.get(entityId);
+			return item == null ? null : item.getItemProperty(propertyId);
+		}
+		
+		return super.getContainerProperty(entityId, propertyId);
+	}
+	
+	@Override
+	public Collection<?> getItemIds() {
+		return isArchiveSearch() ? archiveIds : super.getItemIds();
+	}
+	
+	@Override
+	public List<?> getItemIds(int startIndex, int count) {
+		if(isArchiveSearch()) {
+			return archiveIds.subList(Math.min(startIndex, archiveIds.size()), Math.min(startIndex + count, archiveIds.size()));
+		}
+		
+		return super.getItemIds(startIndex, count);
+	}
+	
+	@Override
+	public Object getIdByIndex(int index) {
+		return isArchiveSearch() ? archiveIds.get(index) : super.getIdByIndex(index);
+	}
+	
+	@Override
+	public int indexOfId(Object entityId) {
+		return isArchiveSearch() ? archiveIds.indexOf(entityId) : super.indexOfId(entityId);
+	}
+	
+	@Override
+	public Object firstItemId() {
+		if(isArchiveSearch()) {
+			return archiveIds.isEmpty() ? null : archiveIds.get(0);
+		}
+		
+		return super.firstItemId();
+	}
+	
+	@Override
+	public Object lastItemId() {
+		if(isArchiveSearch()) {
+			return archiveIds.isEmpty() ? null : archiveIds.get(archiveIds.size() - 1);
+		}
+		
+		return super.lastItemId();
+	}
+	
+	@Override
+	public Object nextItemId(Object entityId) {
+		if(isArchiveSearch()) {
+			int index = archiveIds.indexOf(entityId);
+			return index == -1 || index == archiveIds.size() - 1 ? null : archiveIds.get(index + 1);
+		}
+		
+		return super.nextItemId(entityId);
+	}
+	
+	@Override
+	public Object prevItemId(Object entityId) {
+		if(isArchiveSearch()) {
+			int index = archiveIds.indexOf(entityId);
+			return index <= 0 ? null : archiveIds.get(index - 1);
+		}
+		
+		return super.prevItemId(entityId);
+	}
+	
+	@Override
+	public boolean removeItem(Object itemId) throws UnsupportedOperationException {
+		if(isArchiveSearch()) {
+			throw new UnsupportedOperationException("Audit logs found in the archive are read-only");
+		}
+		
+		return super.removeItem(itemId);
+	}
+	
+	@Override
+	public boolean removeAllItems() throws UnsupportedOperationException {
+		if(isArchiveSearch()) {
+			throw new UnsupportedOperationException("Audit logs found in the archive are read-only");
+		}
+		
+		return super.removeAllItems();
+	}
+	
+}
@@ -0,0 +1,391 @@
+package enterpriseapp.hibernate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import enterpriseapp.hibernate.dto.AuditLog;
+import enterpriseapp.ui.Constants;
+
+/**
+ * Writes AuditLog entities from a background thread. AuditInterceptor enqueues the audit logs of committed
+ * transactions (see "app.audit.async" property) into a bounded queue, and this writer saves them in batches using its
+ * own session (set "db.jdbc.batch_size" to send each batch in a single JDBC batch). When the queue is full, enqueuing
+ * blocks up to "app.audit.offerTimeout" milliseconds; audit logs that can't be enqueued or saved are appended to the
+ * "app.audit.spillFile" file and saved again (the file is checked every flush interval) when the database accepts
+ * writes.
+ * 
+ * @author Alejandro Duarte
+ *
+ */
+public class AuditLogWriter implements Runnable {
+	
+	private static Logger logger = LoggerFactory.getLogger(AuditLogWriter.class);
+	
+	private static AuditLogWriter instance;
+	
+	private final SessionFactory sessionFactory;
+	private final BlockingQueue<AuditLog> queue;
+	private final int batchSize;
+	private final long flushInterval;
+	private final long offerTimeout;
+	private final File spillFile;
+	private final Thread thread;
+	private volatile boolean running = true;
+	
+	/**
+	 * @param sessionFactory Session factory used to save audit logs.
+	 * @param queueSize Maximum number of audit logs waiting to be saved.
+	 * @param batchSize Maximum number of audit logs saved in one transaction.
+	 * @param flushInterval Maximum time (in milliseconds) an audit log waits before being saved.
+	 * @param offerTimeout Maximum time (in milliseconds) to wait for space in the queue.
+	 * @param spillFile File used to keep the audit logs that couldn't be saved or enqueued.
+	 */
+	public AuditLogWriter(SessionFactory sessionFactory, int queueSize, int batchSize, long flushInterval, long offerTimeout, File spillFile) {
+		this.sessionFactory = sessionFactory;
+		this.queue = new ArrayBlockingQueue<AuditLog>(queueSize);
+		this.batchSize = batchSize;
+		this.flushInterval = flushInterval;
+		this.offerTimeout = offerTimeout;
+		this.spillFile = spillFile;
+		
+		thread = new Thread(this, "AuditLogWriter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * @return The AuditLogWriter configured with the "app.audit.*" properties, created on first use.
+	 */
+	public static synchronized AuditLogWriter getInstance() {
+		if(instance == null) {
+			instance = new AuditLogWriter(
+				Db.getSessionFactory(),
+				Constants.appAuditQueueSize(),
+				Constants.appAuditBatchSize(),
+				Constants.appAuditFlushInterval(),
+				Constants.appAuditOfferTimeout(),
+				new File(Constants.appAuditSpillFile()));
+		}
+		
+		return instance;
+	}
+	
+	/**
+	 * Stops the writer returned by getInstance() (if any), saving the audit logs still in the queue.
+	 */
+	public static synchronized void shutdownInstance() {
+		if(instance != null) {
+			instance.shutdown();
+			instance = null;
+		}
+	}
+	
+	/**
+	 * Enqueues audit logs to be saved. Blocks while the queue is full, up to the configured offer timeout for all the
+	 * audit logs; the audit logs not enqueued in time are spilled to disk.
+	 * @param auditLogs Audit logs to save.
+	 */
+	public void enqueue(Collection<AuditLog> auditLogs) {
+		List<AuditLog> rejected = null;
+		long deadline = System.currentTimeMillis() + offerTimeout;
+		
+		for(AuditLog auditLog : auditLogs) {
+			boolean offered = false;
+			
+			if(rejected == null) {
+				try {
+					offered = running && queue.offer(auditLog, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			
+			if(!offered) {
+				// once an audit log is rejected the rest are spilled too, keeping their order
+				if(rejected == null) {
+					rejected = new ArrayList<AuditLog>();
+				}
+				
+				rejected.add(auditLog);
+			}
+		}
+		
+		if(rejected != null) {
+			logger.warn("Audit queue full, spilling " + rejected.size() + " audit logs to " + spillFile);
+			spill(rejected);
+		}
+	}
+	
+	/**
+	 * @return true if there are audit logs spilled to the "app.audit.spillFile" file waiting to be saved.
+	 */
+	public static boolean hasSpilledAuditLogs() {
+		File spillFile = new File(Constants.appAuditSpillFile());
+		File replayFile = new File(spillFile.getPath() + ".replay");
+		return spillFile.length() > 0 || replayFile.length() > 0;
+	}
+	
+	/**
+	 * @return Number of audit logs waiting to be saved.
+	 */
+	public int getQueueSize() {
+		return queue.size();
+	}
+	
+	/**
+	 * Stops the background thread after saving the audit logs in the queue.
+	 */
+	public void shutdown() {
+		running = false;
+		thread.interrupt();
+		
+		try {
+			thread.join(flushInterval * 10);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		List<AuditLog> remaining = new ArrayList<AuditLog>();
+		queue.drainTo(remaining);
+		
+		if(!remaining.isEmpty()) {
+			spill(remaining);
+		}
+	}
+	
+	@Override
+	public void run() {
+		List<AuditLog> batch = new ArrayList<AuditLog>(batchSize);
+		long lastReplay = 0;
+		
+		while(running || !queue.isEmpty()) {
+			// replayed every flush interval, not only when the queue is idle, so spilled audit logs are saved under load too
+			if(running && System.currentTimeMillis() - lastReplay >= flushInterval) {
+				replaySpillFile();
+				lastReplay = System.currentTimeMillis();
+			}
+			
+			try {
+				AuditLog first = running ? queue.poll(flushInterval, TimeUnit.MILLISECONDS) : queue.poll();
+				
+				if(first == null) {
+					continue;
+				}
+				
+				batch.add(first);
+				queue.drainTo(batch, batchSize - 1);
+				
+			} catch (InterruptedException e) {
+				// shutdown() interrupts the thread, drain the remaining audit logs without waiting
+				queue.drainTo(batch, batchSize);
+			}
+			
+			if(!batch.isEmpty()) {
+				if(!save(batch)) {
+					spill(batch);
+				}
+				
+				batch.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Saves audit logs in a single transaction.
+	 * @return true if the audit logs were saved.
+	 */
+	protected boolean save(List<AuditLog> auditLogs) {
+		Session session = null;
+		Transaction transaction = null;
+		
+		try {
+			session = sessionFactory.openSession();
+			transaction = session.beginTransaction();
+			
+			for(AuditLog auditLog : auditLogs) {
+				session.save(auditLog);
+			}
+			
+			transaction.commit();
+			return true;
+			
+		} catch (Exception e) {
+			logger.error("Couldn't save " + auditLogs.size() + " audit logs", e);
+			
+			if(transaction != null && transaction.isActive()) {
+				try {
+					transaction.rollback();
+				} catch (Exception e1) {
+					logger.error("Couldn't rollback audit logs transaction", e1);
+				}
+			}
+			
+			return false;
+			
+		} finally {
+			if(session != null && session.isOpen()) {
+				session.close();
+			}
+		}
+	}
+	
+	/**
+	 * Appends audit logs to the spill file. Each record stores the audit log class name followed by its fields, each
+	 * one prefixed by its length.
+	 */
+	protected synchronized void spill(Collection<AuditLog> auditLogs) {
+		DataOutputStream output = null;
+		
+		try {
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile, true)));
+			
+			for(AuditLog auditLog : auditLogs) {
+				writeField(output, auditLog.getClass().getName());
+				output.writeLong(auditLog.getDate() == null ? -1 : auditLog.getDate().getTime());
+				writeField(output, auditLog.getEntityType());
+				writeField(output, auditLog.getAction());
+				writeField(output, auditLog.getDtoId());
+				writeField(output, auditLog.getDetails());
+				writeField(output, auditLog.getUser());
+				writeField(output, auditLog.getIp());
+			}
+			
+		} catch (IOException e) {
+			logger.error("Couldn't spill " + auditLogs.size() + " audit logs to " + spillFile, e);
+			
+		} finally {
+			if(output != null) {
+				try {
+					output.close();
+				} catch (IOException e) {
+					logger.error("Couldn't close " + spillFile, e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Saves the audit logs in the spill file, if any. The spill file is first renamed (while holding the lock used by
+	 * spill()) so the audit logs are saved without blocking the threads spilling new audit logs. The renamed file is
+	 * deleted once all its audit logs are saved.
+	 */
+	protected void replaySpillFile() {
+		File replayFile = new File(spillFile.getPath() + ".replay");
+		
+		synchronized(this) {
+			// a replay file left by a previous failure is saved first
+			if(!replayFile.exists()) {
+				if(!spillFile.exists() || spillFile.length() == 0) {
+					return;
+				}
+				
+				if(!spillFile.renameTo(replayFile)) {
+					logger.error("Couldn't rename " + spillFile + " to " + replayFile);
+					return;
+				}
+			}
+		}
+		
+		List<AuditLog> auditLogs = new ArrayList<AuditLog>();
+		DataInputStream input = null;
+		
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(replayFile)));
+			
+			while(true) {
+				String className;
+				
+				try {
+					className = readField(input);
+				} catch (EOFException e) {
+					break;
+				}
+				
+				AuditLog auditLog = (AuditLog) Class.forName(className).newInstance();
+				long date = input.readLong();
+				auditLog.setDate(date == -1 ? null : new Date(date));
+				auditLog.setEntityType(readField(input));
+				auditLog.setAction(readField(input));
+				auditLog.setDtoId(readField(input));
+				auditLog.setDetails(readField(input));
+				auditLog.setUser(readField(input));
+				auditLog.setIp(readField(input));
+				auditLogs.add(auditLog);
+			}
+			
+		} catch (Exception e) {
+			logger.error("Couldn't read audit logs from " + replayFile, e);
+			return;
+			
+		} finally {
+			if(input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+					logger.error("Couldn't close " + replayFile, e);
+				}
+			}
+		}
+		
+		for(int i = 0; i < auditLogs.size(); i += batchSize) {
+			if(!save(auditLogs.subList(i, Math.min(i + batchSize, auditLogs.size())))) {
+				// keep the file, saved audit logs are removed from it
+				if(i > 0) {
+					spill(auditLogs.subList(i, auditLogs.size()));
+					replayFile.delete();
+				}
+				
+				return;
+			}
+		}
+		
+		if(!replayFile.delete()) {
+			logger.error("Couldn't delete " + replayFile);
+		}
+		
+		logger.info(auditLogs.size() + " spilled audit logs saved");
+	}
+	
+	private void writeField(DataOutputStream output, String value) throws IOException {
+		if(value == null) {
+			output.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes("UTF-8");
+			output.writeInt(bytes.length);
+			output.write(bytes);
+		}
+	}
+	
+	private String readField(DataInputStream input) throws IOException {
+		int length = input.readInt();
+		
+		if(length == -1) {
+			return null;
+		}
+		
+		byte[] bytes = new byte[length];
+		input.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+	
+}
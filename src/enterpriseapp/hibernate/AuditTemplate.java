@@ -0,0 +1,286 @@
+package enterpriseapp.hibernate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hibernate.type.Type;
+
+import enterpriseapp.hibernate.annotation.Downloadable;
+import enterpriseapp.ui.Constants;
+
+/**
+ * Audit log format (see "app.logBasedAuditFormat" property) parsed once into literal and variable segments. Supported
+ * variables are ${user}, ${ip}, ${action}, ${type}, ${id} and ${details}; any other text is copied as is. Rendering
+ * appends directly to a StringBuilder reused by each thread, and the "[property=" prefixes of the details are cached
+ * per entity type, so rendering an audit log only allocates the resulting String.
+ * 
+ * If the "app.audit.diffOnly" property is true, the details of modified entities only include the changed properties.
+ * 
+ * @author Alejandro Duarte
+ *
+ */
+public class AuditTemplate {
+	
+	private static final int USER = 0, IP = 1, ACTION = 2, TYPE = 3, ID = 4, DETAILS = 5;
+	private static final String[] VARIABLES = {"${user}", "${ip}", "${action}", "${type}", "${id}", "${details}"};
+	private static final int MAX_BUFFER_CAPACITY = 64 * 1024;
+	
+	private static final ThreadLocal<StringBuilder> buffer = new ThreadLocal<StringBuilder>();
+	private static final Map<Class<?>, DetailsPlan> detailsPlans = new ConcurrentHashMap<Class<?>, DetailsPlan>();
+	private static volatile AuditTemplate cached;
+	
+	private final String format;
+	private final String[] literals;
+	private final int[] variables;
+	
+	/**
+	 * Property name prefixes ("[name=") of an entity type and the properties annotated with @Downloadable, which are
+	 * left out of the details when the "app.audit.excludeDownloadable" property is true. Hibernate passes the same
+	 * property names array for every entity of a type, so the array identity tells if the plan can be reused.
+	 */
+	private static class DetailsPlan {
+		final String[] propertyNames;
+		final String[] prefixes;
+		final boolean[] downloadable;
+		
+		DetailsPlan(Class<?> entityType, String[] propertyNames) {
+			this.propertyNames = propertyNames;
+			prefixes = new String[propertyNames.length];
+			downloadable = new boolean[propertyNames.length];
+			boolean excludeDownloadable = Constants.appAuditExcludeDownloadable();
+			
+			for(int i = 0; i < propertyNames.length; i++) {
+				prefixes[i] = "[" + propertyNames[i] + "=";
+				downloadable[i] = excludeDownloadable && entityType != null && isDownloadable(entityType, propertyNames[i]);
+			}
+		}
+		
+		static boolean isDownloadable(Class<?> type, String propertyName) {
+			for(Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+				try {
+					return c.getDeclaredField(propertyName).isAnnotationPresent(Downloadable.class);
+				} catch (NoSuchFieldException e) {
+				}
+			}
+			
+			return false;
+		}
+	}
+	
+	protected AuditTemplate(String format) {
+		this.format = format;
+		List<String> literalList = new ArrayList<String>();
+		List<Integer> variableList = new ArrayList<Integer>();
+		StringBuilder literal = new StringBuilder();
+		int i = 0;
+		
+		while(i < format.length()) {
+			int variable = -1;
+			
+			if(format.startsWith("${", i)) {
+				for(int v = 0; v < VARIABLES.length; v++) {
+					if(format.startsWith(VARIABLES[v], i)) {
+						variable = v;
+						break;
+					}
+				}
+			}
+			
+			if(variable == -1) {
+				literal.append(format.charAt(i++));
+			} else {
+				literalList.add(literal.toString());
+				variableList.add(variable);
+				literal.setLength(0);
+				i += VARIABLES[variable].length();
+			}
+		}
+		
+		literalList.add(literal.toString());
+		literals = literalList.toArray(new String[literalList.size()]);
+		variables = new int[variableList.size()];
+		
+		for(int v = 0; v < variables.length; v++) {
+			variables[v] = variableList.get(v);
+		}
+	}
+	
+	/**
+	 * @param format Audit log format.
+	 * @return The compiled format. The last compiled format is reused while it doesn't change.
+	 */
+	public static AuditTemplate compile(String format) {
+		AuditTemplate template = cached;
+		
+		if(template == null || !template.format.equals(format)) {
+			template = new AuditTemplate(format);
+			cached = template;
+		}
+		
+		return template;
+	}
+	
+	/**
+	 * Renders an audit log.
+	 * @param entityType Audited entity class (its simple name is used for ${type}).
+	 * @param values Property values (${details}).
+	 * @param properties Property names (${details}).
+	 */
+	public String render(String user, String ip, String action, Class<?> entityType, Object id, Object[] values, String[] properties) {
+		return render(user, ip, action, entityType, id, values, null, properties, null);
+	}
+	
+	/**
+	 * Renders an audit log whose details only include the changed properties (see appendDiff), or all the properties
+	 * if previousValues is null.
+	 */
+	public String render(String user, String ip, String action, Class<?> entityType, Object id, Object[] values, Object[] previousValues, String[] properties, Type[] types) {
+		StringBuilder builder = getBuffer();
+		
+		for(int i = 0; i < variables.length; i++) {
+			builder.append(literals[i]);
+			
+			switch(variables[i]) {
+				case USER: builder.append(user); break;
+				case IP: builder.append(ip); break;
+				case ACTION: builder.append(action); break;
+				case TYPE: builder.append(entityType.getSimpleName()); break;
+				case ID: builder.append(id); break;
+				case DETAILS:
+					if(previousValues == null) {
+						appendDetails(builder, entityType, values, properties);
+					} else {
+						appendDiff(builder, entityType, values, previousValues, properties, types);
+					}
+					break;
+			}
+		}
+		
+		builder.append(literals[literals.length - 1]);
+		return builder.toString();
+	}
+	
+	/**
+	 * @return The details of an audit log: "[property1=value1], [property2=value2], ...".
+	 */
+	public static String renderDetails(Class<?> entityType, Object[] values, String[] properties) {
+		StringBuilder builder = getBuffer();
+		appendDetails(builder, entityType, values, properties);
+		return builder.toString();
+	}
+	
+	/**
+	 * @return The changed properties of an audit log: "[property1=old1->new1], [property2=old2->new2], ...".
+	 */
+	public static String renderDiff(Class<?> entityType, Object[] values, Object[] previousValues, String[] properties, Type[] types) {
+		StringBuilder builder = getBuffer();
+		appendDiff(builder, entityType, values, previousValues, properties, types);
+		return builder.toString();
+	}
+	
+	/**
+	 * Appends the details of an audit log ("[property1=value1], [property2=value2], ...") to the given builder.
+	 * Properties annotated with @Downloadable are skipped and values longer than "app.audit.maxValueLength" are
+	 * truncated.
+	 */
+	public static void appendDetails(StringBuilder builder, Class<?> entityType, Object[] values, String[] properties) {
+		DetailsPlan plan = getDetailsPlan(entityType, properties);
+		int maxValueLength = Constants.appAuditMaxValueLength();
+		int start = builder.length();
+		
+		for(int i = 0; i < properties.length; i++) {
+			if(!plan.downloadable[i]) {
+				appendSeparator(builder, start);
+				builder.append(plan.prefixes[i]);
+				appendValue(builder, values[i], maxValueLength);
+				builder.append(']');
+			}
+		}
+	}
+	
+	/**
+	 * Appends only the properties whose value changed, as "[property=old->new]" pairs. Properties annotated with
+	 * @Downloadable are skipped and values longer than "app.audit.maxValueLength" are truncated.
+	 * @param types Hibernate types of the properties, used to compare values. If null, values are compared with equals.
+	 */
+	public static void appendDiff(StringBuilder builder, Class<?> entityType, Object[] values, Object[] previousValues, String[] properties, Type[] types) {
+		DetailsPlan plan = getDetailsPlan(entityType, properties);
+		int maxValueLength = Constants.appAuditMaxValueLength();
+		int start = builder.length();
+		
+		for(int i = 0; i < properties.length; i++) {
+			if(!plan.downloadable[i] && !isEqual(values[i], previousValues[i], types == null ? null : types[i])) {
+				appendSeparator(builder, start);
+				builder.append(plan.prefixes[i]);
+				appendValue(builder, previousValues[i], maxValueLength);
+				builder.append("->");
+				appendValue(builder, values[i], maxValueLength);
+				builder.append(']');
+			}
+		}
+	}
+	
+	private static boolean isEqual(Object value, Object previousValue, Type type) {
+		if(value == previousValue) {
+			return true;
+		}
+		
+		if(type != null) {
+			return type.isEqual(value, previousValue);
+		}
+		
+		return value != null && value.equals(previousValue);
+	}
+	
+	private static void appendSeparator(StringBuilder builder, int start) {
+		if(builder.length() > start) {
+			builder.append(", ");
+		}
+	}
+	
+	private static void appendValue(StringBuilder builder, Object value, int maxValueLength) {
+		if(maxValueLength <= 0) {
+			builder.append(value);
+			
+		} else {
+			String string = String.valueOf(value);
+			
+			if(string.length() > maxValueLength) {
+				builder.append(string, 0, maxValueLength).append("...");
+			} else {
+				builder.append(string);
+			}
+		}
+	}
+	
+	private static DetailsPlan getDetailsPlan(Class<?> entityType, String[] properties) {
+		if(entityType == null) {
+			return new DetailsPlan(null, properties);
+		}
+		
+		DetailsPlan plan = detailsPlans.get(entityType);
+		
+		if(plan == null || (plan.propertyNames != properties && !Arrays.equals(plan.propertyNames, properties))) {
+			plan = new DetailsPlan(entityType, properties);
+			detailsPlans.put(entityType, plan);
+		}
+		
+		return plan;
+	}
+	
+	private static StringBuilder getBuffer() {
+		StringBuilder builder = buffer.get();
+		
+		if(builder == null || builder.capacity() > MAX_BUFFER_CAPACITY) {
+			builder = new StringBuilder(256);
+			buffer.set(builder);
+		}
+		
+		builder.setLength(0);
+		return builder;
+	}
+	
+}
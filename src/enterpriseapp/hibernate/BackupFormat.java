@@ -0,0 +1,342 @@
+package enterpriseapp.hibernate;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * Database independent binary row format of backup entries, written by BackupWriter and read by BackupReader.
+ *
+ * Each entry starts with a header describing the columns (number of columns, and the name, JDBC type and value kind of
+ * each column), followed by the rows. Each row is written as a ROW marker followed by its values, each value as a
+ * null flag followed (if not null) by the value: variable length integers for integer numbers, length-prefixed bytes
+ * for strings (UTF-8), binary values and decimals, and milliseconds since the epoch for dates. Entries are compressed
+ * by the zip stream one entry at a time, each entry holding about db.backup.chunkSize bytes of rows.
+ *
+ * @author Alejandro Duarte
+ *
+ */
+public class BackupFormat {
+
+	/**
+	 * Value of the "format" property of backups written in this format.
+	 */
+	public static final String VERSION = "3";
+
+	static final int ROW = 1;
+
+	static final int BOOLEAN = 1;
+	static final int LONG = 2;
+	static final int DOUBLE = 3;
+	static final int DECIMAL = 4;
+	static final int STRING = 5;
+	static final int BYTES = 6;
+	static final int DATE = 7;
+	static final int TIME = 8;
+	static final int TIMESTAMP = 9;
+
+	/**
+	 * Column of a backup entry.
+	 */
+	static class Column {
+		final String name;
+		final int sqlType;
+		final int kind;
+
+		Column(String name, int sqlType, int kind) {
+			this.name = name;
+			this.sqlType = sqlType;
+			this.kind = kind;
+		}
+	}
+
+	private BackupFormat() {
+	}
+
+	/**
+	 * @return Whether the backup was written in this format (older backups use the SELECT ... INTO OUTFILE format).
+	 */
+	public static boolean isBinary(String format) {
+		return format != null && new Integer(format) >= new Integer(VERSION);
+	}
+
+	static Column[] getColumns(ResultSetMetaData metaData) throws SQLException {
+		Column[] columns = new Column[metaData.getColumnCount()];
+
+		for(int i = 0; i < columns.length; i++) {
+			int sqlType = metaData.getColumnType(i + 1);
+			columns[i] = new Column(metaData.getColumnName(i + 1), sqlType, getKind(sqlType));
+		}
+
+		return columns;
+	}
+
+	static int getKind(int sqlType) {
+		switch(sqlType) {
+		case Types.BIT:
+		case Types.BOOLEAN:
+			return BOOLEAN;
+		case Types.TINYINT:
+		case Types.SMALLINT:
+		case Types.INTEGER:
+		case Types.BIGINT:
+			return LONG;
+		case Types.REAL:
+		case Types.FLOAT:
+		case Types.DOUBLE:
+			return DOUBLE;
+		case Types.NUMERIC:
+		case Types.DECIMAL:
+			return DECIMAL;
+		case Types.BINARY:
+		case Types.VARBINARY:
+		case Types.LONGVARBINARY:
+		case Types.BLOB:
+			return BYTES;
+		case Types.DATE:
+			return DATE;
+		case Types.TIME:
+			return TIME;
+		case Types.TIMESTAMP:
+			return TIMESTAMP;
+		default:
+			return STRING;
+		}
+	}
+
+	static void writeHeader(DataOutputStream out, Column[] columns) throws IOException {
+		writeVarLong(out, columns.length);
+
+		for(Column column : columns) {
+			out.writeUTF(column.name);
+			writeVarLong(out, column.sqlType);
+			out.writeByte(column.kind);
+		}
+	}
+
+	static Column[] readHeader(DataInputStream in) throws IOException {
+		Column[] columns = new Column[(int) readVarLong(in)];
+
+		for(int i = 0; i < columns.length; i++) {
+			columns[i] = new Column(in.readUTF(), (int) readVarLong(in), in.readUnsignedByte());
+		}
+
+		return columns;
+	}
+
+	/**
+	 * Writes the current row of the result set.
+	 */
+	static void writeRow(DataOutputStream out, ResultSet resultSet, Column[] columns) throws SQLException, IOException {
+		out.writeByte(ROW);
+
+		for(int i = 0; i < columns.length; i++) {
+			writeValue(out, columns[i], getValue(resultSet, i + 1, columns[i]));
+		}
+	}
+
+	static Object getValue(ResultSet resultSet, int index, Column column) throws SQLException {
+		Object value;
+
+		switch(column.kind) {
+		case BOOLEAN:
+			value = resultSet.getBoolean(index);
+			break;
+		case LONG:
+			value = resultSet.getLong(index);
+			break;
+		case DOUBLE:
+			value = resultSet.getDouble(index);
+			break;
+		case DECIMAL:
+			value = resultSet.getBigDecimal(index);
+			break;
+		case BYTES:
+			value = resultSet.getBytes(index);
+			break;
+		case DATE:
+			value = resultSet.getDate(index);
+			break;
+		case TIME:
+			value = resultSet.getTime(index);
+			break;
+		case TIMESTAMP:
+			value = resultSet.getTimestamp(index);
+			break;
+		default:
+			value = resultSet.getString(index);
+		}
+
+		return resultSet.wasNull() ? null : value;
+	}
+
+	static void writeValue(DataOutputStream out, Column column, Object value) throws IOException {
+		out.writeBoolean(value != null);
+
+		if(value == null) {
+			return;
+		}
+
+		switch(column.kind) {
+		case BOOLEAN:
+			out.writeBoolean((Boolean) value);
+			break;
+		case LONG:
+			writeVarLong(out, (Long) value);
+			break;
+		case DOUBLE:
+			out.writeDouble((Double) value);
+			break;
+		case DECIMAL:
+			BigDecimal decimal = (BigDecimal) value;
+			writeVarLong(out, decimal.scale());
+			writeBytes(out, decimal.unscaledValue().toByteArray());
+			break;
+		case BYTES:
+			writeBytes(out, (byte[]) value);
+			break;
+		case DATE:
+		case TIME:
+			writeVarLong(out, ((java.util.Date) value).getTime());
+			break;
+		case TIMESTAMP:
+			Timestamp timestamp = (Timestamp) value;
+			writeVarLong(out, timestamp.getTime());
+			writeVarLong(out, timestamp.getNanos());
+			break;
+		default:
+			writeBytes(out, value.toString().getBytes("UTF-8"));
+		}
+	}
+
+	static Object readValue(DataInputStream in, Column column) throws IOException {
+		if(!in.readBoolean()) {
+			return null;
+		}
+
+		switch(column.kind) {
+		case BOOLEAN:
+			return in.readBoolean();
+		case LONG:
+			return readVarLong(in);
+		case DOUBLE:
+			return in.readDouble();
+		case DECIMAL:
+			int scale = (int) readVarLong(in);
+			return new BigDecimal(new BigInteger(readBytes(in)), scale);
+		case BYTES:
+			return readBytes(in);
+		case DATE:
+			return new Date(readVarLong(in));
+		case TIME:
+			return new Time(readVarLong(in));
+		case TIMESTAMP:
+			Timestamp timestamp = new Timestamp(readVarLong(in));
+			timestamp.setNanos((int) readVarLong(in));
+			return timestamp;
+		default:
+			return new String(readBytes(in), "UTF-8");
+		}
+	}
+
+	static void setParameter(PreparedStatement statement, int index, Column column, Object value) throws SQLException {
+		if(value == null) {
+			statement.setNull(index, column.sqlType);
+			return;
+		}
+
+		switch(column.kind) {
+		case BOOLEAN:
+			statement.setBoolean(index, (Boolean) value);
+			break;
+		case LONG:
+			statement.setLong(index, (Long) value);
+			break;
+		case DOUBLE:
+			statement.setDouble(index, (Double) value);
+			break;
+		case DECIMAL:
+			statement.setBigDecimal(index, (BigDecimal) value);
+			break;
+		case BYTES:
+			statement.setBytes(index, (byte[]) value);
+			break;
+		case DATE:
+			statement.setDate(index, (Date) value);
+			break;
+		case TIME:
+			statement.setTime(index, (Time) value);
+			break;
+		case TIMESTAMP:
+			statement.setTimestamp(index, (Timestamp) value);
+			break;
+		default:
+			statement.setString(index, (String) value);
+		}
+	}
+
+	/**
+	 * @return The key (an identifier as a string, for example from the audit log) as a value of the column.
+	 */
+	static Object toValue(Column column, String key) {
+		switch(column.kind) {
+		case LONG:
+			return new Long(key);
+		case DECIMAL:
+			return new BigDecimal(key);
+		default:
+			return key;
+		}
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		writeVarLong(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[(int) readVarLong(in)];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Writes a zigzag encoded variable length integer (1 byte for values between -64 and 63).
+	 */
+	static void writeVarLong(DataOutputStream out, long value) throws IOException {
+		long zigzag = (value << 1) ^ (value >> 63);
+
+		while((zigzag & ~0x7FL) != 0) {
+			out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+			zigzag >>>= 7;
+		}
+
+		out.writeByte((int) zigzag);
+	}
+
+	static long readVarLong(DataInputStream in) throws IOException {
+		long zigzag = 0;
+
+		for(int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			zigzag |= (long) (b & 0x7F) << shift;
+
+			if((b & 0x80) == 0) {
+				return (zigzag >>> 1) ^ -(zigzag & 1);
+			}
+		}
+
+		throw new IOException("Malformed variable length integer");
+	}
+
+}
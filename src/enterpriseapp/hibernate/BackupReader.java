@@ -0,0 +1,877 @@
+package enterpriseapp.hibernate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.H2Dialect;
+import org.hibernate.dialect.HSQLDialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.dialect.PostgreSQL81Dialect;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.id.IdentityGenerator;
+import org.hibernate.id.SequenceGenerator;
+import org.hibernate.id.enhanced.DatabaseStructure;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Restores database backups written by BackupWriter (or by previous versions of Db.newBackup) from zip streams.
+ *
+ * Entries are read from the stream as it is decompressed, without extracting them to disk. Each entry of a backup in
+ * the BackupFormat binary format is a chunk; entries of older backups (in the MySQL SELECT ... INTO OUTFILE format)
+ * are split in chunks of about chunkSize bytes at row boundaries. Each table is assigned to one of the loaders, so
+ * different tables are restored in parallel while the chunks of a table are applied in order. Each loader uses its
+ * own connection (with foreign key checks disabled, see setConstraintChecks), inserts the rows of a chunk with JDBC
+ * batches of batchSize rows and commits the chunk. Since chunks are committed as they are restored, a restore that
+ * fails leaves the database partially restored; use verify to read the whole backup before restoring it.
+ *
+ * Rows of "&lt;table&gt;.backup" entries replace all the rows of the table, rows of "&lt;table&gt;.changes" entries
+ * replace the rows with the same key, and the keys of "&lt;table&gt;.deletes" entries are deleted. Once the rows are
+ * restored, the sequences and identity columns of the entities are restarted after their largest identifier (see
+ * resetIdentifierGenerators).
+ *
+ * @author Alejandro Duarte
+ *
+ */
+public class BackupReader {
+
+	private static final Logger logger = LoggerFactory.getLogger(BackupReader.class);
+
+	private static final Pattern ENTRY = Pattern.compile("(.+?)(" + Pattern.quote(BackupWriter.ENTRY_SUFFIX) + "|" + Pattern.quote(BackupWriter.CHANGES_SUFFIX) + "|" + Pattern.quote(BackupWriter.DELETES_SUFFIX) + ")(\\.\\d+)?");
+
+	private static final Chunk END = new Chunk(null, null, null, 0);
+
+	private final SessionFactory sessionFactory;
+	private final ConnectionProvider connectionProvider;
+	private final Dialect dialect;
+	private final int threads;
+	private final int batchSize;
+	private final int chunkSize;
+
+	private volatile Exception failure;
+	private volatile boolean aborted;
+
+	private Properties properties;
+	private boolean binary;
+	private Charset charset;
+	private RestoreProgress progress;
+	private RestoreListener listener;
+
+	private static class Chunk {
+		private final String table;
+		private final String suffix;
+		private final byte[] data;
+		private final int length;
+
+		private Chunk(String table, String suffix, byte[] data, int length) {
+			this.table = table;
+			this.suffix = suffix;
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Applies the chunks of its tables in order, using its own connection.
+	 */
+	private class Loader implements Runnable {
+		private final Connection connection;
+		private final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<Chunk>(2);
+		private final Set<String> clearedTables = new HashSet<String>();
+		private final Map<String, int[]> columnTypes = new HashMap<String, int[]>();
+
+		private Loader(Connection connection) {
+			this.connection = connection;
+		}
+
+		@Override
+		public void run() {
+			try {
+				for(Chunk chunk = chunks.take(); chunk != END && failure == null; chunk = chunks.take()) {
+					long rows = load(chunk);
+					connection.commit();
+					progress.addChunk(rows);
+
+					if(listener != null) {
+						listener.chunkRestored(progress);
+					}
+				}
+
+			} catch (InterruptedException e) {
+				// the restore was aborted
+
+			} catch (Exception e) {
+				fail(e);
+			}
+		}
+
+		private long load(Chunk chunk) throws Exception {
+			if(BackupWriter.ENTRY_SUFFIX.equals(chunk.suffix) && clearedTables.add(chunk.table)) {
+				Statement statement = connection.createStatement();
+				statement.execute("DELETE FROM " + chunk.table);
+				statement.close();
+			}
+
+			if(binary) {
+				return loadRows(chunk);
+			}
+
+			if(BackupWriter.DELETES_SUFFIX.equals(chunk.suffix)) {
+				return delete(chunk);
+			}
+
+			return insert(chunk, BackupWriter.ENTRY_SUFFIX.equals(chunk.suffix) ? "INSERT" : "REPLACE");
+		}
+
+		/**
+		 * Loads a chunk in the BackupFormat binary format. Changed rows are replaced by deleting the rows with the same
+		 * key before inserting them.
+		 */
+		private long loadRows(Chunk chunk) throws Exception {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(chunk.data, 0, chunk.length));
+			BackupFormat.Column[] columns = BackupFormat.readHeader(in);
+			String keyColumn = properties.getProperty("table." + chunk.table + ".key");
+			int keyIndex = -1;
+
+			for(int i = 0; i < columns.length; i++) {
+				if(columns[i].name.equalsIgnoreCase(keyColumn)) {
+					keyIndex = i;
+				}
+			}
+
+			boolean deletes = BackupWriter.DELETES_SUFFIX.equals(chunk.suffix);
+			boolean changes = BackupWriter.CHANGES_SUFFIX.equals(chunk.suffix);
+
+			if((deletes || changes) && keyIndex < 0) {
+				throw new IllegalStateException("No key column for changed rows of " + chunk.table);
+			}
+
+			PreparedStatement delete = null;
+			PreparedStatement insert = null;
+			long rows = 0;
+
+			try {
+				if(deletes || changes) {
+					delete = connection.prepareStatement("DELETE FROM " + chunk.table + " WHERE " + keyColumn + " = ?");
+				}
+
+				if(!deletes) {
+					StringBuilder names = new StringBuilder();
+					StringBuilder parameters = new StringBuilder();
+
+					for(int i = 0; i < columns.length; i++) {
+						names.append(i == 0 ? "" : ", ").append(columns[i].name);
+						parameters.append(i == 0 ? "?" : ", ?");
+					}
+
+					insert = connection.prepareStatement("INSERT INTO " + chunk.table + " (" + names + ") VALUES (" + parameters + ")");
+				}
+
+				Object[] values = new Object[columns.length];
+
+				for(int marker = in.read(); marker == BackupFormat.ROW; marker = in.read()) {
+					for(int i = 0; i < columns.length; i++) {
+						values[i] = BackupFormat.readValue(in, columns[i]);
+					}
+
+					if(delete != null) {
+						BackupFormat.setParameter(delete, 1, columns[keyIndex], values[keyIndex]);
+						delete.addBatch();
+					}
+
+					if(insert != null) {
+						for(int i = 0; i < columns.length; i++) {
+							BackupFormat.setParameter(insert, i + 1, columns[i], values[i]);
+						}
+
+						insert.addBatch();
+					}
+
+					if(++rows % batchSize == 0) {
+						executeBatches(delete, insert);
+					}
+				}
+
+				executeBatches(delete, insert);
+
+			} finally {
+				if(delete != null) {
+					delete.close();
+				}
+
+				if(insert != null) {
+					insert.close();
+				}
+			}
+
+			return rows;
+		}
+
+		private void executeBatches(PreparedStatement delete, PreparedStatement insert) throws SQLException {
+			if(delete != null) {
+				delete.executeBatch();
+			}
+
+			if(insert != null) {
+				insert.executeBatch();
+			}
+		}
+
+		private long insert(Chunk chunk, String command) throws Exception {
+			int[] types = getColumnTypes(chunk.table);
+			StringBuilder sql = new StringBuilder(command).append(" INTO ").append(chunk.table).append(" VALUES (");
+
+			for(int i = 0; i < types.length; i++) {
+				sql.append(i == 0 ? "?" : ", ?");
+			}
+
+			PreparedStatement statement = connection.prepareStatement(sql.append(")").toString());
+			List<byte[]> values = new ArrayList<byte[]>(types.length);
+			long rows = 0;
+
+			try {
+				for(int position = 0; position < chunk.length; ) {
+					position = parseRow(chunk.data, position, chunk.length, values);
+
+					if(values.size() != types.length) {
+						throw new IllegalStateException("Wrong number of columns in " + chunk.table + " row: " + values.size() + " (expected " + types.length + ")");
+					}
+
+					for(int i = 0; i < types.length; i++) {
+						setValue(statement, i + 1, types[i], values.get(i));
+					}
+
+					statement.addBatch();
+
+					if(++rows % batchSize == 0) {
+						statement.executeBatch();
+					}
+				}
+
+				statement.executeBatch();
+
+			} finally {
+				statement.close();
+			}
+
+			return rows;
+		}
+
+		private long delete(Chunk chunk) throws Exception {
+			String keyColumn = properties.getProperty("table." + chunk.table + ".key");
+
+			if(keyColumn == null) {
+				throw new IllegalStateException("No key column for deleted rows of " + chunk.table);
+			}
+
+			PreparedStatement statement = connection.prepareStatement("DELETE FROM " + chunk.table + " WHERE " + keyColumn + " = ?");
+			List<byte[]> values = new ArrayList<byte[]>(1);
+			long rows = 0;
+
+			try {
+				for(int position = 0; position < chunk.length; ) {
+					position = parseRow(chunk.data, position, chunk.length, values);
+					statement.setString(1, new String(values.get(0), "UTF-8"));
+					statement.addBatch();
+
+					if(++rows % batchSize == 0) {
+						statement.executeBatch();
+					}
+				}
+
+				statement.executeBatch();
+
+			} finally {
+				statement.close();
+			}
+
+			return rows;
+		}
+
+		private int[] getColumnTypes(String table) throws SQLException {
+			int[] types = columnTypes.get(table);
+
+			if(types == null) {
+				Statement statement = connection.createStatement();
+
+				try {
+					ResultSetMetaData metaData = statement.executeQuery("SELECT * FROM " + table + " WHERE 1 = 0").getMetaData();
+					types = new int[metaData.getColumnCount()];
+
+					for(int i = 0; i < types.length; i++) {
+						types[i] = metaData.getColumnType(i + 1);
+					}
+
+				} finally {
+					statement.close();
+				}
+
+				columnTypes.put(table, types);
+			}
+
+			return types;
+		}
+	}
+
+	/**
+	 * Counts the bytes read from the backup stream.
+	 */
+	private class CountingInputStream extends FilterInputStream {
+		private CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+
+			if(b >= 0) {
+				progress.addBytesRead(1);
+			}
+
+			return b;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			int n = super.read(bytes, offset, length);
+
+			if(n > 0) {
+				progress.addBytesRead(n);
+			}
+
+			return n;
+		}
+	}
+
+	/**
+	 * @param sessionFactory Session factory of the database to restore.
+	 * @param threads Maximum number of tables restored at the same time.
+	 * @param batchSize Rows sent to the database per JDBC batch.
+	 * @param chunkSize Approximate size in bytes of the chunks committed at once.
+	 */
+	public BackupReader(SessionFactory sessionFactory, int threads, int batchSize, int chunkSize) {
+		this.sessionFactory = sessionFactory;
+		this.connectionProvider = ((SessionFactoryImplementor) sessionFactory).getServiceRegistry().getService(ConnectionProvider.class);
+		this.dialect = ((SessionFactoryImplementor) sessionFactory).getDialect();
+		this.threads = Math.max(threads, 1);
+		this.batchSize = Math.max(batchSize, 1);
+		this.chunkSize = Math.max(chunkSize, 64 * 1024);
+	}
+
+	/**
+	 * Restores a backup. The stream is read to the end of the zip stream but not closed.
+	 * @param in Stream to read the backup from.
+	 * @param totalBytes Size in bytes of the stream (used to report progress), or -1 if unknown.
+	 * @param tables All the tables of the database. The tables of full backups without rows in the backup are emptied.
+	 * @param listener Listener notified of the progress of the restore, or null.
+	 * @return Progress of the finished restore.
+	 * @throws Exception
+	 */
+	public RestoreProgress read(InputStream in, long totalBytes, List<String> tables, RestoreListener listener) throws Exception {
+		List<Connection> connections = new ArrayList<Connection>();
+		ExecutorService executor = null;
+		failure = null;
+		aborted = false;
+		progress = new RestoreProgress(totalBytes);
+		properties = new Properties();
+		this.listener = listener;
+
+		try {
+			ZipInputStream zip = new ZipInputStream(new CountingInputStream(in));
+			ZipEntry entry = zip.getNextEntry();
+
+			if(entry != null && BackupWriter.PROPERTIES_ENTRY.equals(entry.getName())) {
+				properties.load(zip);
+				entry = zip.getNextEntry();
+			}
+
+			binary = BackupFormat.isBinary(properties.getProperty("format"));
+			charset = getCharset(properties.getProperty("characterSet"));
+			List<Loader> loaders = new ArrayList<Loader>();
+			Map<String, Loader> tableLoaders = new HashMap<String, Loader>();
+			executor = Executors.newFixedThreadPool(threads);
+
+			for(int i = 0; i < threads; i++) {
+				Loader loader = new Loader(openConnection(connections));
+				loaders.add(loader);
+				executor.execute(loader);
+			}
+
+			for(; entry != null && failure == null; entry = zip.getNextEntry()) {
+				Matcher matcher = ENTRY.matcher(entry.getName());
+
+				if(!matcher.matches()) {
+					logger.warn("Unknown backup entry ignored: " + entry.getName());
+					continue;
+				}
+
+				progress.setCurrentEntry(entry.getName());
+				String table = matcher.group(1);
+				Loader loader = tableLoaders.get(table);
+
+				if(loader == null) {
+					loader = loaders.get(tableLoaders.size() % loaders.size());
+					tableLoaders.put(table, loader);
+				}
+
+				if(binary) {
+					put(readEntry(zip, table, matcher.group(2)), loader);
+				} else {
+					split(zip, table, matcher.group(2), loader);
+				}
+			}
+
+			for(Loader loader : loaders) {
+				put(END, loader);
+			}
+
+			executor.shutdown();
+
+			while(!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				// wait for the loaders to commit the remaining chunks
+			}
+
+			if(failure != null) {
+				throw failure;
+			}
+
+			if(!BackupWriter.INCREMENTAL.equals(properties.getProperty("type"))) {
+				Statement statement = connections.get(0).createStatement();
+
+				for(String table : tables) {
+					if(!tableLoaders.containsKey(table)) {
+						statement.execute("DELETE FROM " + table);
+					}
+				}
+
+				statement.close();
+				connections.get(0).commit();
+			}
+
+			resetIdentifierGenerators(connections.get(0));
+			progress.finish();
+
+			if(listener != null) {
+				listener.restoreFinished(progress, null);
+			}
+
+			return progress;
+
+		} catch (Exception e) {
+			fail(e);
+			aborted = true;
+			progress.finish();
+
+			if(listener != null) {
+				listener.restoreFinished(progress, failure);
+			}
+
+			throw failure;
+
+		} finally {
+			if(executor != null) {
+				executor.shutdownNow();
+				executor.awaitTermination(1, TimeUnit.MINUTES);
+			}
+
+			closeConnections(connections);
+		}
+	}
+
+	/**
+	 * Reads a whole backup without writing to the database, so a corrupt, truncated or tampered backup fails before any
+	 * table is emptied by read. The CRC of each zip entry is checked and the rows of binary entries are parsed. The
+	 * stream is read to the end but not closed.
+	 * @param in Stream to read the backup from.
+	 * @return Properties of the backup (for example, "tables" lists the tables it includes).
+	 * @throws IOException if the backup can't be read.
+	 */
+	public Properties verify(InputStream in) throws IOException {
+		ZipInputStream zip = new ZipInputStream(in);
+		Properties properties = new Properties();
+		ZipEntry entry = zip.getNextEntry();
+		byte[] buffer = new byte[8192];
+
+		if(entry != null && BackupWriter.PROPERTIES_ENTRY.equals(entry.getName())) {
+			properties.load(zip);
+			entry = zip.getNextEntry();
+		}
+
+		boolean binary = BackupFormat.isBinary(properties.getProperty("format"));
+
+		for(; entry != null; entry = zip.getNextEntry()) {
+			Matcher matcher = ENTRY.matcher(entry.getName());
+
+			if(matcher.matches()) {
+				String table = matcher.group(1);
+				boolean keyed = BackupWriter.DELETES_SUFFIX.equals(matcher.group(2)) || binary && BackupWriter.CHANGES_SUFFIX.equals(matcher.group(2));
+
+				if(keyed && properties.getProperty("table." + table + ".key") == null) {
+					throw new IOException("No key column for changed rows of " + table);
+				}
+
+				if(binary) {
+					verifyRows(new DataInputStream(zip), entry.getName());
+				}
+			}
+
+			while(zip.read(buffer) >= 0) {
+				// the CRC of the entry is checked when its end is reached
+			}
+		}
+
+		while(in.read(buffer) >= 0) {
+			// reads the zip directory too, so an encrypted stream checks its last block
+		}
+
+		return properties;
+	}
+
+	private void verifyRows(DataInputStream in, String entryName) throws IOException {
+		BackupFormat.Column[] columns = BackupFormat.readHeader(in);
+		int marker = in.read();
+
+		for(; marker == BackupFormat.ROW; marker = in.read()) {
+			for(int i = 0; i < columns.length; i++) {
+				BackupFormat.readValue(in, columns[i]);
+			}
+		}
+
+		if(marker != -1) {
+			throw new IOException("Corrupt backup entry " + entryName);
+		}
+	}
+
+	/**
+	 * Restarts the sequences and identity columns used to generate the identifiers of the entities after the largest
+	 * restored identifier, so new entities don't get the identifiers of restored rows. Supports PostgreSQL, H2 and
+	 * HSQLDB (MySQL moves the AUTO_INCREMENT value of a table past the inserted identifiers). The tables of table
+	 * generators are backed up and restored as any other table (see Db.getGeneratorTableNames).
+	 */
+	protected void resetIdentifierGenerators(Connection connection) throws SQLException {
+		if(!(dialect instanceof PostgreSQL81Dialect || dialect instanceof H2Dialect || dialect instanceof HSQLDialect)) {
+			return;
+		}
+
+		Map<String, Long> sequences = new HashMap<String, Long>();
+		Statement statement = connection.createStatement();
+
+		try {
+			for(ClassMetadata classMetadata : sessionFactory.getAllClassMetadata().values()) {
+				if(!(classMetadata instanceof AbstractEntityPersister)) {
+					continue;
+				}
+
+				AbstractEntityPersister persister = (AbstractEntityPersister) classMetadata;
+				String[] keyColumns = persister.getIdentifierColumnNames();
+
+				if(keyColumns.length != 1 || !Number.class.isAssignableFrom(persister.getIdentifierType().getReturnedClass())) {
+					continue;
+				}
+
+				IdentifierGenerator generator = persister.getIdentifierGenerator();
+				String sequence = null;
+				long incrementSize = 1;
+
+				if(generator instanceof SequenceGenerator) {
+					sequence = ((SequenceGenerator) generator).getSequenceName();
+
+				} else if(generator instanceof SequenceStyleGenerator && ((SequenceStyleGenerator) generator).getDatabaseStructure().isPhysicalSequence()) {
+					DatabaseStructure structure = ((SequenceStyleGenerator) generator).getDatabaseStructure();
+					sequence = structure.getName();
+					incrementSize = structure.getIncrementSize(); // pooled optimizers generate up to the sequence value
+
+				} else if(!(generator instanceof IdentityGenerator) || !persister.getEntityName().equals(persister.getRootEntityName())) {
+					continue;
+				}
+
+				ResultSet resultSet = statement.executeQuery("SELECT MAX(" + keyColumns[0] + ") FROM " + persister.getTableName());
+				long max = resultSet.next() ? resultSet.getLong(1) : 0;
+				boolean empty = resultSet.wasNull();
+				resultSet.close();
+
+				if(empty) {
+					continue;
+				}
+
+				if(sequence == null) {
+					restartIdentity(statement, persister.getTableName(), keyColumns[0], max + 1);
+
+				} else {
+					Long restart = sequences.get(sequence); // several entities can share a sequence
+					sequences.put(sequence, Math.max(restart == null ? 0 : restart, max + incrementSize));
+				}
+			}
+
+			for(Map.Entry<String, Long> sequence : sequences.entrySet()) {
+				if(dialect instanceof PostgreSQL81Dialect) {
+					statement.execute("SELECT setval('" + sequence.getKey() + "', " + sequence.getValue() + ", false)");
+				} else {
+					statement.execute("ALTER SEQUENCE " + sequence.getKey() + " RESTART WITH " + sequence.getValue());
+				}
+			}
+
+		} finally {
+			statement.close();
+		}
+
+		connection.commit();
+	}
+
+	private void restartIdentity(Statement statement, String table, String column, long restart) throws SQLException {
+		if(dialect instanceof PostgreSQL81Dialect) {
+			statement.execute("SELECT setval(pg_get_serial_sequence('" + table + "', '" + column + "'), " + restart + ", false)");
+		} else {
+			statement.execute("ALTER TABLE " + table + " ALTER COLUMN " + column + " RESTART WITH " + restart);
+		}
+	}
+
+	protected Connection openConnection(List<Connection> connections) throws SQLException {
+		Connection connection = connectionProvider.getConnection();
+		connections.add(connection);
+		connection.setAutoCommit(false);
+
+		setConstraintChecks(connection, false);
+
+		return connection;
+	}
+
+	protected void closeConnections(List<Connection> connections) {
+		for(Connection connection : connections) {
+			try {
+				connection.rollback();
+				setConstraintChecks(connection, true);
+				connection.setAutoCommit(true);
+				connectionProvider.closeConnection(connection);
+
+			} catch (SQLException e) {
+				logger.warn("Couldn't release restore connection", e);
+			}
+		}
+	}
+
+	/**
+	 * Enables or disables the foreign key (and, if possible, unique) checks of the connection, so tables can be restored
+	 * in any order. Supports MySQL, PostgreSQL (requires superuser privileges), H2 and HSQLDB.
+	 */
+	protected void setConstraintChecks(Connection connection, boolean enabled) throws SQLException {
+		Statement statement = connection.createStatement();
+
+		try {
+			if(dialect instanceof MySQLDialect) {
+				statement.execute("SET foreign_key_checks = " + (enabled ? 1 : 0));
+				statement.execute("SET unique_checks = " + (enabled ? 1 : 0));
+
+			} else if(dialect instanceof PostgreSQL81Dialect) {
+				statement.execute("SET session_replication_role = " + (enabled ? "DEFAULT" : "replica"));
+
+			} else if(dialect instanceof H2Dialect) {
+				statement.execute("SET REFERENTIAL_INTEGRITY " + (enabled ? "TRUE" : "FALSE"));
+
+			} else if(dialect instanceof HSQLDialect) {
+				statement.execute("SET DATABASE REFERENTIAL INTEGRITY " + (enabled ? "TRUE" : "FALSE"));
+
+			} else if(!enabled) {
+				logger.warn("Foreign key checks can't be disabled for " + dialect + ", the restore may fail");
+			}
+
+		} finally {
+			statement.close();
+		}
+	}
+
+	private Chunk readEntry(InputStream in, String table, String suffix) throws IOException {
+		ByteArrayOutputStream entry = new ByteArrayOutputStream(chunkSize + 1024);
+		byte[] buffer = new byte[8192];
+
+		for(int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+			entry.write(buffer, 0, n);
+		}
+
+		return new Chunk(table, suffix, entry.toByteArray(), entry.size());
+	}
+
+	/**
+	 * Reads an entry and sends its rows to the loader in chunks of about chunkSize bytes. Entries are always sent (even
+	 * if they are empty) so full tables are emptied.
+	 */
+	private void split(InputStream in, String table, String suffix, Loader loader) throws Exception {
+		byte[] buffer = new byte[chunkSize];
+		int length = 0;
+
+		for(int n = 0; n >= 0 && failure == null; ) {
+			if(length == buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2); // row larger than the chunk size
+			}
+
+			n = in.read(buffer, length, buffer.length - length);
+			length += Math.max(n, 0);
+
+			if(length >= chunkSize) {
+				int end = length - 1;
+
+				while(end >= 0 && buffer[end] != '\n') {
+					end--;
+				}
+
+				if(end >= 0) {
+					byte[] next = new byte[Math.max(chunkSize, length - end - 1)];
+					System.arraycopy(buffer, end + 1, next, 0, length - end - 1);
+					put(new Chunk(table, suffix, buffer, end + 1), loader);
+					length = length - end - 1;
+					buffer = next;
+				}
+			}
+		}
+
+		put(new Chunk(table, suffix, buffer, length), loader);
+	}
+
+	/**
+	 * Parses a row written in the SELECT ... INTO OUTFILE format (backups written by previous versions).
+	 * @return Position of the next row.
+	 */
+	private static int parseRow(byte[] data, int position, int end, List<byte[]> values) {
+		ByteArrayOutputStream value = new ByteArrayOutputStream();
+		boolean isNull = false;
+		values.clear();
+
+		for(; position < end; position++) {
+			byte b = data[position];
+
+			if(b == '\\' && position + 1 < end) {
+				byte escaped = data[++position];
+
+				switch(escaped) {
+				case 'N':
+					isNull = value.size() == 0;
+					break;
+				case '0':
+					value.write(0);
+					break;
+				case 'b':
+					value.write('\b');
+					break;
+				case 'n':
+					value.write('\n');
+					break;
+				case 'r':
+					value.write('\r');
+					break;
+				case 't':
+					value.write('\t');
+					break;
+				case 'Z':
+					value.write(26);
+					break;
+				default:
+					value.write(escaped);
+				}
+
+			} else if(b == '\t' || b == '\n') {
+				values.add(isNull ? null : value.toByteArray());
+				value.reset();
+				isNull = false;
+
+				if(b == '\n') {
+					return position + 1;
+				}
+
+			} else {
+				value.write(b);
+			}
+		}
+
+		values.add(isNull ? null : value.toByteArray());
+		return position;
+	}
+
+	private void setValue(PreparedStatement statement, int index, int type, byte[] value) throws SQLException {
+		if(value == null) {
+			statement.setNull(index, type);
+
+		} else if(charset == null || type == Types.BINARY || type == Types.VARBINARY || type == Types.LONGVARBINARY || type == Types.BLOB || type == Types.BIT) {
+			statement.setBytes(index, value);
+
+		} else {
+			statement.setString(index, new String(value, charset));
+		}
+	}
+
+	/**
+	 * @return Java charset of the MySQL character set, or null if the values must be restored as raw bytes.
+	 */
+	private static Charset getCharset(String characterSet) {
+		if(characterSet == null || characterSet.equals("binary")) {
+			return null;
+		}
+
+		if(characterSet.startsWith("utf8")) {
+			return Charset.forName("UTF-8");
+		}
+
+		if(characterSet.equals("latin1")) {
+			return Charset.forName("windows-1252");
+		}
+
+		try {
+			return Charset.forName(characterSet);
+
+		} catch (IllegalArgumentException e) {
+			logger.warn("Unknown character set " + characterSet + ", restoring raw bytes");
+			return null;
+		}
+	}
+
+	private void put(Chunk chunk, Loader loader) throws Exception {
+		while(!loader.chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+			if(failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	private synchronized void fail(Exception e) {
+		if(failure == null) {
+			failure = e;
+		}
+	}
+
+}
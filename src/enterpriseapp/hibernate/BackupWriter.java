@@ -0,0 +1,635 @@
+package enterpriseapp.hibernate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.dialect.PostgreSQL81Dialect;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes database backups as zip streams over JDBC without blocking writes to the database.
+ *
+ * Tables are read through streaming result sets in a snapshot transaction. On MySQL, tables are read in parallel, each
+ * worker using its own connection, and all the workers read from the same consistent snapshot: a global read lock
+ * (FLUSH TABLES WITH READ LOCK) is held only while the workers start their "START TRANSACTION WITH CONSISTENT
+ * SNAPSHOT" transactions. On PostgreSQL (9.2 or later), the first worker exports its snapshot (pg_export_snapshot())
+ * and the other workers import it with "SET TRANSACTION SNAPSHOT". If the lock can't be taken (it requires the RELOAD
+ * privilege), the snapshot can't be exported, or on other databases, a single worker is used and a warning is logged.
+ * Override beginSnapshot and getFetchSize to support other databases more efficiently.
+ *
+ * Rows are written in the binary format of BackupFormat in "&lt;table&gt;.backup.&lt;n&gt;" entries of at most
+ * chunkSize bytes (approximately), preceded by a "backup.properties" entry. A single thread compresses the entries
+ * as they are produced, so the backup is written in a single pass.
+ *
+ * Incremental backups (see Table) write only the changed rows of a table in "&lt;table&gt;.changes.&lt;n&gt;"
+ * entries (restored by replacing the rows with the same key), and the keys of the deleted rows in
+ * "&lt;table&gt;.deletes.&lt;n&gt;" entries. The key column of each table is stored in the "table.&lt;table&gt;.key"
+ * property.
+ *
+ * @author Alejandro Duarte
+ *
+ */
+public class BackupWriter {
+
+	private static final Logger logger = LoggerFactory.getLogger(BackupWriter.class);
+
+	public static final String PROPERTIES_ENTRY = "backup.properties";
+	public static final String ENTRY_SUFFIX = ".backup";
+	public static final String CHANGES_SUFFIX = ".changes";
+	public static final String DELETES_SUFFIX = ".deletes";
+	public static final String FORMAT = BackupFormat.VERSION;
+	public static final String FULL = "full";
+	public static final String INCREMENTAL = "incremental";
+
+	private static final int KEYS_PER_QUERY = 1000;
+	private static final int FETCH_SIZE = 1000;
+
+	private static final Chunk END = new Chunk(null, null);
+
+	private final ConnectionProvider connectionProvider;
+	private final Dialect dialect;
+	private final int threads;
+	private final int chunkSize;
+
+	private volatile Exception failure;
+	private volatile boolean aborted;
+	private int isolation = -1;
+
+	/**
+	 * Rows of a table to include in a backup.
+	 */
+	public static class Table {
+		private final String name;
+		private final String keyColumn;
+		private final String sinceColumn;
+		private final Date since;
+		private final Collection<String> keys;
+		private final Collection<String> deletedKeys;
+
+		private Table(String name, String keyColumn, String sinceColumn, Date since, Collection<String> keys, Collection<String> deletedKeys) {
+			this.name = name;
+			this.keyColumn = keyColumn;
+			this.sinceColumn = sinceColumn;
+			this.since = since;
+			this.keys = keys;
+			this.deletedKeys = deletedKeys;
+		}
+
+		/**
+		 * @return All the rows of the table.
+		 */
+		public static Table full(String name) {
+			return new Table(name, null, null, null, null, null);
+		}
+
+		/**
+		 * @return The rows whose column value is greater than or equal to the given date (deleted rows aren't
+		 * detected). The key column is used to replace the rows when restoring.
+		 */
+		public static Table since(String name, String keyColumn, String column, Date since) {
+			return new Table(name, keyColumn, column, since, null, null);
+		}
+
+		/**
+		 * @return The rows whose column value is greater than or equal to the given date, and the given keys (of rows
+		 * known to be deleted) as deleted.
+		 */
+		public static Table since(String name, String keyColumn, String column, Date since, Collection<String> deletedKeys) {
+			return new Table(name, keyColumn, column, since, null, deletedKeys);
+		}
+
+		/**
+		 * @return The rows with the given keys; keys not found in the table are written as deleted.
+		 */
+		public static Table keys(String name, String keyColumn, Collection<String> keys) {
+			return new Table(name, keyColumn, null, null, keys, null);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isFull() {
+			return sinceColumn == null && keys == null;
+		}
+
+		public String getKeyColumn() {
+			return keyColumn;
+		}
+
+		public Collection<String> getKeys() {
+			return keys;
+		}
+	}
+
+	private static class Chunk {
+		private final String name;
+		private final ChunkBuffer data;
+
+		private Chunk(String name, ChunkBuffer data) {
+			this.name = name;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Splits the rows written to an entry in chunks of chunkSize bytes, each one starting with the columns header.
+	 */
+	private class EntryWriter {
+		private final String name;
+		private final BlockingQueue<Chunk> chunks;
+		private BackupFormat.Column[] columns;
+		private int number;
+		private ChunkBuffer buffer;
+		private DataOutputStream out;
+
+		private EntryWriter(String name, BlockingQueue<Chunk> chunks) {
+			this.name = name;
+			this.chunks = chunks;
+		}
+
+		private void write(ResultSet resultSet) throws Exception {
+			begin();
+			BackupFormat.writeRow(out, resultSet, columns);
+			endRow();
+		}
+
+		private void write(Object key) throws Exception {
+			begin();
+			out.writeByte(BackupFormat.ROW);
+			BackupFormat.writeValue(out, columns[0], key);
+			endRow();
+		}
+
+		private void begin() throws IOException {
+			if(buffer == null) {
+				buffer = new ChunkBuffer(chunkSize + 1024);
+				out = new DataOutputStream(buffer);
+				BackupFormat.writeHeader(out, columns);
+			}
+		}
+
+		private void endRow() throws Exception {
+			if(buffer.size() >= chunkSize) {
+				put(new Chunk(name + "." + number++, buffer), chunks);
+				buffer = null;
+			}
+		}
+
+		private void close(boolean always) throws Exception {
+			if(buffer != null || (always && number == 0)) {
+				begin();
+				put(new Chunk(name + "." + number, buffer), chunks);
+			}
+		}
+	}
+
+	private static class ChunkBuffer extends ByteArrayOutputStream {
+		private ChunkBuffer(int size) {
+			super(size);
+		}
+
+		private void writeTo(ZipOutputStream out) throws IOException {
+			out.write(buf, 0, count);
+		}
+	}
+
+	/**
+	 * @param sessionFactory Session factory of the database to backup.
+	 * @param threads Maximum number of tables read at the same time.
+	 * @param chunkSize Approximate maximum size in bytes of each zip entry.
+	 */
+	public BackupWriter(SessionFactory sessionFactory, int threads, int chunkSize) {
+		this.connectionProvider = ((SessionFactoryImplementor) sessionFactory).getServiceRegistry().getService(ConnectionProvider.class);
+		this.dialect = ((SessionFactoryImplementor) sessionFactory).getDialect();
+		this.threads = Math.max(threads, 1);
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Writes a full backup of the given tables. The stream is finished as a zip stream but not closed.
+	 * @param tables Tables to backup.
+	 * @param out Stream to write the backup to.
+	 * @throws Exception
+	 */
+	public void write(List<String> tables, OutputStream out) throws Exception {
+		List<Table> fullTables = new ArrayList<Table>();
+
+		for(String table : tables) {
+			fullTables.add(Table.full(table));
+		}
+
+		write(fullTables, new Properties(), out);
+	}
+
+	/**
+	 * Writes a backup of the given tables. The stream is finished as a zip stream but not closed.
+	 * @param tables Rows to backup.
+	 * @param properties Properties to add to the "backup.properties" entry.
+	 * @param out Stream to write the backup to.
+	 * @throws Exception
+	 */
+	public void write(List<Table> tables, Properties properties, OutputStream out) throws Exception {
+		List<Connection> connections = new ArrayList<Connection>();
+		ExecutorService executor = null;
+		failure = null;
+		aborted = false;
+
+		try {
+			int workers = beginSnapshot(Math.min(threads, Math.max(tables.size(), 1)), connections);
+
+			ZipOutputStream zip = new ZipOutputStream(out);
+			writeProperties(zip, tables, properties);
+
+			final Queue<Table> pending = new ConcurrentLinkedQueue<Table>(tables);
+			final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<Chunk>(workers * 2);
+			executor = Executors.newFixedThreadPool(workers);
+
+			for(final Connection connection : connections) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							for(Table table = pending.poll(); table != null && failure == null; table = pending.poll()) {
+								dump(table, connection, chunks);
+							}
+
+						} catch (Exception e) {
+							fail(e);
+
+						} finally {
+							try {
+								put(END, chunks);
+							} catch (Exception e) {
+								// the backup was aborted
+							}
+						}
+					}
+				});
+			}
+
+			int running = workers;
+
+			while(running > 0) {
+				Chunk chunk = chunks.take();
+
+				if(chunk == END) {
+					running--;
+
+				} else {
+					zip.putNextEntry(new ZipEntry(chunk.name));
+					chunk.data.writeTo(zip);
+					zip.closeEntry();
+				}
+			}
+
+			if(failure != null) {
+				throw failure;
+			}
+
+			zip.finish();
+			zip.flush();
+
+		} catch (Exception e) {
+			fail(e);
+			aborted = true;
+			throw e;
+
+		} finally {
+			if(executor != null) {
+				executor.shutdownNow();
+				executor.awaitTermination(1, TimeUnit.MINUTES);
+			}
+
+			endSnapshot(connections);
+		}
+	}
+
+	/**
+	 * Opens the worker connections and begins a consistent snapshot transaction in each one.
+	 * @return number of workers.
+	 */
+	protected int beginSnapshot(int workers, List<Connection> connections) throws SQLException {
+		if(dialect instanceof MySQLDialect) {
+			return beginMySqlSnapshot(workers, connections);
+		}
+
+		if(dialect instanceof PostgreSQL81Dialect) {
+			return beginPostgreSqlSnapshot(workers, connections);
+		}
+
+		if(workers > 1) {
+			logger.warn("Parallel backups aren't supported with " + dialect.getClass().getSimpleName() + ", backup will use a single connection");
+		}
+
+		Connection connection = connectionProvider.getConnection();
+		connections.add(connection);
+		isolation = connection.getTransactionIsolation();
+		connection.setAutoCommit(false);
+		connection.setTransactionIsolation(connection.getMetaData().supportsTransactionIsolationLevel(Connection.TRANSACTION_REPEATABLE_READ) ? Connection.TRANSACTION_REPEATABLE_READ : Connection.TRANSACTION_SERIALIZABLE);
+		return 1;
+	}
+
+	/**
+	 * Begins the snapshot transactions while holding a global read lock, so they all see the same data.
+	 */
+	protected int beginMySqlSnapshot(int workers, List<Connection> connections) throws SQLException {
+		Connection lockConnection = null;
+		Statement lockStatement = null;
+
+		try {
+			if(workers > 1) {
+				lockConnection = connectionProvider.getConnection();
+				lockStatement = lockConnection.createStatement();
+
+				try {
+					lockStatement.execute("FLUSH TABLES WITH READ LOCK");
+
+				} catch (SQLException e) {
+					logger.warn("Couldn't lock tables, backup will use a single connection: " + e.getMessage());
+					workers = 1;
+				}
+			}
+
+			for(int i = 0; i < workers; i++) {
+				Connection connection = connectionProvider.getConnection();
+				connections.add(connection);
+				isolation = connection.getTransactionIsolation();
+				connection.setAutoCommit(false);
+
+				Statement statement = connection.createStatement();
+				statement.execute("SET SESSION TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+				statement.execute("START TRANSACTION WITH CONSISTENT SNAPSHOT");
+				statement.close();
+			}
+
+		} finally {
+			if(lockStatement != null) {
+				try {
+					lockStatement.execute("UNLOCK TABLES");
+					lockStatement.close();
+				} finally {
+					connectionProvider.closeConnection(lockConnection);
+				}
+			}
+		}
+
+		return workers;
+	}
+
+	/**
+	 * Begins a repeatable read transaction in the first connection and shares its snapshot with the other connections.
+	 */
+	protected int beginPostgreSqlSnapshot(int workers, List<Connection> connections) throws SQLException {
+		Connection first = connectionProvider.getConnection();
+		connections.add(first);
+		isolation = first.getTransactionIsolation();
+		first.setAutoCommit(false);
+		first.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+
+		if(workers == 1) {
+			return 1;
+		}
+
+		String snapshot = null;
+		Statement statement = first.createStatement();
+
+		try {
+			ResultSet resultSet = statement.executeQuery("SELECT pg_export_snapshot()");
+
+			if(resultSet.next()) {
+				snapshot = resultSet.getString(1);
+			}
+
+			resultSet.close();
+
+		} catch (SQLException e) {
+			logger.warn("Couldn't export snapshot, backup will use a single connection: " + e.getMessage());
+			first.rollback(); // the failed statement aborted the transaction, a new one begins with the first query
+
+		} finally {
+			statement.close();
+		}
+
+		if(snapshot == null) {
+			return 1;
+		}
+
+		for(int i = 1; i < workers; i++) {
+			Connection connection = connectionProvider.getConnection();
+			connections.add(connection);
+			connection.setAutoCommit(false);
+			connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+
+			statement = connection.createStatement();
+
+			try {
+				statement.execute("SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+			} finally {
+				statement.close();
+			}
+		}
+
+		return workers;
+	}
+
+	protected void endSnapshot(List<Connection> connections) {
+		for(Connection connection : connections) {
+			try {
+				connection.rollback();
+				connection.setAutoCommit(true);
+
+				if(isolation >= 0) {
+					connection.setTransactionIsolation(isolation);
+				}
+
+				connectionProvider.closeConnection(connection);
+
+			} catch (SQLException e) {
+				logger.warn("Couldn't release backup connection", e);
+			}
+		}
+	}
+
+	protected void writeProperties(ZipOutputStream zip, List<Table> tables, Properties backupProperties) throws Exception {
+		Properties properties = new Properties();
+		properties.putAll(backupProperties);
+		properties.setProperty("format", FORMAT);
+		
+		if(properties.getProperty("date") == null) {
+			properties.setProperty("date", "" + new Date().getTime());
+		}
+		
+		String names = "";
+		boolean incremental = false;
+		
+		for(Table table : tables) {
+			names += (names.isEmpty() ? "" : ",") + table.name;
+			incremental |= !table.isFull();
+			
+			if(table.keyColumn != null) {
+				properties.setProperty("table." + table.name + ".key", table.keyColumn);
+			}
+		}
+		
+		properties.setProperty("tables", names);
+		properties.setProperty("type", incremental ? INCREMENTAL : FULL);
+		properties.setProperty("dialect", dialect.getClass().getName());
+
+		zip.putNextEntry(new ZipEntry(PROPERTIES_ENTRY));
+		properties.store(zip, null);
+		zip.closeEntry();
+	}
+
+	/**
+	 * Reads the rows of the table into chunks.
+	 */
+	protected void dump(Table table, Connection connection, BlockingQueue<Chunk> chunks) throws Exception {
+		if(table.isFull()) {
+			EntryWriter entry = new EntryWriter(table.name + ENTRY_SUFFIX, chunks);
+			dump(connection.prepareStatement("SELECT * FROM " + table.name, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY), entry, null, null);
+			entry.close(true);
+			
+		} else if(table.keys == null) {
+			EntryWriter entry = new EntryWriter(table.name + CHANGES_SUFFIX, chunks);
+			PreparedStatement statement = connection.prepareStatement("SELECT * FROM " + table.name + " WHERE " + table.sinceColumn + " >= ?", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			statement.setTimestamp(1, new Timestamp(table.since.getTime()));
+			dump(statement, entry, null, null);
+			entry.close(false);
+			
+			if(table.deletedKeys != null && !table.deletedKeys.isEmpty()) {
+				EntryWriter deletes = new EntryWriter(table.name + DELETES_SUFFIX, chunks);
+				deletes.columns = getColumns(connection, "SELECT " + table.keyColumn + " FROM " + table.name + " WHERE 1 = 0");
+				
+				for(String key : table.deletedKeys) {
+					deletes.write(BackupFormat.toValue(deletes.columns[0], key));
+				}
+				
+				deletes.close(false);
+			}
+			
+		} else {
+			EntryWriter entry = new EntryWriter(table.name + CHANGES_SUFFIX, chunks);
+			BackupFormat.Column[] keyColumns = getColumns(connection, "SELECT " + table.keyColumn + " FROM " + table.name + " WHERE 1 = 0");
+			List<String> keys = new ArrayList<String>(table.keys);
+			Set<String> found = new HashSet<String>();
+			
+			for(int start = 0; start < keys.size(); start += KEYS_PER_QUERY) {
+				List<String> page = keys.subList(start, Math.min(start + KEYS_PER_QUERY, keys.size()));
+				StringBuilder sql = new StringBuilder("SELECT * FROM ").append(table.name).append(" WHERE ").append(table.keyColumn).append(" IN (");
+				
+				for(int i = 0; i < page.size(); i++) {
+					sql.append(i == 0 ? "?" : ", ?");
+				}
+				
+				PreparedStatement statement = connection.prepareStatement(sql.append(")").toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				
+				for(int i = 0; i < page.size(); i++) {
+					BackupFormat.setParameter(statement, i + 1, keyColumns[0], BackupFormat.toValue(keyColumns[0], page.get(i)));
+				}
+				
+				dump(statement, entry, table.keyColumn, found);
+			}
+			
+			entry.close(false);
+			EntryWriter deletes = new EntryWriter(table.name + DELETES_SUFFIX, chunks);
+			deletes.columns = keyColumns;
+			
+			for(String key : keys) {
+				if(!found.contains(key)) {
+					deletes.write(BackupFormat.toValue(keyColumns[0], key));
+				}
+			}
+			
+			deletes.close(false);
+		}
+	}
+	
+	private void dump(PreparedStatement statement, EntryWriter entry, String keyColumn, Set<String> keys) throws Exception {
+		statement.setFetchSize(getFetchSize());
+		
+		try {
+			ResultSet resultSet = statement.executeQuery();
+			int keyIndex = keyColumn == null ? 0 : resultSet.findColumn(keyColumn);
+			
+			if(entry.columns == null) {
+				entry.columns = BackupFormat.getColumns(resultSet.getMetaData());
+			}
+			
+			while(resultSet.next()) {
+				entry.write(resultSet);
+				
+				if(keys != null) {
+					keys.add(resultSet.getString(keyIndex));
+				}
+			}
+			
+			resultSet.close();
+			
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * @return Rows fetched per round-trip by the result sets reading the tables.
+	 */
+	protected int getFetchSize() {
+		return dialect instanceof MySQLDialect ? Integer.MIN_VALUE : FETCH_SIZE; // MySQL streaming result set
+	}
+	
+	private BackupFormat.Column[] getColumns(Connection connection, String sql) throws SQLException {
+		Statement statement = connection.createStatement();
+		
+		try {
+			return BackupFormat.getColumns(statement.executeQuery(sql).getMetaData());
+		} finally {
+			statement.close();
+		}
+	}
+
+	private void put(Chunk chunk, BlockingQueue<Chunk> chunks) throws Exception {
+		while(!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+			if(aborted) {
+				throw new IllegalStateException("Backup aborted");
+			}
+		}
+	}
+
+	private synchronized void fail(Exception e) {
+		if(failure == null) {
+			failure = e;
+		}
+	}
+
+}
@@ -0,0 +1,185 @@
+package enterpriseapp.hibernate;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Connection pool counters of an InstrumentedConnectionProvider, registered as the
+ * "enterpriseapp:type=ConnectionPool,database=&lt;name&gt;" JMX MBean.
+ * 
+ * Saturated acquisitions are the connection requests made while all the connections of the pool (db.pool.max_size)
+ * were checked out. A growing number of saturated acquisitions along with high acquire times means the pool is the
+ * bottleneck. The acquire time histogram counts acquisitions by the upper bound (in milliseconds) of each bucket.
+ * 
+ * @author Alejandro Duarte
+ *
+ */
+public class ConnectionPoolStatistics implements ConnectionPoolStatisticsMBean {
+	
+	private static final long[] BUCKETS = {1, 5, 10, 50, 100, 500, 1000, Long.MAX_VALUE};
+	
+	private final InstrumentedConnectionProvider provider;
+	private final AtomicInteger activeConnections = new AtomicInteger();
+	private final AtomicInteger pendingRequests = new AtomicInteger();
+	private final AtomicInteger peakActiveConnections = new AtomicInteger();
+	private final AtomicLong acquisitions = new AtomicLong();
+	private final AtomicLong saturatedAcquisitions = new AtomicLong();
+	private final AtomicLong acquireFailures = new AtomicLong();
+	private final AtomicLong acquireNanos = new AtomicLong();
+	private final AtomicLong maxAcquireNanos = new AtomicLong();
+	private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS.length);
+	private final AtomicLong leakWarnings = new AtomicLong();
+	
+	ConnectionPoolStatistics(InstrumentedConnectionProvider provider) {
+		this.provider = provider;
+	}
+	
+	public String getProvider() {
+		return provider.getProviderName();
+	}
+	
+	public int getMaxSize() {
+		return provider.getMaxSize();
+	}
+	
+	public int getActiveConnections() {
+		return activeConnections.get();
+	}
+	
+	/**
+	 * @return Idle connections in the pool, or -1 if the pool implementation doesn't provide it.
+	 */
+	public int getIdleConnections() {
+		return provider.getIdleConnections();
+	}
+	
+	/**
+	 * @return Prepared statements in the statement cache of the pool, or -1 if the pool implementation doesn't have one.
+	 */
+	public int getCachedStatements() {
+		return provider.getCachedStatements();
+	}
+	
+	public int getCheckedOutCachedStatements() {
+		return provider.getCheckedOutCachedStatements();
+	}
+	
+	public int getConnectionsWithCachedStatements() {
+		return provider.getConnectionsWithCachedStatements();
+	}
+	
+	public int getPendingRequests() {
+		return pendingRequests.get();
+	}
+	
+	public int getPeakActiveConnections() {
+		return peakActiveConnections.get();
+	}
+	
+	public long getAcquisitions() {
+		return acquisitions.get();
+	}
+	
+	public long getSaturatedAcquisitions() {
+		return saturatedAcquisitions.get();
+	}
+	
+	public long getAcquireFailures() {
+		return acquireFailures.get();
+	}
+	
+	public double getAverageAcquireMillis() {
+		long count = acquisitions.get();
+		return count == 0 ? 0 : (double) acquireNanos.get() / count / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+	
+	public double getMaxAcquireMillis() {
+		return (double) maxAcquireNanos.get() / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+	
+	public long[] getAcquireMillisHistogram() {
+		long[] counts = new long[BUCKETS.length];
+		
+		for(int i = 0; i < counts.length; i++) {
+			counts[i] = histogram.get(i);
+		}
+		
+		return counts;
+	}
+	
+	public String[] getAcquireMillisHistogramBuckets() {
+		String[] buckets = new String[BUCKETS.length];
+		
+		for(int i = 0; i < buckets.length; i++) {
+			buckets[i] = BUCKETS[i] == Long.MAX_VALUE ? ">" + BUCKETS[i - 1] : "<=" + BUCKETS[i];
+		}
+		
+		return buckets;
+	}
+	
+	public long getLeakWarnings() {
+		return leakWarnings.get();
+	}
+	
+	public void reset() {
+		peakActiveConnections.set(activeConnections.get());
+		acquisitions.set(0);
+		saturatedAcquisitions.set(0);
+		acquireFailures.set(0);
+		acquireNanos.set(0);
+		maxAcquireNanos.set(0);
+		leakWarnings.set(0);
+		
+		for(int i = 0; i < BUCKETS.length; i++) {
+			histogram.set(i, 0);
+		}
+	}
+	
+	void acquiring() {
+		pendingRequests.incrementAndGet();
+		
+		if(provider.getMaxSize() > 0 && activeConnections.get() >= provider.getMaxSize()) {
+			saturatedAcquisitions.incrementAndGet();
+		}
+	}
+	
+	void acquired(long nanos) {
+		pendingRequests.decrementAndGet();
+		int active = activeConnections.incrementAndGet();
+		acquisitions.incrementAndGet();
+		acquireNanos.addAndGet(nanos);
+		
+		for(int peak = peakActiveConnections.get(); active > peak && !peakActiveConnections.compareAndSet(peak, active); ) {
+			peak = peakActiveConnections.get();
+		}
+		
+		for(long max = maxAcquireNanos.get(); nanos > max && !maxAcquireNanos.compareAndSet(max, nanos); ) {
+			max = maxAcquireNanos.get();
+		}
+		
+		long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+		int bucket = 0;
+		
+		while(millis > BUCKETS[bucket]) {
+			bucket++;
+		}
+		
+		histogram.incrementAndGet(bucket);
+	}
+	
+	void acquireFailed() {
+		pendingRequests.decrementAndGet();
+		acquireFailures.incrementAndGet();
+	}
+	
+	void released() {
+		activeConnections.decrementAndGet();
+	}
+	
+	void leakWarning() {
+		leakWarnings.incrementAndGet();
+	}
+	
+}
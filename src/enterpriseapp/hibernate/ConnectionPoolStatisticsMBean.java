@@ -0,0 +1,47 @@
+package enterpriseapp.hibernate;
+
+/**
+ * Management interface of ConnectionPoolStatistics.
+ * 
+ * @author Alejandro Duarte
+ *
+ */
+public interface ConnectionPoolStatisticsMBean {
+	
+	String getProvider();
+	
+	int getMaxSize();
+	
+	int getActiveConnections();
+	
+	int getIdleConnections();
+	
+	int getCachedStatements();
+	
+	int getCheckedOutCachedStatements();
+	
+	int getConnectionsWithCachedStatements();
+	
+	int getPendingRequests();
+	
+	int getPeakActiveConnections();
+	
+	long getAcquisitions();
+	
+	long getSaturatedAcquisitions();
+	
+	long getAcquireFailures();
+	
+	double getAverageAcquireMillis();
+	
+	double getMaxAcquireMillis();
+	
+	long[] getAcquireMillisHistogram();
+	
+	String[] getAcquireMillisHistogramBuckets();
+	
+	long getLeakWarnings();
+	
+	void reset();
+	
+}
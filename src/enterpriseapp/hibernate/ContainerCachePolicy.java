@@ -0,0 +1,166 @@
+package enterpriseapp.hibernate;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.vaadin.data.Item;
+
+import enterpriseapp.ui.Constants;
+
+/**
+ * Cache settings of a CustomHbnContainer: size of the row buffers, size of the identifier to index map and size,
+ * expiry and value strength of the item cache. Default values are read from the "container.*" configuration
+ * properties. Use ContainerFactory.setCachePolicy(Class, ContainerCachePolicy) to set a different policy for an
+ * entity type. For example, small lookup tables can keep all their items with strong values and no expiry, while
+ * large transactional tables can use a small cache with weak values.
+ * 
+ * @author Alejandro Duarte
+ *
+ */
+public class ContainerCachePolicy {
+	
+	public enum Expiry { ACCESS, WRITE, NONE }
+	
+	public enum ValueStrength { WEAK, SOFT, STRONG }
+	
+	public static final int DEFAULT_ROW_BUFFER_SIZE = 100;
+	public static final int DEFAULT_ID_TO_INDEX_MAX_SIZE = 300;
+	
+	private int rowBufferSize = DEFAULT_ROW_BUFFER_SIZE;
+	private int idToIndexMaxSize = DEFAULT_ID_TO_INDEX_MAX_SIZE;
+	private long maximumSize = 10000;
+	private long maximumWeight = 0;
+	private Weigher<Object, Item> weigher;
+	private Expiry expiry = Expiry.ACCESS;
+	private long expirySeconds = 120;
+	private ValueStrength valueStrength = ValueStrength.WEAK;
+	
+	/**
+	 * @return A new policy initialized with the values of the "container.*" configuration properties.
+	 */
+	public static ContainerCachePolicy getDefault() {
+		ContainerCachePolicy policy = new ContainerCachePolicy();
+		policy.setRowBufferSize(Constants.containerRowBufferSize());
+		policy.setIdToIndexMaxSize(Constants.containerIdToIndexMaxSize());
+		policy.setMaximumSize(Constants.containerCacheMaximumSize());
+		policy.setMaximumWeight(Constants.containerCacheMaximumWeight());
+		policy.setExpiry(Expiry.valueOf(Constants.containerCacheExpiry().trim().toUpperCase()));
+		policy.setExpirySeconds(Constants.containerCacheExpirySeconds());
+		policy.setValueStrength(ValueStrength.valueOf(Constants.containerCacheValues().trim().toUpperCase()));
+		
+		return policy;
+	}
+	
+	/**
+	 * @return A CacheBuilder configured with this policy.
+	 */
+	@SuppressWarnings("unchecked")
+	public <K, V extends Item> CacheBuilder<K, V> newCacheBuilder() {
+		CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
+		
+		if(maximumWeight > 0) {
+			builder.maximumWeight(maximumWeight).weigher(getWeigher());
+		} else if(maximumSize >= 0) {
+			builder.maximumSize(maximumSize);
+		}
+		
+		if(expiry == Expiry.ACCESS) {
+			builder.expireAfterAccess(expirySeconds, TimeUnit.SECONDS);
+		} else if(expiry == Expiry.WRITE) {
+			builder.expireAfterWrite(expirySeconds, TimeUnit.SECONDS);
+		}
+		
+		if(valueStrength == ValueStrength.WEAK) {
+			builder.weakValues();
+		} else if(valueStrength == ValueStrength.SOFT) {
+			builder.softValues();
+		}
+		
+		return (CacheBuilder<K, V>) (CacheBuilder<?, ?>) builder;
+	}
+	
+	public int getRowBufferSize() {
+		return rowBufferSize;
+	}
+	
+	public void setRowBufferSize(int rowBufferSize) {
+		this.rowBufferSize = rowBufferSize;
+	}
+	
+	public int getIdToIndexMaxSize() {
+		return idToIndexMaxSize;
+	}
+	
+	public void setIdToIndexMaxSize(int idToIndexMaxSize) {
+		this.idToIndexMaxSize = idToIndexMaxSize;
+	}
+	
+	public long getMaximumSize() {
+		return maximumSize;
+	}
+	
+	/**
+	 * @param maximumSize Maximum number of cached items. A negative value means no limit.
+	 */
+	public void setMaximumSize(long maximumSize) {
+		this.maximumSize = maximumSize;
+	}
+	
+	public long getMaximumWeight() {
+		return maximumWeight;
+	}
+	
+	/**
+	 * @param maximumWeight Maximum total weight of the cached items (see setWeigher(Weigher)). When greater than 0 the
+	 * maximum size is ignored.
+	 */
+	public void setMaximumWeight(long maximumWeight) {
+		this.maximumWeight = maximumWeight;
+	}
+	
+	/**
+	 * @return The weigher used when a maximum weight is set. By default each item weighs its number of properties.
+	 */
+	public Weigher<Object, Item> getWeigher() {
+		if(weigher == null) {
+			weigher = new Weigher<Object, Item>() {
+				@Override
+				public int weigh(Object key, Item item) {
+					return 1 + item.getItemPropertyIds().size();
+				}
+			};
+		}
+		
+		return weigher;
+	}
+	
+	public void setWeigher(Weigher<Object, Item> weigher) {
+		this.weigher = weigher;
+	}
+	
+	public Expiry getExpiry() {
+		return expiry;
+	}
+	
+	public void setExpiry(Expiry expiry) {
+		this.expiry = expiry;
+	}
+	
+	public long getExpirySeconds() {
+		return expirySeconds;
+	}
+	
+	public void setExpirySeconds(long expirySeconds) {
+		this.expirySeconds = expirySeconds;
+	}
+	
+	public ValueStrength getValueStrength() {
+		return valueStrength;
+	}
+	
+	public void setValueStrength(ValueStrength valueStrength) {
+		this.valueStrength = valueStrength;
+	}
+	
+}
@@ -1,5 +1,14 @@
 package enterpriseapp.hibernate;
 
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hibernate.Session;
+
+import enterpriseapp.hibernate.dto.AuditLog;
+import enterpriseapp.ui.Constants;
 
 /**
  * This class allows you to get the container for a specified class. Normally, you extend this class to create a
@@ -14,6 +23,13 @@ package enterpriseapp.hibernate;
 public abstract class ContainerFactory {
 	
 	private static ContainerFactory containerFactory;
+	
+	private static final Map<Class<?>, ContainerCachePolicy> cachePolicies = new ConcurrentHashMap<Class<?>, ContainerCachePolicy>();
+	
+	@SuppressWarnings("rawtypes")
+	private static final ThreadLocal<Map<Class<?>, DefaultHbnContainer>> sessionContainers = new ThreadLocal<Map<Class<?>, DefaultHbnContainer>>();
+	
+	private static final ThreadLocal<WeakReference<Session>> containersSession = new ThreadLocal<WeakReference<Session>>();
 
 	protected ContainerFactory() {}
 	
@@ -36,11 +52,34 @@ public abstract class ContainerFactory {
 		return new ContainerFactory() {
 			@SuppressWarnings({ "rawtypes", "unchecked" })
 			public DefaultHbnContainer getContainer(Class<?> clazz) {
-				return new DefaultHbnContainer(clazz);
+				return AuditLog.class.isAssignableFrom(clazz) && !clazz.isInterface() ? new AuditLogContainer(clazz) : new DefaultHbnContainer(clazz);
 			}
 		};
 	}
 	
+	/**
+	 * Sets the cache policy used by new containers of the specified class.
+	 * @param clazz Entity class.
+	 * @param cachePolicy Cache policy, or null to use the default policy.
+	 */
+	public static void setCachePolicy(Class<?> clazz, ContainerCachePolicy cachePolicy) {
+		if(cachePolicy == null) {
+			cachePolicies.remove(clazz);
+		} else {
+			cachePolicies.put(clazz, cachePolicy);
+		}
+	}
+	
+	/**
+	 * @param clazz Entity class.
+	 * @return The cache policy set for the specified class, or the default policy read from the configuration
+	 * properties (see ContainerCachePolicy.getDefault()).
+	 */
+	public static ContainerCachePolicy getCachePolicy(Class<?> clazz) {
+		ContainerCachePolicy cachePolicy = cachePolicies.get(clazz);
+		return cachePolicy == null ? ContainerCachePolicy.getDefault() : cachePolicy;
+	}
+	
 	/**
 	 * Override this to return a Container for the specified class.
 	 * @param clazz Entity class
@@ -49,4 +88,48 @@ public abstract class ContainerFactory {
 	@SuppressWarnings("rawtypes")
 	public abstract DefaultHbnContainer getContainer(Class<?> clazz);
 	
+	/**
+	 * Returns a container for short-lived work inside the current Hibernate session, such as loading an entity or
+	 * adding an item. When the "container.factory.pooled" property is true, the container returned by
+	 * getContainer(Class) is reused for the specified class until the current session changes; otherwise a new
+	 * container is returned each time. Don't use it for containers bound to UI components, since their filters and
+	 * sorting would be shared.
+	 * @param clazz Entity class
+	 * @return A container for the specified class.
+	 */
+	@SuppressWarnings("rawtypes")
+	public DefaultHbnContainer getSessionContainer(Class<?> clazz) {
+		if(!Constants.containerFactoryPooled()) {
+			return getContainer(clazz);
+		}
+		
+		Session session = Db.getCurrentSession();
+		WeakReference<Session> sessionReference = containersSession.get();
+		Map<Class<?>, DefaultHbnContainer> containers = sessionContainers.get();
+		
+		if(containers == null || sessionReference == null || sessionReference.get() != session) {
+			containers = new HashMap<Class<?>, DefaultHbnContainer>();
+			sessionContainers.set(containers);
+			containersSession.set(new WeakReference<Session>(session));
+		}
+		
+		DefaultHbnContainer container = containers.get(clazz);
+		
+		if(container == null) {
+			container = getContainer(clazz);
+			containers.put(clazz, container);
+		}
+		
+		return container;
+	}
+	
+	/**
+	 * Discards the containers returned by getSessionContainer(Class) in the current thread (at the end of each
+	 * request, see SessionInterceptor), so pooled threads don't keep them and their items after the request.
+	 */
+	public static void clearSessionContainers() {
+		sessionContainers.remove();
+		containersSession.remove();
+	}
+	
 }
@@ -0,0 +1,134 @@
+package enterpriseapp.hibernate;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.type.ComponentType;
+import org.hibernate.type.Type;
+
+/**
+ * Immutable metadata shared by all the CustomHbnContainer instances of an entity type: Hibernate class metadata,
+ * sortable property ids and parent property name. Prototypes are computed once per entity type and session factory
+ * so creating a container only allocates its own state (filters, sorting, buffers and the lazily built item cache).
+ * 
+ * @author Alejandro Duarte
+ *
+ * @param <T> Entity type.
+ */
+public class ContainerPrototype<T> {
+	
+	/**
+	 * Prototypes reference their session factory (also through the class metadata), so they are softly referenced to
+	 * let the weak keys be collected when a session factory is discarded.
+	 */
+	private static final Map<SessionFactory, Map<Class<?>, SoftReference<ContainerPrototype<?>>>> prototypes = new WeakHashMap<SessionFactory, Map<Class<?>, SoftReference<ContainerPrototype<?>>>>();
+	
+	private final Class<T> entityType;
+	private final SessionFactory sessionFactory;
+	private final ClassMetadata classMetadata;
+	private final List<String> sortablePropertyIds;
+	private final String parentPropertyName;
+	
+	protected ContainerPrototype(Class<T> entityType, SessionFactory sessionFactory) {
+		this.entityType = entityType;
+		this.sessionFactory = sessionFactory;
+		classMetadata = sessionFactory.getClassMetadata(entityType);
+		
+		ArrayList<String> propertyIds = new ArrayList<String>(Arrays.asList(classMetadata.getPropertyNames()));
+		Type identifierType = classMetadata.getIdentifierType();
+		
+		if(identifierType.isComponentType()) {
+			String[] keyPropertyNames = ((ComponentType) identifierType).getPropertyNames();
+			
+			if(keyPropertyNames != null) {
+				propertyIds.addAll(Arrays.asList(keyPropertyNames));
+			}
+		}
+		
+		sortablePropertyIds = Collections.unmodifiableList(propertyIds);
+		parentPropertyName = findParentPropertyName();
+	}
+	
+	/**
+	 * @param entityType Entity class.
+	 * @param sessionFactory Session factory mapping the entity class.
+	 * @return The prototype of the given entity type, created on first use.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> ContainerPrototype<T> get(Class<T> entityType, SessionFactory sessionFactory) {
+		synchronized(prototypes) {
+			Map<Class<?>, SoftReference<ContainerPrototype<?>>> factoryPrototypes = prototypes.get(sessionFactory);
+			
+			if(factoryPrototypes == null) {
+				factoryPrototypes = new HashMap<Class<?>, SoftReference<ContainerPrototype<?>>>();
+				prototypes.put(sessionFactory, factoryPrototypes);
+			}
+			
+			SoftReference<ContainerPrototype<?>> reference = factoryPrototypes.get(entityType);
+			ContainerPrototype<T> prototype = reference == null ? null : (ContainerPrototype<T>) reference.get();
+			
+			if(prototype == null) {
+				prototype = new ContainerPrototype<T>(entityType, sessionFactory);
+				factoryPrototypes.put(entityType, new SoftReference<ContainerPrototype<?>>(prototype));
+			}
+			
+			return prototype;
+		}
+	}
+	
+	/**
+	 * Discards the prototypes of the given session factory (when it is closed).
+	 */
+	public static void clear(SessionFactory sessionFactory) {
+		synchronized(prototypes) {
+			prototypes.remove(sessionFactory);
+		}
+	}
+	
+	private String findParentPropertyName() {
+		String[] propertyNames = classMetadata.getPropertyNames();
+		
+		for(int i = 0; i < propertyNames.length; ++i) {
+			if(entityType.getName().equals(classMetadata.getPropertyType(propertyNames[i]).getName())) {
+				return propertyNames[i];
+			}
+		}
+		
+		return null;
+	}
+	
+	public Class<T> getEntityType() {
+		return entityType;
+	}
+	
+	public SessionFactory getSessionFactory() {
+		return sessionFactory;
+	}
+	
+	public ClassMetadata getClassMetadata() {
+		return classMetadata;
+	}
+	
+	/**
+	 * @return Unmodifiable list of the mapped property names followed by the embedded key property names.
+	 */
+	public List<String> getSortablePropertyIds() {
+		return sortablePropertyIds;
+	}
+	
+	/**
+	 * @return Name of the first property whose type is the entity type itself, or null if there isn't any.
+	 */
+	public String getParentPropertyName() {
+		return parentPropertyName;
+	}
+	
+}
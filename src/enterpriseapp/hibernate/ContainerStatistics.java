@@ -0,0 +1,276 @@
+package enterpriseapp.hibernate;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.CacheStats;
+
+import enterpriseapp.Utils;
+
+/**
+ * Counters of the caches used by a CustomHbnContainer: the item cache, the row buffers, the identifier to index map
+ * and the memoized size. Each container has its own statistics (see CustomHbnContainer.getStatistics()) which are
+ * also added to the statistics of its entity type. The statistics of each entity type are registered as a JMX MBean
+ * named "enterpriseapp:type=ContainerStatistics,entity=&lt;entity class name&gt;". All the counters grow
+ * monotonically (until reset): item cache requests, misses, loads and evictions are counted as they happen (see
+ * CustomHbnContainer.createCache()), so they are kept when containers are garbage collected.
+ * 
+ * @author Alejandro Duarte
+ *
+ */
+public class ContainerStatistics implements ContainerStatisticsMBean {
+	
+	private static final Map<Class<?>, ContainerStatistics> entityTypeStatistics = new HashMap<Class<?>, ContainerStatistics>();
+	
+	private final Class<?> entityType;
+	private final ContainerStatistics parent;
+	private final Set<CustomHbnContainer<?>> containers = Collections.newSetFromMap(new WeakHashMap<CustomHbnContainer<?>, Boolean>());
+	
+	private final AtomicLong rowBufferHits = new AtomicLong();
+	private final AtomicLong rowBufferReloads = new AtomicLong();
+	private final AtomicLong idToIndexHits = new AtomicLong();
+	private final AtomicLong idToIndexMisses = new AtomicLong();
+	private final AtomicLong rankQueries = new AtomicLong();
+	private final AtomicLong slowIndexOfIdFallbacks = new AtomicLong();
+	private final AtomicLong sizeQueries = new AtomicLong();
+	private final AtomicLong sizeCacheHits = new AtomicLong();
+	private final AtomicLong cacheRequests = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	private final AtomicLong cacheLoadSuccesses = new AtomicLong();
+	private final AtomicLong cacheLoadExceptions = new AtomicLong();
+	private final AtomicLong cacheTotalLoadTime = new AtomicLong();
+	private final AtomicLong cacheEvictions = new AtomicLong();
+	
+	protected ContainerStatistics(Class<?> entityType, ContainerStatistics parent) {
+		this.entityType = entityType;
+		this.parent = parent;
+	}
+	
+	/**
+	 * Creates the statistics of a new container.
+	 * @param container Container whose item cache statistics will be reported.
+	 * @return A ContainerStatistics instance whose counters are also added to the entity type statistics.
+	 */
+	public static ContainerStatistics forContainer(CustomHbnContainer<?> container) {
+		ContainerStatistics entityStatistics = forEntityType(container.entityType);
+		ContainerStatistics statistics = new ContainerStatistics(container.entityType, entityStatistics);
+		statistics.addContainer(container);
+		entityStatistics.addContainer(container);
+		
+		return statistics;
+	}
+	
+	/**
+	 * @param entityType Entity class.
+	 * @return Aggregated statistics of all the containers of the given entity type.
+	 */
+	public static synchronized ContainerStatistics forEntityType(Class<?> entityType) {
+		ContainerStatistics statistics = entityTypeStatistics.get(entityType);
+		
+		if(statistics == null) {
+			statistics = new ContainerStatistics(entityType, null);
+			entityTypeStatistics.put(entityType, statistics);
+			Utils.registerMBean(statistics, "enterpriseapp:type=ContainerStatistics,entity=" + entityType.getName());
+		}
+		
+		return statistics;
+	}
+	
+	/**
+	 * Unregisters the MBeans of all the entity types (when the application stops).
+	 */
+	public static synchronized void clear() {
+		for(Class<?> entityType : entityTypeStatistics.keySet()) {
+			Utils.unregisterMBean("enterpriseapp:type=ContainerStatistics,entity=" + entityType.getName());
+		}
+		
+		entityTypeStatistics.clear();
+	}
+	
+	/**
+	 * Invalidates the item caches of all the containers (for example, after the database is restored).
+	 */
+	public static synchronized void invalidateCaches() {
+		for(ContainerStatistics statistics : entityTypeStatistics.values()) {
+			statistics.invalidateContainerCaches();
+		}
+	}
+	
+	private synchronized void invalidateContainerCaches() {
+		for(CustomHbnContainer<?> container : containers) {
+			if(container.cache != null) {
+				container.cache.invalidateAll();
+			}
+		}
+	}
+	
+	private synchronized void addContainer(CustomHbnContainer<?> container) {
+		containers.add(container);
+	}
+	
+	/**
+	 * @return Item cache statistics of the containers (since the last reset).
+	 */
+	public CacheStats getCacheStats() {
+		long misses = cacheMisses.get();
+		long hits = Math.max(cacheRequests.get() - misses, 0);
+		
+		return new CacheStats(hits, misses, cacheLoadSuccesses.get(), cacheLoadExceptions.get(), cacheTotalLoadTime.get(), cacheEvictions.get());
+	}
+	
+	public String getEntityType() {
+		return entityType.getName();
+	}
+	
+	public long getCacheHitCount() {
+		return getCacheStats().hitCount();
+	}
+	
+	public long getCacheMissCount() {
+		return getCacheStats().missCount();
+	}
+	
+	public double getCacheHitRate() {
+		return getCacheStats().hitRate();
+	}
+	
+	public long getCacheLoadCount() {
+		return getCacheStats().loadCount();
+	}
+	
+	public double getCacheAverageLoadPenalty() {
+		return getCacheStats().averageLoadPenalty();
+	}
+	
+	public long getCacheTotalLoadTime() {
+		return getCacheStats().totalLoadTime();
+	}
+	
+	public long getCacheEvictionCount() {
+		return getCacheStats().evictionCount();
+	}
+	
+	public long getRowBufferHits() {
+		return rowBufferHits.get();
+	}
+	
+	public long getRowBufferReloads() {
+		return rowBufferReloads.get();
+	}
+	
+	public double getRowBufferHitRate() {
+		long hits = rowBufferHits.get();
+		long requests = hits + rowBufferReloads.get();
+		return requests == 0 ? 1.0 : (double) hits / requests;
+	}
+	
+	public long getIdToIndexHits() {
+		return idToIndexHits.get();
+	}
+	
+	public long getIdToIndexMisses() {
+		return idToIndexMisses.get();
+	}
+	
+	public long getRankQueries() {
+		return rankQueries.get();
+	}
+	
+	public long getSlowIndexOfIdFallbacks() {
+		return slowIndexOfIdFallbacks.get();
+	}
+	
+	public long getSizeQueries() {
+		return sizeQueries.get();
+	}
+	
+	public long getSizeCacheHits() {
+		return sizeCacheHits.get();
+	}
+	
+	/**
+	 * Sets all the counters to zero.
+	 */
+	public void reset() {
+		cacheRequests.set(0);
+		cacheMisses.set(0);
+		cacheLoadSuccesses.set(0);
+		cacheLoadExceptions.set(0);
+		cacheTotalLoadTime.set(0);
+		cacheEvictions.set(0);
+		rowBufferHits.set(0);
+		rowBufferReloads.set(0);
+		idToIndexHits.set(0);
+		idToIndexMisses.set(0);
+		rankQueries.set(0);
+		slowIndexOfIdFallbacks.set(0);
+		sizeQueries.set(0);
+		sizeCacheHits.set(0);
+	}
+	
+	public void rowBufferHit() {
+		rowBufferHits.incrementAndGet();
+		if(parent != null) parent.rowBufferHit();
+	}
+	
+	public void rowBufferReload() {
+		rowBufferReloads.incrementAndGet();
+		if(parent != null) parent.rowBufferReload();
+	}
+	
+	public void idToIndexHit() {
+		idToIndexHits.incrementAndGet();
+		if(parent != null) parent.idToIndexHit();
+	}
+	
+	public void idToIndexMiss() {
+		idToIndexMisses.incrementAndGet();
+		if(parent != null) parent.idToIndexMiss();
+	}
+	
+	public void rankQuery() {
+		rankQueries.incrementAndGet();
+		if(parent != null) parent.rankQuery();
+	}
+	
+	public void slowIndexOfIdFallback() {
+		slowIndexOfIdFallbacks.incrementAndGet();
+		if(parent != null) parent.slowIndexOfIdFallback();
+	}
+	
+	public void sizeQuery() {
+		sizeQueries.incrementAndGet();
+		if(parent != null) parent.sizeQuery();
+	}
+	
+	public void sizeCacheHit() {
+		sizeCacheHits.incrementAndGet();
+		if(parent != null) parent.sizeCacheHit();
+	}
+	
+	public void cacheRequests(long count) {
+		cacheRequests.addAndGet(count);
+		if(parent != null) parent.cacheRequests(count);
+	}
+	
+	public void cacheMisses(long count) {
+		cacheMisses.addAndGet(count);
+		if(parent != null) parent.cacheMisses(count);
+	}
+	
+	public void cacheLoad(long nanos, boolean success) {
+		(success ? cacheLoadSuccesses : cacheLoadExceptions).incrementAndGet();
+		cacheTotalLoadTime.addAndGet(nanos);
+		if(parent != null) parent.cacheLoad(nanos, success);
+	}
+	
+	public void cacheEviction() {
+		cacheEvictions.incrementAndGet();
+		if(parent != null) parent.cacheEviction();
+	}
+	
+}
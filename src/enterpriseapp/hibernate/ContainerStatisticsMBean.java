@@ -0,0 +1,47 @@
+package enterpriseapp.hibernate;
+
+/**
+ * Management interface of ContainerStatistics.
+ * 
+ * @author Alejandro Duarte
+ *
+ */
+public interface ContainerStatisticsMBean {
+	
+	String getEntityType();
+	
+	long getCacheHitCount();
+	
+	long getCacheMissCount();
+	
+	double getCacheHitRate();
+	
+	long getCacheLoadCount();
+	
+	double getCacheAverageLoadPenalty();
+	
+	long getCacheTotalLoadTime();
+	
+	long getCacheEvictionCount();
+	
+	long getRowBufferHits();
+	
+	long getRowBufferReloads();
+	
+	double getRowBufferHitRate();
+	
+	long getIdToIndexHits();
+	
+	long getIdToIndexMisses();
+	
+	long getRankQueries();
+	
+	long getSlowIndexOfIdFallbacks();
+	
+	long getSizeQueries();
+	
+	long getSizeCacheHits();
+	
+	void reset();
+	
+}
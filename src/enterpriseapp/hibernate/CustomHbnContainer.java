@@ -4,31 +4,41 @@ import java.io.Serializable;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.ParameterizedType;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
 
 import org.hibernate.Criteria;
 import org.hibernate.EntityMode;
 import org.hibernate.HibernateException;
 import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Conjunction;
 import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.Disjunction;
 import org.hibernate.criterion.MatchMode;
 import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.dialect.DB2Dialect;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.Oracle8iDialect;
+import org.hibernate.dialect.PostgreSQL81Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
 import org.hibernate.engine.spi.SessionImplementor;
 import org.hibernate.metadata.ClassMetadata;
 import org.hibernate.type.ComponentType;
@@ -36,7 +46,12 @@ import org.hibernate.type.Type;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.ForwardingLoadingCache;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import com.vaadin.data.Container;
 import com.vaadin.data.Item;
 import com.vaadin.data.Property;
@@ -59,23 +74,37 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 	protected ClassMetadata classMetadata;
 	protected Class<T> entityType;
 	protected String parentPropertyName = null;
-	protected static final int ROW_BUF_SIZE = 100;
-	protected static final int ID_TO_INDEX_MAX_SIZE = 300;
+	protected static final int LOAD_ALL_BATCH_SIZE = 500;
+	protected final ContainerCachePolicy cachePolicy;
+	protected final int rowBufferSize;
+	protected final int idToIndexMaxSize;
 	protected boolean normalOrder = true;
+	protected boolean keysetPagination = false;
 	protected List<T> ascRowBuffer;
 	protected List<T> descRowBuffer;
+	protected Object[] ascRowBufferLastKey;
+	protected Object[] descRowBufferLastKey;
 	protected Object lastId;
 	protected Object firstId;
 	protected List<T> indexRowBuffer;
 	protected int indexRowBufferFirstIndex;
-	protected final Map<Object, Integer> idToIndex = new LinkedHashMap<Object, Integer>();
+	protected final IdIndexMap idToIndex;
 	protected boolean[] orderAscendings;
 	protected Object[] orderPropertyIds;
 	protected Integer size;
+	protected long sizeTimestamp;
+	protected long sizeStalenessWindow = 0;
+	protected int scrollFetchSize;
+	protected boolean hierarchyIndexEnabled = true;
+	protected Map<Object, List<Object>> childrenIndex;
+	protected Map<Object, Object> parentIndex;
 	protected LinkedList<ItemSetChangeListener> itemSetChangeListeners;
 	protected HashSet<ContainerFilter> filters;
 	protected final Map<String, Class<?>> addedProperties = new HashMap<String, Class<?>>();
-	protected final LoadingCache<Object, EntityItem<T>> cache;
+	protected LoadingCache<Object, EntityItem<T>> cache;
+	protected final ContainerPrototype<T> prototype;
+	protected List<EntityItem<T>> prefetchedItems;
+	protected final ContainerStatistics statistics;
 	protected final HashMap<Object, Boolean> embeddedPropertiesCache = new HashMap<Object, Boolean>();
 	
 	public class StringContainerFilter extends ContainerFilter
@@ -102,6 +131,84 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 		}
 	}
 	
+	/**
+	 * Collection of the identifiers of the visible items in the current order. Identifiers are not held in memory: each
+	 * iteration scrolls through a forward-only query that fetches scrollFetchSize rows at a time. The scroll is closed
+	 * when the iteration reaches the end; iterations abandoned before the end are closed together with the session.
+	 */
+	protected class ScrollableItemIds extends AbstractCollection<Object>
+	{
+		@Override
+		public Iterator<Object> iterator()
+		{
+			logger.executionTrace();
+
+			final ScrollableResults results = getCriteria()
+					.setProjection(Projections.id())
+					.setFetchSize(scrollFetchSize)
+					.scroll(ScrollMode.FORWARD_ONLY);
+
+			return new Iterator<Object>()
+			{
+				protected boolean fetched;
+				protected boolean available;
+
+				@Override
+				public boolean hasNext()
+				{
+					if (!fetched)
+					{
+						available = results.next();
+						fetched = true;
+
+						if (!available)
+							results.close();
+					}
+
+					return available;
+				}
+
+				@Override
+				public Object next()
+				{
+					if (!hasNext())
+						throw new NoSuchElementException();
+
+					fetched = false;
+					return results.get(0);
+				}
+
+				@Override
+				public void remove()
+				{
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		@Override
+		public int size()
+		{
+			return CustomHbnContainer.this.size();
+		}
+
+		@Override
+		public boolean contains(Object entityId)
+		{
+			logger.executionTrace();
+
+			if (entityId == null)
+				return false;
+
+			final Number count = (Number) getBaseCriteria()
+					.add(Restrictions.idEq(entityId))
+					.setProjection(Projections.rowCount())
+					.uniqueResult();
+
+			return count.intValue() > 0;
+		}
+	}
+
 	/**
 	 * Item wrappping a Hibernate mapped entity object. EntityItems are generally instantiated automatically by
 	 * HbnContainer.
@@ -129,7 +236,25 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 			logger.executionTrace();
 
 			pojo = (T) sessionFactory.getCurrentSession().get(entityType, id);
-			// add non-hibernate mapped container properties
+			addContainerProperties();
+		}
+
+		/**
+		 * Creates an item wrapping an entity already loaded in the current session. No query is issued.
+		 */
+		public EntityItem(T pojo)
+		{
+			logger.executionTrace();
+
+			this.pojo = pojo;
+			addContainerProperties();
+		}
+
+		/**
+		 * Adds non-hibernate mapped container properties.
+		 */
+		protected void addContainerProperties()
+		{
 			for (String propertyId : addedProperties.keySet())
 			{
 				addItemProperty(propertyId, new MethodProperty<Object>(pojo, propertyId));
@@ -230,7 +355,13 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 				final SessionImplementor sessionImplementor = (SessionImplementor) session;
 
 				if (!sessionFactory.getCurrentSession().contains(pojo))
-					pojo = (T) session.get(entityType, (Serializable) getIdForPojo(pojo));
+				{
+					// entities not found (such as archived ones) are read as they were loaded
+					final T attached = (T) session.get(entityType, (Serializable) getIdForPojo(pojo));
+
+					if (attached != null)
+						pojo = attached;
+				}
 
 				if (propertyInEmbeddedKey(propertyName))
 				{
@@ -293,7 +424,7 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 			{
 				logger.executionTrace();
 
-				return false;
+				return isReadOnlyEntity(pojo);
 			}
 
 			/**
@@ -322,6 +453,9 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 			{
 				logger.executionTrace();
 
+				if (isReadOnly())
+					throw new ReadOnlyException();
+
 				try
 				{
 					final Session session = sessionFactory.getCurrentSession();
@@ -633,37 +767,195 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 	}
 
 	/**
-	 * Constructor creates a new instance of HbnContainer.
+	 * Constructor creates a new instance of HbnContainer using the default cache policy (see
+	 * {@link ContainerCachePolicy#getDefault()}).
 	 */
 	public CustomHbnContainer(Class<T> entityType, SessionFactory sessionFactory)
+	{
+		this(entityType, sessionFactory, ContainerCachePolicy.getDefault());
+	}
+
+	/**
+	 * Constructor creates a new instance of HbnContainer using the given cache policy.
+	 */
+	public CustomHbnContainer(Class<T> entityType, SessionFactory sessionFactory, ContainerCachePolicy cachePolicy)
+	{
+		this(ContainerPrototype.get(entityType, sessionFactory), cachePolicy);
+	}
+
+	/**
+	 * Constructor creates a new instance of HbnContainer sharing the metadata of the given prototype. The item cache
+	 * is built the first time it is used (see {@link #getCache()}).
+	 */
+	public CustomHbnContainer(ContainerPrototype<T> prototype, ContainerCachePolicy cachePolicy)
 	{
 		logger.executionTrace();
 
-		this.entityType = entityType;
-		this.sessionFactory = sessionFactory;
-		this.classMetadata = sessionFactory.getClassMetadata(entityType);
+		this.prototype = prototype;
+		this.entityType = prototype.getEntityType();
+		this.sessionFactory = prototype.getSessionFactory();
+		this.classMetadata = prototype.getClassMetadata();
+		this.cachePolicy = cachePolicy;
+		this.rowBufferSize = cachePolicy.getRowBufferSize();
+		this.idToIndexMaxSize = cachePolicy.getIdToIndexMaxSize();
+		this.scrollFetchSize = rowBufferSize;
+		// must hold at least a full row buffer, which is mapped at once by setRowBuffer
+		this.idToIndex = new IdIndexMap(Math.max(idToIndexMaxSize, rowBufferSize));
+		this.statistics = ContainerStatistics.forContainer(this);
+	}
+
+	/**
+	 * Gets the item cache of this container, building it if this is the first time it is used.
+	 */
+	public LoadingCache<Object, EntityItem<T>> getCache()
+	{
+		if (cache == null)
+			cache = createCache();
+
+		return cache;
+	}
+
+	/**
+	 * Item cache counting its requests and misses in the statistics of the container as they happen (loads and
+	 * evictions are counted by the cache loader and the removal listener, see {@link #createCache()}). A refresh counts
+	 * as a request and a miss.
+	 */
+	protected class CountingCache extends ForwardingLoadingCache.SimpleForwardingLoadingCache<Object, EntityItem<T>>
+	{
+		public CountingCache(LoadingCache<Object, EntityItem<T>> delegate)
+		{
+			super(delegate);
+		}
+
+		@Override
+		public EntityItem<T> get(Object entityId) throws ExecutionException
+		{
+			statistics.cacheRequests(1);
+			return super.get(entityId);
+		}
+
+		@Override
+		public EntityItem<T> getUnchecked(Object entityId)
+		{
+			statistics.cacheRequests(1);
+			return super.getUnchecked(entityId);
+		}
+
+		@Override
+		public ImmutableMap<Object, EntityItem<T>> getAll(Iterable<? extends Object> entityIds) throws ExecutionException
+		{
+			statistics.cacheRequests(Iterables.size(entityIds));
+			return super.getAll(entityIds);
+		}
+
+		@Override
+		public EntityItem<T> getIfPresent(Object entityId)
+		{
+			final EntityItem<T> item = super.getIfPresent(entityId);
+			statistics.cacheRequests(1);
+
+			if (item == null)
+				statistics.cacheMisses(1);
+
+			return item;
+		}
+
+		@Override
+		public ImmutableMap<Object, EntityItem<T>> getAllPresent(Iterable<?> entityIds)
+		{
+			final ImmutableMap<Object, EntityItem<T>> items = super.getAllPresent(entityIds);
+			final int requests = Iterables.size(entityIds);
+			statistics.cacheRequests(requests);
+			statistics.cacheMisses(requests - items.size());
+			return items;
+		}
+
+		@Override
+		public void refresh(Object entityId)
+		{
+			statistics.cacheRequests(1);
+			super.refresh(entityId);
+		}
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that builds the item cache accordingly to the cache policy. Items
+	 * are never shared between containers; entities read by several containers can be cached by the second-level cache
+	 * of the session factory (see the "db.cache.*" properties).
+	 */
+	protected LoadingCache<Object, EntityItem<T>> createCache()
+	{
+		logger.executionTrace();
 
-		this.cache = CacheBuilder.newBuilder()
-				.expireAfterAccess(2, TimeUnit.MINUTES)
-				.maximumSize(10000)
-				.recordStats()
-				.weakValues()
-				.build(new CacheLoader<Object, EntityItem<T>>()
+		final CacheBuilder<Object, EntityItem<T>> builder = cachePolicy.<Object, EntityItem<T>> newCacheBuilder()
+				.removalListener(new RemovalListener<Object, EntityItem<T>>()
 				{
 					@Override
-					public EntityItem<T> load(Object entityId) throws Exception
+					public void onRemoval(RemovalNotification<Object, EntityItem<T>> notification)
 					{
-						try
-						{
-							return loadEntity((Serializable) entityId);
-						}
-						catch (Exception e)
-						{
-							logger.error(e);
-							throw e;
-						}
+						if (notification.wasEvicted())
+							statistics.cacheEviction();
 					}
 				});
+
+		return new CountingCache(builder.build(new CacheLoader<Object, EntityItem<T>>()
+		{
+			@Override
+			public EntityItem<T> load(Object entityId) throws Exception
+			{
+				final long start = System.nanoTime();
+				boolean loaded = false;
+				statistics.cacheMisses(1);
+
+				try
+				{
+					final EntityItem<T> entity = loadEntity((Serializable) entityId);
+					loaded = (entity != null);
+					return entity;
+				}
+				catch (Exception e)
+				{
+					logger.error(e);
+					throw e;
+				}
+				finally
+				{
+					statistics.cacheLoad(System.nanoTime() - start, loaded);
+				}
+			}
+
+			@Override
+			public Map<Object, EntityItem<T>> loadAll(Iterable<? extends Object> entityIds) throws Exception
+			{
+				final long start = System.nanoTime();
+				boolean loaded = false;
+				statistics.cacheMisses(Iterables.size(entityIds));
+
+				try
+				{
+					final Map<Object, EntityItem<T>> entities = loadEntities(entityIds);
+					loaded = true;
+					return entities;
+				}
+				catch (Exception e)
+				{
+					logger.error(e);
+					throw e;
+				}
+				finally
+				{
+					statistics.cacheLoad(System.nanoTime() - start, loaded);
+				}
+			}
+		}));
+	}
+
+	/**
+	 * @return Whether the properties of the item wrapping the given entity are read-only.
+	 */
+	protected boolean isReadOnlyEntity(Object pojo)
+	{
+		return false;
 	}
 
 	/**
@@ -682,6 +974,100 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 		return entity;
 	}
 
+	/**
+	 * This method is used to load several entities from the database using "where id in (...)" queries instead of one
+	 * query per entity. This method is called automatically by the cache loader when several entities are requested
+	 * at once (see {@link #prefetchItems(Collection)}).
+	 */
+	@SuppressWarnings("unchecked")
+	protected Map<Object, EntityItem<T>> loadEntities(Iterable<? extends Object> entityIds)
+	{
+		logger.executionTrace();
+
+		final Map<Object, EntityItem<T>> entities = new HashMap<Object, EntityItem<T>>();
+		final List<Object> batch = new ArrayList<Object>();
+
+		for (Iterator<? extends Object> iterator = entityIds.iterator(); iterator.hasNext();)
+		{
+			batch.add(iterator.next());
+
+			if (batch.size() == LOAD_ALL_BATCH_SIZE || !iterator.hasNext())
+			{
+				if (!classMetadata.getIdentifierType().isComponentType())
+				{
+					final List<T> pojos = sessionFactory.getCurrentSession()
+							.createCriteria(entityType)
+							.add(Restrictions.in(getIdPropertyName(), batch))
+							.list();
+
+					for (T pojo : pojos)
+					{
+						entities.put(getIdForPojo(pojo), new EntityItem<T>(pojo));
+					}
+				}
+
+				batch.clear();
+			}
+		}
+
+		// composite identifiers and entities not found
+		for (Object entityId : entityIds)
+		{
+			if (!entities.containsKey(entityId))
+				entities.put(entityId, loadEntity((Serializable) entityId));
+		}
+
+		return entities;
+	}
+
+	/**
+	 * Loads into the cache the items with the given identifiers that are not already cached, using a single query for
+	 * all of them.
+	 */
+	public void prefetchItems(Collection<?> entityIds)
+	{
+		logger.executionTrace();
+
+		try
+		{
+			if (!entityIds.isEmpty())
+				prefetchedItems = new ArrayList<EntityItem<T>>(getCache().getAll(entityIds).values());
+		}
+		catch (ExecutionException e)
+		{
+			logger.error(e);
+		}
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that seeds the cache with items wrapping the given pojos, which
+	 * must be loaded in the current session. Used with the results of the row buffer queries so the rows can be
+	 * rendered without loading each entity again. The items are also strongly referenced until the next prefetch so
+	 * they are not collected before being used.
+	 */
+	protected void prefetch(List<T> pojos)
+	{
+		logger.executionTrace();
+
+		final List<EntityItem<T>> items = new ArrayList<EntityItem<T>>(pojos.size());
+
+		for (T pojo : pojos)
+		{
+			final Object entityId = getIdForPojo(pojo);
+			EntityItem<T> item = getCache().getIfPresent(entityId);
+
+			if (item == null)
+			{
+				item = new EntityItem<T>(pojo);
+				getCache().put(entityId, item);
+			}
+
+			items.add(item);
+		}
+
+		prefetchedItems = items;
+	}
+
 	/**
 	 * This method is used to save an entity to the database and in the process it will fire an item set change event.
 	 */
@@ -692,6 +1078,7 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 		final Session session = sessionFactory.getCurrentSession();
 		final Object entityId = session.save(entity);
 
+		invalidateSize();
 		clearInternalCache();
 		fireItemSetChange();
 
@@ -708,11 +1095,12 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 
 		final Session session = sessionFactory.getCurrentSession();
 		session.update(entity);
+		invalidateHierarchyIndex();
 
 		final Object entityId = getIdForPojo(entity);
-		final EntityItem<T> cachedEntity = cache.getIfPresent(entityId);
+		final EntityItem<T> cachedEntity = getCache().getIfPresent(entityId);
 
-		cache.refresh(entityId);
+		getCache().refresh(entityId);
 
 		if (cachedEntity != null)
 		{
@@ -806,7 +1194,7 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 
 		try
 		{
-			final EntityItem<T> entity = cache.get(entityId);
+			final EntityItem<T> entity = getCache().get(entityId);
 			return (entity != null);
 		}
 		catch (Exception e)
@@ -827,7 +1215,7 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 
 		try
 		{
-			EntityItem<?> entity = cache.get(entityId);
+			EntityItem<?> entity = getCache().get(entityId);
 			Property<?> property = entity.getItemProperty(propertyId);
 			return property;
 		}
@@ -889,7 +1277,7 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 
 		try
 		{
-			return cache.get(entityId);
+			return getCache().get(entityId);
 		}
 		catch (ExecutionException e)
 		{
@@ -904,18 +1292,15 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 	 * method should follow that order. If the container is Container.Sortable, the items should be in the sorted order.
 	 * Calling this method for large lazy containers can be an expensive operation and should be avoided when practical.
 	 * 
-	 * Create an optimized query to return only identifiers. Note that this method does not scale well for large
-	 * database. At least Table is optimized so that it does not call this method.
+	 * The returned collection scrolls through an optimized query returning only identifiers each time it is iterated,
+	 * so the whole list of identifiers is never loaded into memory (see {@link #setScrollFetchSize(int)}).
 	 */
 	@Override
 	public Collection<?> getItemIds()
 	{
 		logger.executionTrace();
 
-		// TODO: BUG: does not preserve sort order!
-		final Criteria criteria = getCriteria();
-		criteria.setProjection(Projections.id());
-		return criteria.list();
+		return new ScrollableItemIds();
 	}
 
 	/**
@@ -926,14 +1311,20 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 	 * range:
 	 * 
 	 * startIndex to max(startIndex + (numberOfItems-1), container.size()-1).
+	 * 
+	 * Only the identifiers are queried. Callers reading the items of the returned ids can load them at once with
+	 * {@link #prefetchItems(Collection)}.
 	 */
 	@Override
 	public List<?> getItemIds(int startIndex, int count)
 	{
 		logger.executionTrace();
 
-		final List<?> entityIds = (List<?>) getItemIds();
-		return entityIds.subList(startIndex, startIndex + count);
+		return getCriteria()
+				.setProjection(Projections.id())
+				.setFirstResult(startIndex)
+				.setMaxResults(count)
+				.list();
 	}
 
 	/**
@@ -995,10 +1386,11 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 			final Query query = session.createQuery("DELETE FROM " + entityType.getSimpleName());
 
 			final int deleted = query.executeUpdate();
-			cache.invalidateAll();
+			getCache().invalidateAll();
 
 			if (deleted > 0)
 			{
+				invalidateSize();
 				clearInternalCache();
 				fireItemSetChange();
 			}
@@ -1036,16 +1428,31 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 	{
 		logger.executionTrace();
 
-		for (Object id : getChildren(entityId))
+		// only identifiers are needed, the children are not loaded (the index list is copied as it's modified below)
+		for (Object id : new ArrayList<Object>(getChildIds(entityId)))
 			removeItem(id);
 
 		final Session session = sessionFactory.getCurrentSession();
 		final Object entity = session.load(entityType, (Serializable) entityId);
 
 		session.delete(entity);
-		cache.invalidate(entityId);
+		getCache().invalidate(entityId);
+
+		invalidateSize();
+		invalidateRowBuffers();
+
+		// the hierarchy index is updated instead of discarded so removing a whole subtree doesn't query it again for
+		// every node
+		if (childrenIndex != null)
+		{
+			final List<Object> siblings = childrenIndex.get(parentIndex.remove(entityId));
+
+			if (siblings != null)
+				siblings.remove(entityId);
+
+			childrenIndex.remove(entityId);
+		}
 
-		clearInternalCache();
 		fireItemSetChange();
 
 		return true;
@@ -1054,17 +1461,29 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 	/**
 	 * Gets the number of visible Items in the Container. Filtering can hide items so that they will not be visible
 	 * through the container API.
+	 * 
+	 * The count is queried once and memoized until filters change or items are saved or removed through this
+	 * container (see {@link #setSizeStalenessWindow(long)}).
 	 */
 	@Override
 	public int size()
 	{
 		logger.executionTrace();
 
+		if (size != null && !isSizeStale())
+		{
+			statistics.sizeCacheHit();
+			return size.intValue();
+		}
+
+		statistics.sizeQuery();
 		size = ((Number) getBaseCriteria()
 				.setProjection(Projections.rowCount())
 				.uniqueResult())
 				.intValue();
 
+		sizeTimestamp = System.currentTimeMillis();
+
 		return size.intValue();
 	}
 
@@ -1169,7 +1588,7 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 
 		try
 		{
-			entity = cache.get(entityId);
+			entity = getCache().get(entityId);
 			rowBuffer = getRowBuffer();
 		}
 		catch (Exception e)
@@ -1184,6 +1603,7 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 			if ((index = rowBuffer.indexOf(entity.getPojo())) != -1)
 			{
 				final T nextEntity = rowBuffer.get(index + 1);
+				statistics.rowBufferHit();
 				return getIdForPojo(nextEntity);
 			}
 		}
@@ -1202,14 +1622,24 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 			return null;
 
 		final Criteria criteria = getCriteria()
-				.setFirstResult(firstIndex)
-				.setMaxResults(ROW_BUF_SIZE);
+				.setMaxResults(rowBufferSize);
+
+		final Object[] key = (keysetPagination)
+				? getRowBufferSeekKey(rowBuffer, entity.getPojo())
+				: null;
+
+		if (key != null)
+			criteria.add(getSeekCriterion(getOrder(!normalOrder), key, true));
+		else
+			criteria.setFirstResult(firstIndex);
 
 		@SuppressWarnings("unchecked")
 		final List<T> newRowBuffer = criteria.list();
+		statistics.rowBufferReload();
 
 		if (newRowBuffer.size() > 0)
 		{
+			prefetch(newRowBuffer);
 			setRowBuffer(newRowBuffer, firstIndex);
 			final T nextPojo = newRowBuffer.get(0);
 			return getIdForPojo(nextPojo);
@@ -1252,31 +1682,38 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 	}
 
 	/**
-	 * Get the item id for the item at the position given by index.
+	 * Get the item id for the item at the position given by index. Indexes already mapped by the idToIndex map are
+	 * answered without looking at the row buffer.
 	 */
 	@Override
 	public Object getIdByIndex(int index)
 	{
 		logger.executionTrace();
 
-		if (indexRowBuffer == null)
-			resetIndexRowBuffer(index);
+		final Object cachedId = idToIndex.getId(index);
+
+		if (cachedId != null)
+		{
+			statistics.idToIndexHit();
+			return cachedId;
+		}
 
 		int indexInCache = index - indexRowBufferFirstIndex;
 
-		if (!(indexInCache >= 0 && indexInCache < indexRowBuffer.size()))
+		if (indexRowBuffer == null || !(indexInCache >= 0 && indexInCache < indexRowBuffer.size()))
 		{
 			resetIndexRowBuffer(index);
-			indexInCache = 0;
+			indexInCache = index - indexRowBufferFirstIndex;
+		}
+		else
+		{
+			statistics.rowBufferHit();
 		}
 
 		final T pojo = indexRowBuffer.get(indexInCache);
 		final Object id = getIdForPojo(pojo);
 
-		idToIndex.put(id, new Integer(index));
-
-		if (idToIndex.size() > ID_TO_INDEX_MAX_SIZE)
-			idToIndex.remove(idToIndex.keySet().iterator().next());
+		idToIndex.put(id, index);
 
 		return id;
 	}
@@ -1285,19 +1722,34 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 	 * Gets the index of the Item corresponding to the entityId. The following is true for the returned index: 0 <=
 	 * index < size(), or index = -1 if there is no visible item with that id in the container.
 	 * 
-	 * Note! Expects that getIdByIndex is called for this entityId. Otherwise it will be potentially rather slow
-	 * operation with large tables. When used with Table, this shouldn't be a problem.
+	 * If getIdByIndex was not called for this entityId, the index is computed counting the rows that are placed before
+	 * the item accordingly to the current ordering (see {@link #rankIndexOfId(Object)}). The full list of identifiers
+	 * is only scanned if the current ordering can't be expressed as a restriction.
 	 */
 	@Override
 	public int indexOfId(Object entityId)
 	{
 		logger.executionTrace();
 
-		final Integer index = idToIndex.get(entityId);
+		final int index = idToIndex.getIndex(entityId);
 
-		return (index == null)
-				? slowIndexOfId(entityId)
-				: index;
+		if (index != -1)
+		{
+			statistics.idToIndexHit();
+			return index;
+		}
+
+		statistics.idToIndexMiss();
+		final Integer rank = rankIndexOfId(entityId);
+
+		if (rank != null)
+		{
+			statistics.rankQuery();
+			return rank;
+		}
+
+		statistics.slowIndexOfIdFallback();
+		return slowIndexOfId(entityId);
 	}
 
 	/**
@@ -1308,13 +1760,7 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 	{
 		logger.executionTrace();
 
-		final String[] propertyNames = classMetadata.getPropertyNames();
-		final LinkedList<String> propertyIds = new LinkedList<String>();
-
-		propertyIds.addAll(Arrays.asList(propertyNames));
-		propertyIds.addAll(getEmbeddedKeyPropertyIds());
-
-		return propertyIds;
+		return new LinkedList<String>(prototype.getSortablePropertyIds());
 	}
 
 	/**
@@ -1344,6 +1790,7 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 		if (filters != null)
 		{
 			filters = null;
+			invalidateSize();
 			clearInternalCache();
 			fireItemSetChange();
 		}
@@ -1394,15 +1841,8 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 			if (parentPropertyName == null)
 				return children;
 
-			for (Object id : getItemIds())
-			{
-				EntityItem<T> entity = cache.get(id);
-				Property<?> property = entity.getItemProperty(parentPropertyName);
-				Object value = property.getValue();
-
-				if (entityId.equals(value))
-					children.add(id);
-			}
+			children.addAll(getChildIds(entityId));
+			prefetchItems(children.subList(0, Math.min(children.size(), rowBufferSize)));
 		}
 		catch (Exception e)
 		{
@@ -1431,7 +1871,10 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 				return null;
 			}
 
-			final EntityItem<T> entity = cache.get(entityId);
+			if (parentIndex != null && parentIndex.containsKey(entityId))
+				return parentIndex.get(entityId);
+
+			final EntityItem<T> entity = getCache().get(entityId);
 			final Property<?> property = entity.getItemProperty(parentPropertyName);
 			final Object value = property.getValue();
 
@@ -1465,17 +1908,8 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 				return rootItems;
 			}
 
-			final Collection<?> allItemIds = getItemIds();
-
-			for (Object id : allItemIds)
-			{
-				EntityItem<T> entity = cache.get(id);
-				Property<?> property = entity.getItemProperty(parentPropertyName);
-				Object value = property.getValue();
-
-				if (value == null)
-					rootItems.add(id);
-			}
+			rootItems.addAll(getChildIds(null));
+			prefetchItems(rootItems.subList(0, Math.min(rootItems.size(), rowBufferSize)));
 		}
 		catch (Exception e)
 		{
@@ -1506,10 +1940,11 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 				return false;
 			}
 
-			final EntityItem<T> item = cache.get(entityId);
+			final EntityItem<T> item = getCache().get(entityId);
 			final Property property = item.getItemProperty(parentPropertyName);
 
 			property.setValue(newParentId);
+			invalidateHierarchyIndex();
 			final Object value = property.getValue();
 
 			return (value.equals(newParentId));
@@ -1572,7 +2007,10 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 				return false;
 			}
 
-			final EntityItem<T> item = cache.get(entityId);
+			if (parentIndex != null && parentIndex.containsKey(entityId))
+				return parentIndex.get(entityId) == null;
+
+			final EntityItem<T> item = getCache().get(entityId);
 			final Property<?> property = item.getItemProperty(parentPropertyName);
 			final Object value = property.getValue();
 
@@ -1606,17 +2044,16 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 				return false;
 			}
 
-			for (Object id : getItemIds())
-			{
-				EntityItem<T> item = cache.get(id);
-				Property<?> property = item.getItemProperty(parentPropertyName);
-				Object value = property.getValue();
+			if (hierarchyIndexEnabled)
+				return !getChildIds(entityId).isEmpty();
 
-				if (entityId.equals(value))
-					return true;
-			}
+			final Object childId = getBaseCriteria()
+					.add(Restrictions.eq(getParentIdPropertyPath(), entityId))
+					.setProjection(Projections.id())
+					.setMaxResults(1)
+					.uniqueResult();
 
-			return false;
+			return childId != null;
 		}
 		catch (Exception e)
 		{
@@ -1679,6 +2116,108 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 	// UTILITY METHODS
 	//
 
+	/**
+	 * Enables or disables keyset (seek) pagination. When enabled, pages following an already loaded page are queried
+	 * using a restriction on the sort key of the last loaded row instead of an offset, which keeps deep scrolling as
+	 * fast as the first page on large tables. Pages that can't be queried this way fall back to offset pagination.
+	 */
+	public void setKeysetPagination(boolean keysetPagination)
+	{
+		logger.executionTrace();
+
+		this.keysetPagination = keysetPagination;
+		clearInternalCache();
+	}
+
+	/**
+	 * @return true if keyset (seek) pagination is enabled.
+	 */
+	public boolean isKeysetPagination()
+	{
+		return keysetPagination;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) a memoized count can be served without querying the database again. With the
+	 * default value (0) the count is kept until filters change or items are saved or removed through this container.
+	 * With a positive value the count is also kept when the container is refreshed or sorted, and it is queried again
+	 * once it gets older than the window. This allows approximate counts on huge tables where an exact COUNT(*) on
+	 * every refresh is too expensive.
+	 */
+	public void setSizeStalenessWindow(long sizeStalenessWindow)
+	{
+		logger.executionTrace();
+
+		this.sizeStalenessWindow = sizeStalenessWindow;
+	}
+
+	/**
+	 * @return the time (in milliseconds) a memoized count can be served without querying the database again.
+	 */
+	public long getSizeStalenessWindow()
+	{
+		return sizeStalenessWindow;
+	}
+
+	/**
+	 * Sets the JDBC fetch size used when iterating over the collection returned by {@link #getItemIds()}. Note that
+	 * some drivers need a special value to actually stream results (for example, Integer.MIN_VALUE for MySQL), in which
+	 * case no other query can be executed in the same session while an iteration is in progress.
+	 */
+	public void setScrollFetchSize(int scrollFetchSize)
+	{
+		logger.executionTrace();
+
+		this.scrollFetchSize = scrollFetchSize;
+	}
+
+	/**
+	 * @return the JDBC fetch size used when iterating over the collection returned by {@link #getItemIds()}.
+	 */
+	public int getScrollFetchSize()
+	{
+		return scrollFetchSize;
+	}
+
+	/**
+	 * Enables or disables the hierarchy index. When enabled (default), the identifiers of all the visible items and
+	 * their parents are loaded with a single query the first time the hierarchy is inspected, and getChildren,
+	 * hasChildren, rootItemIds, getParent and isRoot are answered from memory until the container changes. When
+	 * disabled, each call issues a query restricted on the parent property.
+	 */
+	public void setHierarchyIndexEnabled(boolean hierarchyIndexEnabled)
+	{
+		logger.executionTrace();
+
+		this.hierarchyIndexEnabled = hierarchyIndexEnabled;
+		invalidateHierarchyIndex();
+	}
+
+	/**
+	 * @return true if the hierarchy index is enabled.
+	 */
+	public boolean isHierarchyIndexEnabled()
+	{
+		return hierarchyIndexEnabled;
+	}
+
+	/**
+	 * Gets the cache and row buffer counters of this container. The same counters are aggregated per entity type and
+	 * exposed through JMX (see {@link ContainerStatistics}).
+	 */
+	public ContainerStatistics getStatistics()
+	{
+		return statistics;
+	}
+
+	/**
+	 * Gets the cache policy used by this container.
+	 */
+	public ContainerCachePolicy getCachePolicy()
+	{
+		return cachePolicy;
+	}
+
 	/**
 	 * This method was added mainly to allow unit tests to be written to cover the filter add/remove methods.
 	 */
@@ -1888,9 +2427,14 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 	{
 		logger.executionTrace();
 
+		final Object[] lastKey = (keysetPagination && !list.isEmpty())
+				? getSortKey(list.get(list.size() - 1), getOrder(!normalOrder))
+				: null;
+
 		if (normalOrder)
 		{
 			ascRowBuffer = list;
+			ascRowBufferLastKey = lastKey;
 
 			for (int i = 0; i < list.size(); ++i)
 			{
@@ -1900,6 +2444,7 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 		else
 		{
 			descRowBuffer = list;
+			descRowBufferLastKey = lastKey;
 			final int lastIndex = size() - 1;
 
 			for (int i = 0; i < list.size(); ++i)
@@ -1927,12 +2472,271 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 	{
 		logger.executionTrace();
 
+		statistics.rowBufferReload();
+		List<T> list = null;
+
+		if (keysetPagination && indexRowBuffer != null && !indexRowBuffer.isEmpty())
+			list = seekIndexRowBuffer(index);
+
+		if (list == null)
+			list = getCriteria().setFirstResult(index).setMaxResults(rowBufferSize).list();
+
+		prefetch(list);
 		indexRowBufferFirstIndex = index;
-		indexRowBuffer = getCriteria().setFirstResult(index).setMaxResults(ROW_BUF_SIZE).list();
+		indexRowBuffer = list;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method used when keyset pagination is enabled. If the requested index is
+	 * right after or right before the current index row buffer, the new page is queried relative to the sort key of the
+	 * boundary row instead of using an offset, so the cost of the query does not depend on how deep the page is.
+	 * Returns null if the page can't be queried this way.
+	 */
+	@SuppressWarnings("unchecked")
+	protected List<T> seekIndexRowBuffer(int index)
+	{
+		logger.executionTrace();
+
+		final List<Order> orders = getOrder(!normalOrder);
+		final int nextIndex = indexRowBufferFirstIndex + indexRowBuffer.size();
+
+		if (index == nextIndex)
+		{
+			final Object[] key = getSortKey(indexRowBuffer.get(indexRowBuffer.size() - 1), orders);
+
+			if (key == null)
+				return null;
+
+			return getCriteria()
+					.add(getSeekCriterion(orders, key, true))
+					.setMaxResults(rowBufferSize)
+					.list();
+		}
+
+		if (index < indexRowBufferFirstIndex && index >= indexRowBufferFirstIndex - rowBufferSize)
+		{
+			final Object[] key = getSortKey(indexRowBuffer.get(0), orders);
+
+			if (key == null)
+				return null;
+
+			final int count = indexRowBufferFirstIndex - index;
+			final List<Order> flippedOrders = getOrder(normalOrder);
+			final Criteria criteria = getBaseCriteria();
+
+			for (Order order : flippedOrders)
+			{
+				criteria.addOrder(order);
+			}
+
+			final List<T> list = criteria
+					.add(getSeekCriterion(flippedOrders, key, true))
+					.setMaxResults(count)
+					.list();
+
+			// rows were added or removed in the meantime, indexes are not reliable anymore
+			if (list.size() != count)
+				return null;
+
+			Collections.reverse(list);
+			return list;
+		}
+
+		return null;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that returns the sort key to seek from when the row following
+	 * the given pojo is needed. The key remembered for the last row of the row buffer is used if possible.
+	 */
+	protected Object[] getRowBufferSeekKey(List<T> rowBuffer, T pojo)
+	{
+		logger.executionTrace();
+
+		if (rowBuffer != null && !rowBuffer.isEmpty() && rowBuffer.get(rowBuffer.size() - 1).equals(pojo))
+		{
+			final Object[] lastKey = (normalOrder) ? ascRowBufferLastKey : descRowBufferLastKey;
+
+			if (lastKey != null)
+				return lastKey;
+		}
+
+		return getSortKey(pojo, getOrder(!normalOrder));
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that returns the values of the given pojo for the properties in
+	 * the given ordering criteria (values of nullable properties can be null, see
+	 * {@link #getSeekCriterion(List, Object[], boolean)}). Returns null if the ordering can't be expressed as a
+	 * comparison of simple values (case insensitive orders, associations, components or composite identifiers).
+	 */
+	protected Object[] getSortKey(Object pojo, List<Order> orders)
+	{
+		logger.executionTrace();
+
+		final Object[] key = new Object[orders.size()];
+		final List<String> propertyNames = Arrays.asList(classMetadata.getPropertyNames());
+
+		for (int i = 0; i < orders.size(); i++)
+		{
+			final Order order = orders.get(i);
+			final String propertyName = order.getPropertyName();
+			Object value = null;
+
+			if (order.isIgnoreCase())
+				return null;
+
+			if (propertyName.equals(getIdPropertyName()))
+			{
+				if (classMetadata.getIdentifierType().isComponentType())
+					return null;
+
+				value = getIdForPojo(pojo);
+			}
+			else if (propertyNames.contains(propertyName))
+			{
+				final Type propertyType = classMetadata.getPropertyType(propertyName);
+
+				if (propertyType.isAssociationType() || propertyType.isComponentType())
+					return null;
+
+				value = classMetadata.getPropertyValue(pojo, propertyName);
+			}
+			else
+			{
+				return null;
+			}
+
+			if (value == null && (!propertyNames.contains(propertyName)
+					|| !classMetadata.getPropertyNullability()[propertyNames.indexOf(propertyName)]))
+				return null;
+
+			key[i] = value;
+		}
+
+		return key;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that builds a restriction matching the rows placed after (or
+	 * before) the given sort key accordingly to the given ordering criteria, that is, (p1 > v1) or (p1 = v1 and p2 >
+	 * v2) or ... where the comparison operator depends on the direction of each order. Rows with null values are
+	 * placed accordingly to the null ordering of the database (see {@link #isNullsLowest()}).
+	 */
+	protected Criterion getSeekCriterion(List<Order> orders, Object[] key, boolean after)
+	{
+		logger.executionTrace();
+
+		final boolean nullsLowest = isNullsLowest();
+		final Disjunction disjunction = Restrictions.disjunction();
+
+		for (int i = 0; i < orders.size(); i++)
+		{
+			final String propertyName = orders.get(i).getPropertyName();
+			final Criterion comparison = getSeekComparison(propertyName, key[i], orders.get(i).isAscending() == after,
+					nullsLowest);
+
+			// no value is placed beyond a null value
+			if (comparison == null)
+				continue;
+
+			final Conjunction conjunction = Restrictions.conjunction();
+
+			for (int j = 0; j < i; j++)
+			{
+				final String previousPropertyName = orders.get(j).getPropertyName();
+
+				conjunction.add((key[j] == null)
+						? Restrictions.isNull(previousPropertyName)
+						: Restrictions.eq(previousPropertyName, key[j]));
+			}
+
+			conjunction.add(comparison);
+			disjunction.add(conjunction);
+		}
+
+		return disjunction;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that builds a restriction matching the values of the property
+	 * greater (or lower) than the given value, where null is lower (or greater, if nullsLowest is false) than any other
+	 * value. Returns null if no value matches.
+	 */
+	protected Criterion getSeekComparison(String propertyName, Object value, boolean greater, boolean nullsLowest)
+	{
+		logger.executionTrace();
+
+		if (value == null)
+			return (greater == nullsLowest)
+					? Restrictions.isNotNull(propertyName)
+					: null;
+
+		final Criterion comparison = (greater)
+				? Restrictions.gt(propertyName, value)
+				: Restrictions.lt(propertyName, value);
+
+		return (greater == nullsLowest)
+				? comparison
+				: Restrictions.or(comparison, Restrictions.isNull(propertyName));
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that tells whether the database places null values before any
+	 * other value in ascending orders (MySQL, SQL Server, H2, HSQLDB) or after them (PostgreSQL, Oracle, DB2). Can be
+	 * overridden for databases not listed here.
+	 */
+	protected boolean isNullsLowest()
+	{
+		logger.executionTrace();
+
+		final Dialect dialect = ((SessionFactoryImplementor) sessionFactory).getDialect();
+
+		return !(dialect instanceof PostgreSQL81Dialect || dialect instanceof Oracle8iDialect
+				|| dialect instanceof DB2Dialect);
 	}
 
 	/**
-	 * This is an internal HbnContainer utility method that gets the index of the given identifier.
+	 * This is an internal HbnContainer utility method that gets the index of the given identifier using a single count
+	 * query over the visible rows placed before the item accordingly to the current ordering (rows with null sort
+	 * values included, see {@link #isNullsLowest()}). Returns -1 if the item is not visible, or null if the ordering
+	 * can't be expressed as a restriction (see {@link #getSortKey(Object, List)}).
+	 */
+	protected Integer rankIndexOfId(Object entityId)
+	{
+		logger.executionTrace();
+
+		final EntityItem<T> entity = getItem(entityId);
+
+		if (entity == null || entity.getPojo() == null)
+			return -1;
+
+		// indexes are always relative to the normal order
+		final List<Order> orders = getOrder(false);
+		final Object[] key = getSortKey(entity.getPojo(), orders);
+
+		if (key == null)
+			return null;
+
+		final Number visible = (Number) getBaseCriteria()
+				.add(Restrictions.idEq(entityId))
+				.setProjection(Projections.rowCount())
+				.uniqueResult();
+
+		if (visible.intValue() == 0)
+			return -1;
+
+		final Number rank = (Number) getBaseCriteria()
+				.add(getSeekCriterion(orders, key, false))
+				.setProjection(Projections.rowCount())
+				.uniqueResult();
+
+		return rank.intValue();
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that gets the index of the given identifier scanning the list of
+	 * all the identifiers. Used only when {@link #rankIndexOfId(Object)} can't be used.
 	 */
 	protected int slowIndexOfId(Object entityId)
 	{
@@ -1972,6 +2776,7 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 
 		filters.add(containerFilter);
 
+		invalidateSize();
 		clearInternalCache();
 		fireItemSetChange();
 	}
@@ -1993,6 +2798,7 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 					iterator.remove();
 			}
 
+			invalidateSize();
 			clearInternalCache();
 			fireItemSetChange();
 		}
@@ -2028,29 +2834,122 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 		// TODO: make this a little more robust, there are a number of cases where this will fail.
 
 		if (parentPropertyName == null)
+			parentPropertyName = prototype.getParentPropertyName();
+
+		return parentPropertyName;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that tests if the memoized count must be queried again.
+	 */
+	protected boolean isSizeStale()
+	{
+		return sizeStalenessWindow > 0 && System.currentTimeMillis() - sizeTimestamp >= sizeStalenessWindow;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that discards the memoized count. Must be called when the number
+	 * of visible items changes (filters changed, items saved or removed).
+	 */
+	protected void invalidateSize()
+	{
+		logger.executionTrace();
+
+		size = null;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that returns the path to the identifier of the parent, which is
+	 * resolved to the foreign key column without joining the parent row.
+	 */
+	protected String getParentIdPropertyPath()
+	{
+		logger.executionTrace();
+
+		return getParentPropertyName() + "." + getIdPropertyName();
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that returns the identifiers of the visible children of the
+	 * given item in the current order, or the identifiers of the root items if parentId is null.
+	 */
+	@SuppressWarnings("unchecked")
+	protected List<Object> getChildIds(Object parentId)
+	{
+		logger.executionTrace();
+
+		if (hierarchyIndexEnabled)
 		{
-			String[] propertyNames = classMetadata.getPropertyNames();
+			if (childrenIndex == null)
+				warmHierarchyIndex();
 
-			for (int i = 0; i < propertyNames.length; ++i)
-			{
-				String entityTypeName = entityType.getName();
-				String propertyTypeName = classMetadata.getPropertyType(propertyNames[i]).getName();
+			final List<Object> children = childrenIndex.get(parentId);
+			return (children == null) ? Collections.emptyList() : children;
+		}
 
-				if (entityTypeName.equals(propertyTypeName))
-				{
-					parentPropertyName = propertyNames[i];
-					break;
-				}
+		final Criterion criterion = (parentId == null)
+				? Restrictions.isNull(getParentPropertyName())
+				: Restrictions.eq(getParentIdPropertyPath(), parentId);
+
+		return getCriteria()
+				.add(criterion)
+				.setProjection(Projections.id())
+				.list();
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that loads the parent to children index with a single query
+	 * returning the identifier of every visible item and the identifier of its parent.
+	 */
+	protected void warmHierarchyIndex()
+	{
+		logger.executionTrace();
+
+		final List<?> rows = getCriteria()
+				.setProjection(Projections.projectionList()
+						.add(Projections.id())
+						.add(Projections.property(getParentIdPropertyPath())))
+				.list();
+
+		final Map<Object, List<Object>> children = new HashMap<Object, List<Object>>();
+		final Map<Object, Object> parents = new HashMap<Object, Object>(rows.size() * 2);
+
+		for (Object row : rows)
+		{
+			final Object id = ((Object[]) row)[0];
+			final Object parentId = ((Object[]) row)[1];
+			List<Object> siblings = children.get(parentId);
+
+			if (siblings == null)
+			{
+				siblings = new ArrayList<Object>();
+				children.put(parentId, siblings);
 			}
+
+			siblings.add(id);
+			parents.put(id, parentId);
 		}
 
-		return parentPropertyName;
+		childrenIndex = children;
+		parentIndex = parents;
 	}
 
 	/**
-	 * This is an internal HbnContainer utility method to clear all cache fields.
+	 * This is an internal HbnContainer utility method that discards the hierarchy index.
 	 */
-	protected void clearInternalCache()
+	protected void invalidateHierarchyIndex()
+	{
+		logger.executionTrace();
+
+		childrenIndex = null;
+		parentIndex = null;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method that discards the row buffers, the prefetched items and the
+	 * positions of the items. Must be called when items are added or removed.
+	 */
+	protected void invalidateRowBuffers()
 	{
 		logger.executionTrace();
 
@@ -2058,9 +2957,26 @@ public class CustomHbnContainer<T> implements Container, Container.Indexed, Cont
 		indexRowBuffer = null;
 		ascRowBuffer = null;
 		descRowBuffer = null;
+		ascRowBufferLastKey = null;
+		descRowBufferLastKey = null;
+		prefetchedItems = null;
 		firstId = null;
 		lastId = null;
-		size = null;
+	}
+
+	/**
+	 * This is an internal HbnContainer utility method to clear all cache fields. The memoized count is kept only if a
+	 * staleness window is set and it has not expired.
+	 */
+	protected void clearInternalCache()
+	{
+		logger.executionTrace();
+
+		invalidateRowBuffers();
 		embeddedPropertiesCache.clear();
+		invalidateHierarchyIndex();
+
+		if (sizeStalenessWindow <= 0 || isSizeStale())
+			size = null;
 	}
 }
@@ -1,42 +1,54 @@
 package enterpriseapp.hibernate;
 
 import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.sql.Connection;
-import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
-import org.hibernate.HibernateException;
 import org.hibernate.Interceptor;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.cfg.Configuration;
-import org.hibernate.internal.SessionImpl;
+import org.hibernate.context.internal.ThreadLocalSessionContext;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.id.MultipleHiLoPerTableGenerator;
+import org.hibernate.id.PersistentIdentifierGenerator;
+import org.hibernate.id.TableGenerator;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.mapping.PersistentClass;
+import org.hibernate.mapping.RootClass;
 import org.hibernate.metadata.ClassMetadata;
 import org.hibernate.persister.collection.AbstractCollectionPersister;
 import org.hibernate.persister.entity.AbstractEntityPersister;
 import org.hibernate.service.ServiceRegistry;
 import org.hibernate.service.ServiceRegistryBuilder;
-import org.jasypt.util.binary.BasicBinaryEncryptor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import enterpriseapp.Utils;
+import enterpriseapp.hibernate.annotation.CrudTable;
+import enterpriseapp.hibernate.dto.AuditLog;
 import enterpriseapp.ui.Constants;
 
 
@@ -48,35 +60,66 @@ import enterpriseapp.ui.Constants;
 public class Db {
 	
 	private static Logger logger = LoggerFactory.getLogger(Db.class);
-	private static ArrayList<SessionFactory> sessionFactoryList = new ArrayList<SessionFactory>();
+	
+	/**
+	 * Name of the database configured with the "db.*" properties. Writes always go to this database.
+	 */
+	public static final String PRIMARY = "primary";
+	
+	/**
+	 * Name of the file listing the chain of full and incremental backups in a backups directory.
+	 */
+	public static final String BACKUP_MANIFEST = "backup.manifest";
+	
+	private static final Map<String, SessionFactory> sessionFactories = new LinkedHashMap<String, SessionFactory>();
+	private static final List<SessionFactory> replicas = new ArrayList<SessionFactory>();
+	private static final AtomicInteger nextReplica = new AtomicInteger();
 	
 	private Db() { }
 	
 	/**
-	 * Inits the database using the properties file.
+	 * Inits the database using the properties file. Read replicas listed in the "db.replicas" property (comma
+	 * separated names) are also initialized; each replica is configured with "db.&lt;name&gt;.*" properties (for
+	 * example "db.replica1.url"), falling back to the primary "db.*" properties.
 	 */
 	public static void initFromPropertiesFile() {
     	if(Constants.dbUseCloudFoundryDatabase) {
     		configureDbFromCloudFoundry();
     	}
 		
-		addNewSessionFactory();
+		addNewSessionFactory(PRIMARY, false);
+		
+		if(Constants.dbReplicas() != null && !Constants.dbReplicas().trim().isEmpty()) {
+			for(String replica : Constants.dbReplicas().replace(" ", "").split(",")) {
+				addNewSessionFactory(replica, true);
+			}
+		}
 	}
 	
 	/**
-	 * Inits the database.
+	 * Inits an additional database using the current "db.*" properties. The database is named "db" followed by its
+	 * index (see getDatabaseNames()).
 	 */
 	public static void init() {
+		init("db" + sessionFactories.size());
+	}
+	
+	/**
+	 * Inits an additional database using the "db.&lt;name&gt;.*" properties (falling back to the "db.*" properties).
+	 * Use getCurrentSession(name) to get its sessions.
+	 * @param name Database name.
+	 */
+	public static void init(String name) {
     	if(Constants.dbUseCloudFoundryDatabase) {
     		logger.info("Configuring database from Cloud Foundry");
     		configureDbFromCloudFoundry();
     	}
     	
-		if(sessionFactoryList.isEmpty()) {
+		if(sessionFactories.isEmpty()) {
 			throw new RuntimeException("No default database set. You must first initialize a default database.");
 			
 		} else {
-			addNewSessionFactory();
+			addNewSessionFactory(name, false);
 		}
 	}
 	
@@ -95,37 +138,213 @@ public class Db {
 	public static void close() {
 		logger.info("Closing database...");
 		
-		if(!sessionFactoryList.isEmpty()) {
-			sessionFactoryList.get(0).close();
-			logger.info("Database closed");
+		for(String name : sessionFactories.keySet()) {
+			sessionFactories.get(name).close();
+			ContainerPrototype.clear(sessionFactories.get(name));
+			logger.info("Database closed (" + name + ")");
 		}
+		
+		sessionFactories.clear();
+		replicas.clear();
 	}
 	
 	/**
-	 * @return the current Hibernate session.
+	 * @return the current Hibernate session of the primary database.
 	 */
 	public static Session getCurrentSession() {
-		return sessionFactoryList.get(0).getCurrentSession();
+		return getSessionFactory().getCurrentSession();
+	}
+	
+	/**
+	 * @param name Database name (see init(String) and the "db.replicas" property).
+	 * @return the current Hibernate session of the given database.
+	 */
+	public static Session getCurrentSession(String name) {
+		return getSessionFactory(name).getCurrentSession();
+	}
+	
+	/**
+	 * @return the session factory of the primary database.
+	 */
+	public static SessionFactory getSessionFactory() {
+		return getSessionFactory(PRIMARY);
+	}
+	
+	/**
+	 * @param name Database name.
+	 * @return the session factory of the given database.
+	 */
+	public static SessionFactory getSessionFactory(String name) {
+		SessionFactory sessionFactory = sessionFactories.get(name);
+		
+		if(sessionFactory == null) {
+			throw new IllegalArgumentException("Unknown database: " + name);
+		}
+		
+		return sessionFactory;
+	}
+	
+	/**
+	 * @param name Database name.
+	 * @return Connection pool statistics of the given database (also available as the
+	 * "enterpriseapp:type=ConnectionPool,database=&lt;name&gt;" JMX MBean).
+	 */
+	public static ConnectionPoolStatistics getPoolStatistics(String name) {
+		SessionFactoryImplementor sessionFactory = (SessionFactoryImplementor) getSessionFactory(name);
+		ConnectionProvider connectionProvider = sessionFactory.getServiceRegistry().getService(ConnectionProvider.class);
+		return connectionProvider.unwrap(InstrumentedConnectionProvider.class).getStatistics();
+	}
+	
+	/**
+	 * @return Names of the initialized databases, starting with the primary database.
+	 */
+	public static List<String> getDatabaseNames() {
+		return new ArrayList<String>(sessionFactories.keySet());
 	}
 	
-	protected static void addNewSessionFactory() {
+	/**
+	 * @return the session factory of one of the read replicas (chosen round robin), or the primary session factory if
+	 * there are no replicas.
+	 */
+	public static SessionFactory getReadSessionFactory() {
+		if(replicas.isEmpty()) {
+			return getSessionFactory();
+		}
+		
+		return replicas.get((nextReplica.getAndIncrement() & Integer.MAX_VALUE) % replicas.size());
+	}
+	
+	/**
+	 * Returns a session for read-only work. Sessions of read replicas always have a read-only transaction in
+	 * progress (see ReplicaSessionContext); SessionInterceptor ends it at the end of the request, other threads must
+	 * call closeReplicaSessions() when done.
+	 * @return the current session of a read replica, or the current session of the primary database if there are no
+	 * replicas.
+	 */
+	public static Session getReadSession() {
+		return getReadSessionFactory().getCurrentSession();
+	}
+	
+	/**
+	 * @return true if the given session factory is the session factory of a read replica (see the "db.replicas"
+	 * property).
+	 */
+	public static boolean isReplica(SessionFactory sessionFactory) {
+		return replicas.contains(sessionFactory);
+	}
+	
+	/**
+	 * Commits and closes the sessions of the read replicas bound to the current thread.
+	 */
+	public static void closeReplicaSessions() {
+		for(SessionFactory replica : replicas) {
+			Session session = ThreadLocalSessionContext.unbind(replica);
+			
+			if(session != null && session.isOpen()) {
+				try {
+					if(session.getTransaction().isActive()) {
+						session.getTransaction().commit();
+					}
+				} finally {
+					if(session.isOpen()) {
+						session.close();
+					}
+				}
+			}
+		}
+	}
+	
+	private static String getProperty(String name, String key) {
+		String value = Utils.getProperty("db." + key);
+		return PRIMARY.equals(name) ? value : Utils.getProperty("db." + name + "." + key, value);
+	}
+	
+	/**
+	 * Enables the second-level cache and sets the cache concurrency strategy of the entities annotated with
+	 * CrudTable.cacheConcurrency().
+	 */
+	protected static void configureCache(String name, Configuration configuration) throws ClassNotFoundException {
+		configuration.setProperty("hibernate.cache.use_second_level_cache", "true");
+		configuration.setProperty("hibernate.cache.use_query_cache", getProperty(name, "cache.queries"));
+		configuration.setProperty("hibernate.cache.region.factory_class", getProperty(name, "cache.regionFactory"));
+		
+		if(!PRIMARY.equals(name)) {
+			configuration.setProperty("hibernate.cache.region_prefix", name);
+		}
+		
+		String cacheConfiguration = getProperty(name, "cache.configuration");
+		
+		if(cacheConfiguration != null && !cacheConfiguration.trim().isEmpty()) {
+			configuration.setProperty("net.sf.ehcache.configurationResourceName", cacheConfiguration.trim());
+		}
+		
+		configuration.buildMappings();
+		Iterator<PersistentClass> classMappings = configuration.getClassMappings();
+		
+		while(classMappings.hasNext()) {
+			PersistentClass persistentClass = classMappings.next();
+			
+			if(persistentClass instanceof RootClass && persistentClass.getClassName() != null) {
+				CrudTable crudTable = Class.forName(persistentClass.getClassName()).getAnnotation(CrudTable.class);
+				
+				if(crudTable != null && crudTable.cacheConcurrency() != CacheConcurrencyStrategy.NONE) {
+					configuration.setCacheConcurrencyStrategy(persistentClass.getEntityName(), crudTable.cacheConcurrency().toAccessType().getExternalName());
+				}
+			}
+		}
+	}
+	
+	protected static void addNewSessionFactory(String name, boolean replica) {
 		try {
 			Configuration configuration = new Configuration();
-			configuration.setProperty("hibernate.connection.driver_class", Constants.dbDriver());
-			configuration.setProperty("hibernate.connection.url", Constants.dbUrl());
-			configuration.setProperty("hibernate.connection.username", Constants.dbUser());
-			configuration.setProperty("hibernate.connection.password", Constants.dbPassword());
-			configuration.setProperty("hibernate.dialect", Constants.dbDialect());
-			configuration.setProperty("hibernate.show_sql", Constants.dbShowSQL());
-			configuration.setProperty("hibernate.hbm2ddl.auto", Constants.dbSchemaGeneration());
-			configuration.setProperty("hibernate.c3p0.min_size", Constants.dbMinSize());
-			configuration.setProperty("hibernate.c3p0.max_size", Constants.dbMaxSize());
-			configuration.setProperty("hibernate.c3p0.timeout", Constants.dbPoolTimeout());
-			configuration.setProperty("hibernate.c3p0.max_statements", Constants.dbMaxStatements());
-			configuration.setProperty("hibernate.c3p0.validationQuery", Constants.dbPoolValidationQuery());
-			configuration.setProperty("hibernate.current_session_context_class", "org.hibernate.context.internal.ThreadLocalSessionContext");
-			
-			if(Constants.dbInterceptor() != null) {
+			configuration.setProperty("hibernate.connection.driver_class", getProperty(name, "driver"));
+			configuration.setProperty("hibernate.connection.url", getProperty(name, "url"));
+			configuration.setProperty("hibernate.connection.username", getProperty(name, "user"));
+			configuration.setProperty("hibernate.connection.password", getProperty(name, "password"));
+			configuration.setProperty("hibernate.dialect", getProperty(name, "dialect"));
+			configuration.setProperty("hibernate.show_sql", getProperty(name, "show_sql"));
+			configuration.setProperty("hibernate.jdbc.batch_size", getProperty(name, "jdbc.batch_size"));
+			configuration.setProperty("hibernate.jdbc.batch_versioned_data", "true");
+			configuration.setProperty("hibernate.order_inserts", getProperty(name, "jdbc.order_inserts"));
+			configuration.setProperty("hibernate.order_updates", getProperty(name, "jdbc.order_updates"));
+			
+			if(new Integer(getProperty(name, "jdbc.fetch_size")) > 0) {
+				configuration.setProperty("hibernate.jdbc.fetch_size", getProperty(name, "jdbc.fetch_size"));
+			}
+			
+			String poolProvider = getProperty(name, "pool.provider");
+			configuration.setProperty("hibernate.connection.provider_class", InstrumentedConnectionProvider.class.getName());
+			configuration.setProperty(InstrumentedConnectionProvider.PROVIDER, poolProvider);
+			configuration.setProperty(InstrumentedConnectionProvider.DATABASE, name);
+			configuration.setProperty(InstrumentedConnectionProvider.MAX_SIZE, getProperty(name, "pool.max_size"));
+			configuration.setProperty(InstrumentedConnectionProvider.LEAK_DETECTION_THRESHOLD, getProperty(name, "pool.leakDetectionThreshold"));
+			
+			if(InstrumentedConnectionProvider.HIKARI.equals(poolProvider)) {
+				configuration.setProperty("hibernate.hikari.poolName", InstrumentedConnectionProvider.getPoolName(name));
+				configuration.setProperty("hibernate.hikari.registerMbeans", "true");
+				configuration.setProperty("hibernate.hikari.minimumIdle", getProperty(name, "pool.min_size"));
+				configuration.setProperty("hibernate.hikari.maximumPoolSize", getProperty(name, "pool.max_size"));
+				configuration.setProperty("hibernate.hikari.idleTimeout", "" + new Long(getProperty(name, "pool.timeout")) * 1000);
+				configuration.setProperty("hibernate.hikari.connectionTestQuery", getProperty(name, "pool.validationQuery"));
+				
+			} else {
+				configuration.setProperty("hibernate.c3p0.min_size", getProperty(name, "pool.min_size"));
+				configuration.setProperty("hibernate.c3p0.max_size", getProperty(name, "pool.max_size"));
+				configuration.setProperty("hibernate.c3p0.timeout", getProperty(name, "pool.timeout"));
+				configuration.setProperty("hibernate.c3p0.max_statements", getProperty(name, "pool.max_statements"));
+				configuration.setProperty("hibernate.c3p0.validationQuery", getProperty(name, "pool.validationQuery"));
+			}
+			
+			if(replica) {
+				configuration.setProperty("hibernate.current_session_context_class", ReplicaSessionContext.class.getName());
+				
+			} else {
+				configuration.setProperty("hibernate.hbm2ddl.auto", getProperty(name, "schemaGeneration"));
+				configuration.setProperty("hibernate.current_session_context_class", Constants.dbLazyTransactions() ? LazyTransactionSessionContext.class.getName() : "org.hibernate.context.internal.ThreadLocalSessionContext");
+			}
+			
+			// audit interceptors are not needed on read replicas
+			if(!replica && Constants.dbInterceptor() != null) {
 				Interceptor interceptor = (Interceptor) Class.forName(Constants.dbInterceptor()).newInstance();
 				configuration.setInterceptor(interceptor);
 			}
@@ -138,13 +357,23 @@ public class Db {
 			
 			configuration.configure();
 			
+			if(new Boolean(getProperty(name, "cache.enabled"))) {
+				configureCache(name, configuration);
+			}
+			
 			ServiceRegistryBuilder serviceRegistryBuilder = new ServiceRegistryBuilder();
 
 			ServiceRegistry serviceRegistry = serviceRegistryBuilder.applySettings(configuration.getProperties()).buildServiceRegistry();
 			
 			SessionFactory sessionFactory = configuration.buildSessionFactory(serviceRegistry);
 			
-			sessionFactoryList.add(sessionFactory);
+			sessionFactories.put(name, sessionFactory);
+			
+			if(replica) {
+				replicas.add(sessionFactory);
+			}
+			
+			logger.info("Database initialized (" + name + ")");
 			
 		} catch(Exception e) {
 			throw new RuntimeException(e);
@@ -152,14 +381,18 @@ public class Db {
 	}
 	
 	public static boolean isInitialized() {
-		return sessionFactoryList != null && !sessionFactoryList.isEmpty();
+		return !sessionFactories.isEmpty();
 	}
 	
 	/**
-	 * Begins a transaction on the current session.
+	 * Begins a transaction on the current session, unless it is already active.
 	 */
 	public static void beginTransaction() {
-		getCurrentSession().beginTransaction();
+		Session session = getCurrentSession();
+		
+		if(!session.getTransaction().isActive()) {
+			session.beginTransaction();
+		}
 	}
 	
 	/**
@@ -195,18 +428,19 @@ public class Db {
 	}
 	
 	public static Map<String, ClassMetadata> getAllClassMetadata() {
-		return sessionFactoryList.get(0).getAllClassMetadata();
+		return getSessionFactory().getAllClassMetadata();
 	}
 
 	/**
-	 * @return List with all the database table names.
+	 * @return List with all the database table names, including the tables of table identifier generators and the
+	 * audit log archive tables (see AuditLogArchive).
 	 */
 	@SuppressWarnings("rawtypes")
 	public static List<String> getAllTableNames() {
 		HashSet<String> tables = new HashSet<String>();
 		
-		Map<String, ClassMetadata> allClassMetadata = sessionFactoryList.get(0).getAllClassMetadata();
-		Map allCollectionMetadata = sessionFactoryList.get(0).getAllCollectionMetadata();
+		Map<String, ClassMetadata> allClassMetadata = getSessionFactory().getAllClassMetadata();
+		Map allCollectionMetadata = getSessionFactory().getAllCollectionMetadata();
 		
 		for(String key : allClassMetadata.keySet()) {
 			ClassMetadata classMetadata = allClassMetadata.get(key);
@@ -222,12 +456,88 @@ public class Db {
 			tables.add(persister.getTableName());
 		}
 		
+		tables.addAll(getGeneratorTableNames());
+		
+		String auditLogTable = getAuditLogTableName();
+		
+		if(auditLogTable != null) {
+			tables.addAll(AuditLogArchive.getArchiveTableNames(auditLogTable));
+		}
 		
 		return new ArrayList<String>(tables);
 	}
 	
 	/**
-	 * Creates a database backup file.
+	 * @return Names of the tables holding the state of identifier generators (for example, "hibernate_sequences" of
+	 * table generators, or the table emulating a sequence of a SequenceStyleGenerator on databases without sequences).
+	 * Database sequences are not backed up but restarted after a restore (see BackupReader.resetIdentifierGenerators).
+	 */
+	public static List<String> getGeneratorTableNames() {
+		HashSet<String> tables = new HashSet<String>();
+		
+		for(ClassMetadata classMetadata : getSessionFactory().getAllClassMetadata().values()) {
+			if(!(classMetadata instanceof AbstractEntityPersister)) {
+				continue;
+			}
+			
+			IdentifierGenerator generator = ((AbstractEntityPersister) classMetadata).getIdentifierGenerator();
+			
+			if(generator instanceof TableGenerator || generator instanceof MultipleHiLoPerTableGenerator || generator instanceof org.hibernate.id.enhanced.TableGenerator) {
+				tables.add(((PersistentIdentifierGenerator) generator).generatorKey().toString());
+				
+			} else if(generator instanceof SequenceStyleGenerator && !((SequenceStyleGenerator) generator).getDatabaseStructure().isPhysicalSequence()) {
+				tables.add(((SequenceStyleGenerator) generator).getDatabaseStructure().getName());
+			}
+		}
+		
+		return new ArrayList<String>(tables);
+	}
+	
+	/**
+	 * @return Table of the entity implementing AuditLog, or null if there is none.
+	 */
+	protected static String getAuditLogTableName() {
+		for(ClassMetadata classMetadata : getAllClassMetadata().values()) {
+			if(classMetadata instanceof AbstractEntityPersister && AuditLog.class.isAssignableFrom(classMetadata.getMappedClass())) {
+				return ((AbstractEntityPersister) classMetadata).getTableName();
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * @return Date before which all the audit logs are archived (the date of the oldest audit log in the audit table,
+	 * or the given date if the table is empty), or null if there is no AuditLog entity.
+	 */
+	protected static Date findAuditLogsFrom(Date date) {
+		if(getAuditLogTableName() == null) {
+			return null;
+		}
+		
+		Session session = getCurrentSession();
+		boolean newTransaction = !session.getTransaction().isActive();
+		
+		if(newTransaction) {
+			session.beginTransaction();
+		}
+		
+		try {
+			Date oldest = AuditLogArchive.findOldestDate();
+			return oldest == null || oldest.after(date) ? date : oldest;
+			
+		} finally {
+			if(newTransaction) {
+				session.getTransaction().commit();
+			}
+		}
+	}
+	
+	/**
+	 * Creates a database backup file. Tables are read in parallel from a consistent snapshot, so the database stays
+	 * writable during the backup (see BackupWriter), and the backup is compressed and encrypted as it is written.
+	 * The backup becomes the base of a new chain of incremental backups in the "backup.manifest" file of the directory
+	 * (see newIncrementalBackup).
 	 * @param fileName Databse backup file name.
 	 * @param directory Database backup file directory.
 	 * @param password Encryption password.
@@ -235,167 +545,362 @@ public class Db {
 	 * @throws Exception
 	 */
 	public static File newBackup(String fileName, String directory, String password) throws Exception {
-		List<String> tables = getAllTableNames();
-		String tablesLock = "";
-		String tablesFlush = "";
-		File zipFile = null;
+		List<BackupWriter.Table> tables = new ArrayList<BackupWriter.Table>();
 		
-		try {
-			for(int i = 0; i < tables.size(); i++) {
-				tablesLock += tables.get(i) + " WRITE";
-				tablesFlush += tables.get(i);
-				
-				if(i < tables.size() - 1) {
-					tablesFlush += ", ";
-					tablesLock += ", ";
-				}
-				
-				File file = new File(directory + tables.get(i) + ".backup");
-				
-				if(file.exists()) {
-					file.delete();
-				}
+		for(String table : getAllTableNames()) {
+			tables.add(BackupWriter.Table.full(table));
+		}
+		
+		Properties properties = new Properties();
+		properties.setProperty("date", "" + System.currentTimeMillis());
+		Date auditLogsFrom = findAuditLogsFrom(new Date(new Long(properties.getProperty("date"))));
+		File file = writeBackup(new File(directory + fileName), tables, properties, password);
+		
+		Properties manifest = new Properties();
+		manifest.setProperty("chain", fileName);
+		manifest.setProperty("date", properties.getProperty("date"));
+		
+		if(auditLogsFrom != null) {
+			manifest.setProperty("auditLogsFrom", "" + auditLogsFrom.getTime());
+		}
+		
+		saveBackupManifest(directory, manifest);
+		
+		return file;
+	}
+	
+	/**
+	 * Creates an incremental backup file with the rows changed since the last backup of the chain in the
+	 * "backup.manifest" file of the directory, and appends it to the chain. Changed and deleted rows of entity tables
+	 * are detected using the audit logs, so only those rows are included if AuditInterceptor is configured ("db.interceptor"
+	 * property). Without it, deleted rows can't be detected, so all the tables are backed up in full (as are collection
+	 * tables and tables with composite keys). Use restoreBackupChain to restore the base backup and its increments.
+	 * 
+	 * When audit logs are saved asynchronously ("app.audit.async" property), the changes are looked for since
+	 * "db.backup.incrementalOverlap" seconds plus the writer flush interval and offer timeout before the last backup,
+	 * and the backup fails while spilled audit logs are waiting to be saved.
+	 * 
+	 * Audit logs moved to archive tables since the last backup (see AuditLogArchive) are written as deleted from the
+	 * audit table and changed in the archive tables, using the date of the oldest audit log at the time of the last
+	 * backup ("auditLogsFrom" in the manifest). Without that date (manifests written by previous versions), the audit
+	 * table and its archive tables are backed up in full.
+	 * @param fileName Databse backup file name.
+	 * @param directory Database backup file directory (must contain a full backup created with newBackup).
+	 * @param password Encryption password.
+	 * @return Database backup file.
+	 * @throws Exception
+	 */
+	public static File newIncrementalBackup(String fileName, String directory, String password) throws Exception {
+		Properties manifest = loadBackupManifest(new File(directory + BACKUP_MANIFEST));
+		
+		if(manifest == null) {
+			throw new IllegalStateException("No backup manifest in " + directory + ", a full backup must be created first");
+		}
+		
+		String[] chain = manifest.getProperty("chain").split(",");
+		long overlap = Constants.dbBackupIncrementalOverlap() * 1000L;
+		
+		if(Constants.appAuditAsync()) {
+			// audit logs saved later keep the date of their transaction, so they could fall before "since"
+			if(AuditLogWriter.hasSpilledAuditLogs()) {
+				throw new IllegalStateException("Spilled audit logs are waiting to be saved (see app.audit.spillFile), an incremental backup would miss their changes");
 			}
 			
-			Statement statement = null;
+			overlap += Constants.appAuditFlushInterval() + Constants.appAuditOfferTimeout();
+		}
+		
+		Date since = new Date(new Long(manifest.getProperty("date")) - overlap);
+		
+		Properties properties = new Properties();
+		properties.setProperty("date", "" + System.currentTimeMillis());
+		properties.setProperty("since", "" + since.getTime());
+		properties.setProperty("base", chain[0]);
+		properties.setProperty("parent", chain[chain.length - 1]);
+		Date archivedSince = manifest.getProperty("auditLogsFrom") == null ? null : new Date(new Long(manifest.getProperty("auditLogsFrom")));
+		Date auditLogsFrom = findAuditLogsFrom(new Date(new Long(properties.getProperty("date"))));
+		File file = writeBackup(new File(directory + fileName), getIncrementalBackupTables(since, archivedSince), properties, password);
+		
+		manifest.setProperty("chain", manifest.getProperty("chain") + "," + fileName);
+		manifest.setProperty("date", properties.getProperty("date"));
+		
+		if(auditLogsFrom != null) {
+			manifest.setProperty("auditLogsFrom", "" + auditLogsFrom.getTime());
+		}
+		
+		saveBackupManifest(directory, manifest);
+		
+		return file;
+	}
+	
+	/**
+	 * @param since Date of the last backup (minus the overlap).
+	 * @param archivedSince Date of the oldest audit log at the time of the last backup, or null if unknown.
+	 * @return Rows to include in an incremental backup.
+	 */
+	@SuppressWarnings("rawtypes")
+	protected static List<BackupWriter.Table> getIncrementalBackupTables(Date since, Date archivedSince) throws Exception {
+		Map<String, Set<String>> changedIds = null;
+		String auditLogTable = getAuditLogTableName();
+		Set<String> archiveTables = new HashSet<String>();
+		List<String> changedArchiveTables = null;
+		Set<String> archivedIds = null;
+		Session session = getCurrentSession();
+		boolean newTransaction = !session.getTransaction().isActive();
+		
+		if(newTransaction) {
+			session.beginTransaction();
+		}
+		
+		try {
+			if(Constants.dbInterceptor() != null && AuditInterceptor.class.isAssignableFrom(Class.forName(Constants.dbInterceptor()))) {
+				changedIds = AuditLogArchive.findChangedIds(since);
+			} else {
+				logger.warn("No AuditInterceptor configured, deleted rows can't be detected: the incremental backup includes all the rows");
+			}
 			
-			try {
-				getCurrentSession().beginTransaction();
-				
-				Connection connection = ((SessionImpl)getCurrentSession()).connection();
-				
-				statement = connection.createStatement();
-				statement.execute("LOCK TABLES " + tablesLock);
+			if(auditLogTable != null) {
+				archiveTables = AuditLogArchive.getArchiveTableNames(auditLogTable);
 				
-				statement.execute("FLUSH TABLES " + tablesFlush);
-				
-				for(String table : tables) {
-					statement.execute("SELECT * INTO OUTFILE '" + directory + table + ".backup' FROM " + table);
-				}
-				
-			} catch(Exception e) {
-				throw e;
-				
-			} finally {
-				if(statement != null) {
-					statement.execute("UNLOCK TABLES");
-					statement.close();
-					getCurrentSession().getTransaction().commit();
+				if(!archiveTables.isEmpty() && archivedSince != null) {
+					// rows archived since the last backup are newer than the oldest audit log at that time
+					changedArchiveTables = AuditLogArchive.getArchiveTableNames(auditLogTable, archivedSince, null);
+					archivedIds = AuditLogArchive.findArchivedIds(auditLogTable, archivedSince);
 				}
 			}
 			
-			byte[] buf = new byte[1024];
-			zipFile = new File(directory + fileName);
-			
-			if(zipFile.exists()) {
-				zipFile.delete();
+		} finally {
+			if(newTransaction) {
+				session.getTransaction().commit();
+			}
+		}
+		
+		Map<String, BackupWriter.Table> tables = new LinkedHashMap<String, BackupWriter.Table>();
+		
+		for(ClassMetadata classMetadata : getAllClassMetadata().values()) {
+			if(!(classMetadata instanceof AbstractEntityPersister)) {
+				continue;
 			}
 			
-			ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipFile));
+			AbstractEntityPersister persister = (AbstractEntityPersister) classMetadata;
+			String table = persister.getTableName();
+			String keyColumn = persister.getIdentifierColumnNames().length == 1 ? persister.getIdentifierColumnNames()[0] : null;
+			BackupWriter.Table backupTable;
 			
-			for(String table : tables) {
-				FileInputStream in = new FileInputStream(directory + table + ".backup");
+			if(keyColumn == null) {
+				backupTable = BackupWriter.Table.full(table);
 				
-				out.putNextEntry(new ZipEntry(table + ".backup"));
+			} else if(AuditLog.class.isAssignableFrom(persister.getMappedClass())) {
+				String dateColumn = persister.getPropertyColumnNames("date")[0];
 				
-				int len;
-				while ((len = in.read(buf)) > 0) {
-					out.write(buf, 0, len);
+				if(archiveTables.isEmpty()) {
+					backupTable = BackupWriter.Table.since(table, keyColumn, dateColumn, since);
+					
+				} else if(archivedIds == null) {
+					backupTable = BackupWriter.Table.full(table);
+					
+					for(String archiveTable : archiveTables) {
+						tables.put(archiveTable, BackupWriter.Table.full(archiveTable));
+					}
+					
+				} else {
+					backupTable = BackupWriter.Table.since(table, keyColumn, dateColumn, since, archivedIds);
+					
+					for(String archiveTable : changedArchiveTables) {
+						tables.put(archiveTable, BackupWriter.Table.since(archiveTable, keyColumn, dateColumn, archivedSince));
+					}
 				}
 				
-				out.closeEntry();
-				in.close();
+			} else if(changedIds != null) {
+				Set<String> ids = new HashSet<String>();
+				BackupWriter.Table previous = tables.get(table);
 				
-				File file = new File(directory + table + ".backup");
+				if(previous != null && previous.getKeys() != null) {
+					ids.addAll(previous.getKeys());
+				}
 				
-				if(file.exists()) {
-					file.delete();
+				if(changedIds.containsKey(persister.getMappedClass().getSimpleName())) {
+					ids.addAll(changedIds.get(persister.getMappedClass().getSimpleName()));
 				}
+				
+				backupTable = BackupWriter.Table.keys(table, keyColumn, ids);
+				
+			} else {
+				// a timestamp @Version would find the changed rows, but not the deleted ones
+				backupTable = BackupWriter.Table.full(table);
 			}
 			
+			BackupWriter.Table previous = tables.get(table);
+			
+			if(previous != null && (previous.isFull() || previous.getKeys() == null || backupTable.getKeys() == null)) {
+				backupTable = BackupWriter.Table.full(table);
+			}
+			
+			tables.put(table, backupTable);
+		}
+		
+		Map allCollectionMetadata = getSessionFactory().getAllCollectionMetadata();
+		
+		for(Object key : allCollectionMetadata.keySet()) {
+			String table = ((AbstractCollectionPersister) allCollectionMetadata.get(key)).getTableName();
+			tables.put(table, BackupWriter.Table.full(table));
+		}
+		
+		for(String table : getGeneratorTableNames()) {
+			tables.put(table, BackupWriter.Table.full(table));
+		}
+		
+		return new ArrayList<BackupWriter.Table>(tables.values());
+	}
+	
+	private static File writeBackup(File file, List<BackupWriter.Table> tables, Properties properties, String password) throws Exception {
+		if(file.exists()) {
+			file.delete();
+		}
+		
+		OutputStream out = null;
+		
+		try {
+			out = new EncryptedOutputStream(new BufferedOutputStream(new FileOutputStream(file)), password);
+			new BackupWriter(getSessionFactory(), Constants.dbBackupThreads(), Constants.dbBackupChunkSize()).write(tables, properties, out);
 			out.close();
-			encryptFile(zipFile, password);
 			
 		} catch(Exception e) {
-			if(zipFile != null) {
-				zipFile.delete();
+			if(out != null) {
+				try {
+					out.close();
+				} catch(IOException e1) {
+					logger.warn("Couldn't close backup file", e1);
+				}
 			}
+			
+			file.delete();
 			throw e;
 		}
 		
-		return zipFile;
+		return file;
+	}
+	
+	/**
+	 * @param manifestFile Backup manifest file.
+	 * @return Backup manifest properties, or null if the file doesn't exist.
+	 */
+	public static Properties loadBackupManifest(File manifestFile) throws IOException {
+		if(!manifestFile.exists()) {
+			return null;
+		}
+		
+		Properties manifest = new Properties();
+		FileInputStream in = new FileInputStream(manifestFile);
+		
+		try {
+			manifest.load(in);
+		} finally {
+			in.close();
+		}
+		
+		return manifest;
+	}
+	
+	private static void saveBackupManifest(String directory, Properties manifest) throws IOException {
+		File tempFile = new File(directory + BACKUP_MANIFEST + "-temp");
+		FileOutputStream out = new FileOutputStream(tempFile);
+		
+		try {
+			manifest.store(out, "Backup chain: full backup followed by its incremental backups");
+		} finally {
+			out.close();
+		}
+		
+		File manifestFile = new File(directory + BACKUP_MANIFEST);
+		manifestFile.delete();
+		tempFile.renameTo(manifestFile);
 	}
 	
 	/**
-	 * Restore a database from backup file.
+	 * Restores the full backup and the incremental backups listed in a backup manifest, in order.
+	 * @param manifestFile Backup manifest file ("backup.manifest" in the backups directory).
+	 * @param password Encryption password.
+	 * @throws Exception
+	 */
+	public static void restoreBackupChain(File manifestFile, String password) throws Exception {
+		Properties manifest = loadBackupManifest(manifestFile);
+		
+		if(manifest == null) {
+			throw new IllegalArgumentException("Backup manifest not found: " + manifestFile);
+		}
+		
+		for(String fileName : manifest.getProperty("chain").split(",")) {
+			logger.info("Restoring " + fileName + "...");
+			restoreBackup(new File(manifestFile.getParentFile(), fileName), password);
+		}
+	}
+	
+	/**
+	 * Restore a database from backup file. Incremental backup files are applied over the current data, which must be
+	 * the data of their parent backup (see restoreBackupChain).
 	 * @param file Database backup file.
 	 * @param password Encryption password.
 	 * @throws Exception
 	 */
 	public static void restoreBackup(File file, String password) throws Exception {
-		List<String> tables = getAllTableNames();
-		String path = file.getPath() + "-extracted/";
-		path = path.replace('\\', '/');
-		
-		Statement statement = null;
+		restoreBackup(file, password, null);
+	}
+	
+	/**
+	 * Restore a database from backup file. The whole backup is decrypted and checked first (see BackupReader.verify), so
+	 * a corrupt or tampered backup doesn't change the database. The backup is then decrypted and decompressed again as it
+	 * is read, and tables are restored in parallel committing the rows in chunks (see BackupReader), so a restore that
+	 * fails afterwards (for example, if the database rejects the rows) leaves the database partially restored. The
+	 * second-level and query caches and the container caches are cleared after the restore, even if it fails.
+	 * @param file Database backup file.
+	 * @param password Encryption password.
+	 * @param listener Listener notified of the progress of the restore, or null.
+	 * @return Progress of the finished restore.
+	 * @throws Exception
+	 */
+	public static RestoreProgress restoreBackup(File file, String password, RestoreListener listener) throws Exception {
+		BackupReader reader = new BackupReader(getSessionFactory(), Constants.dbBackupThreads(), Constants.dbJdbcBatchSize(), Constants.dbBackupChunkSize());
+		InputStream in = new EncryptedInputStream(new FileInputStream(file), password);
+		Properties properties;
 		
 		try {
-			Connection connection = ((SessionImpl)getCurrentSession()).connection();
-			statement = connection.createStatement();
-		} catch (HibernateException e) {
-			throw new RuntimeException(e);
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
+			properties = reader.verify(in);
+			
+		} finally {
+			in.close();
+		}
+		
+		String auditLogTable = getAuditLogTableName();
+		
+		if(auditLogTable != null && properties.getProperty("tables") != null) {
+			AuditLogArchive.createArchiveTables(auditLogTable, Arrays.asList(properties.getProperty("tables").split(",")));
 		}
 		
+		// backups written before generator tables were backed up must not empty them
+		List<String> tables = getAllTableNames();
+		tables.removeAll(getGeneratorTableNames());
+		in = new EncryptedInputStream(new FileInputStream(file), password);
+		
 		try {
-			file = decryptFile(file, password);
-			unzip(file, path);
-			
-			statement.execute("START TRANSACTION");
-			statement.execute("SET foreign_key_checks = 0");
-			
-			for(String table : tables) {
-				statement.execute("DELETE FROM " + table);
-				statement.execute("LOAD DATA INFILE '" + path + table + ".backup' INTO TABLE " + table);
-			}
-			
-			file.delete();
-			
-		} catch (Exception e) {
-			try {
-				logger.error("Rolling back transaction...");
-				statement.execute("ROLLBACK");
-				logger.error("Transaction rollback OK");
-			} catch (SQLException e1) {
-				logger.error("Transaction rollback ERROR");
-				throw new RuntimeException(e);
-			}
-			
-			throw e;
+			RestoreProgress progress = reader.read(in, file.length(), tables, listener);
+			logger.info("Restored " + file.getName() + ": " + progress);
+			return progress;
 			
 		} finally {
-			try {
-				
-				statement.execute("SET foreign_key_checks = 1");
-				statement.execute("COMMIT;");
-				statement.close();
-				
-				for(String table : tables) {
-					File f = new File(path + table + ".backup");
-					f.delete();
-				}
-			
-				File f = new File(path);
-				f.delete();
-				
-			} catch (SQLException e) {
-				throw new RuntimeException(e);
-			}
-			
+			in.close();
+			evictCaches();
 		}
 	}
 	
+	/**
+	 * Clears the second-level and query caches of the session factory and the caches of the containers (for example,
+	 * after the database is restored).
+	 */
+	public static void evictCaches() {
+		getSessionFactory().getCache().evictAllRegions();
+		ContainerStatistics.invalidateCaches();
+	}
+	
 	/**
 	 * Compress files using zip format.
 	 * @param files files to compress.
@@ -456,7 +961,7 @@ public class Db {
     }
     
     private static void writeFile(InputStream in, OutputStream out) throws IOException {
-        byte[] buffer = new byte[1024];
+        byte[] buffer = new byte[EncryptedOutputStream.DEFAULT_BLOCK_SIZE];
         int len;
         
         while ((len = in.read(buffer)) >= 0) {
@@ -468,94 +973,51 @@ public class Db {
     }
     
     /**
-     * Encrypts a file. Specified file will be overwriten.
+     * Encrypts a file with AES-GCM (see EncryptedOutputStream). Specified file will be overwriten.
      * @param file File to encrypt.
      * @param password Encryption password.
      * @throws Exception
      */
     public static void encryptFile(File file, String password) throws Exception {
-		BasicBinaryEncryptor encryptor = new BasicBinaryEncryptor();
-		encryptor.setPassword(password);
     	File tempFile = new File(file.getAbsolutePath() + "-temp");
-    	DataInputStream dis = new DataInputStream(new FileInputStream(file));
-    	DataOutputStream dos = new DataOutputStream(new FileOutputStream(tempFile));
-    	byte[] buffer = new byte[1024];
-    	int originalLength;
-    	int chunks = 0;
+    	InputStream in = new FileInputStream(file);
+    	OutputStream out = new EncryptedOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)), password);
     	
-		while((originalLength = dis.read(buffer)) > 0) {
-			try {
-				byte[] encryptedBuffer = encryptor.encrypt(buffer);
-				int encryptedLength = encryptedBuffer.length;
-				
-				dos.writeInt(encryptedLength);
-				dos.writeInt(originalLength);
-				dos.write(encryptedBuffer, 0, encryptedLength);
-				
-				chunks++;
-			} catch(Exception e) {
-				dis.close();
-				dos.close();
-				tempFile.delete();
-				throw e;
-			}
-		}
-		
-		dos.writeInt(-chunks);
-		
-		dis.close();
-		dos.close();
+    	try {
+    		writeFile(in, out);
+    		
+    	} catch(Exception e) {
+    		in.close();
+    		out.close();
+    		tempFile.delete();
+    		throw e;
+    	}
 		
 		file.delete();
 		tempFile.renameTo(file);
     }
 	
     /**
-     * Decrypts a file.
+     * Decrypts a file encrypted with encryptFile (current or legacy format, see EncryptedInputStream).
      * @param file File to decrypt.
      * @param password Encryption password.
      * @return a decrypted file.
      * @throws Exception
      */
     public static File decryptFile(File file, String password) throws Exception {
-		BasicBinaryEncryptor encryptor = new BasicBinaryEncryptor();
-		encryptor.setPassword(password);
     	File tempFile = new File(file.getAbsolutePath() + "-temp");
-    	DataInputStream dis = new DataInputStream(new FileInputStream(file));
-    	DataOutputStream dos = new DataOutputStream(new FileOutputStream(tempFile));
-    	int encryptedLenth, originalLength;
-    	int chunks = 0;
+    	InputStream in = new EncryptedInputStream(new FileInputStream(file), password);
+    	OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
     	
-		while((encryptedLenth = dis.readInt()) > 0) {
-			try {
-				originalLength = dis.readInt();
-		    	byte[] encryptedBuffer = new byte[encryptedLenth];
-		    	dis.read(encryptedBuffer, 0, encryptedLenth);
-				byte[] buffer = encryptor.decrypt(encryptedBuffer);
-				dos.write(buffer, 0, originalLength);
-				chunks++;
-			} catch(Exception e) {
-				dis.close();
-				dos.close();
-				tempFile.delete();
-				throw e;
-			}
-		}
-		
-		if(-chunks != encryptedLenth) {
-		  if(dos != null) {
-		    dos.close();
-		  }
-		  
-		  if(dis != null) {
-		    dis.close();
-		  }
-		  
-			throw new RuntimeException("Wrong chunk count.");
-		}
-		
-		dis.close();
-		dos.close();
+    	try {
+    		writeFile(in, out);
+    		
+    	} catch(Exception e) {
+    		in.close();
+    		out.close();
+    		tempFile.delete();
+    		throw e;
+    	}
 		
 		return tempFile;
     }
@@ -17,9 +17,11 @@ import org.apache.commons.beanutils.DynaBean;
 import org.apache.commons.beanutils.DynaProperty;
 import org.hibernate.Criteria;
 import org.hibernate.Query;
+import org.hibernate.Session;
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.MatchMode;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
 import org.hibernate.internal.CriteriaImpl.Subcriteria;
 import org.hibernate.metadata.ClassMetadata;
 import org.hibernate.type.Type;
@@ -43,12 +45,57 @@ public class DefaultHbnContainer<T> extends CustomHbnContainer<T> {
 	
 	private static final long serialVersionUID = 1L;
 	
+	private final boolean replica;
+	
 	/**
 	 * Constructor.
 	 * @param clazz Entity class.
 	 */
 	public DefaultHbnContainer(Class<T> clazz) {
-		super(clazz, Db.getCurrentSession().getSessionFactory());
+		this(clazz, ContainerFactory.getCachePolicy(clazz));
+	}
+	
+	/**
+	 * Constructor.
+	 * @param clazz Entity class.
+	 * @param cachePolicy Cache settings for this container.
+	 */
+	public DefaultHbnContainer(Class<T> clazz, ContainerCachePolicy cachePolicy) {
+		super(ContainerPrototype.get(clazz, Db.getCurrentSession().getSessionFactory()), cachePolicy);
+		replica = false;
+	}
+	
+	/**
+	 * Constructor for containers backed by a database other than the primary one. Containers backed by a read replica
+	 * (see the "db.replicas" property) are read-only: their item properties are read-only and the methods writing to
+	 * the database throw UnsupportedOperationException.
+	 * @param clazz Entity class.
+	 * @param database Database name (see Db.getDatabaseNames()).
+	 */
+	public DefaultHbnContainer(Class<T> clazz, String database) {
+		super(ContainerPrototype.get(clazz, Db.getSessionFactory(database)), ContainerFactory.getCachePolicy(clazz));
+		replica = Db.isReplica(sessionFactory);
+	}
+	
+	/**
+	 * @return true if this container is backed by a read replica, and therefore read-only.
+	 */
+	public boolean isReadOnly() {
+		return replica;
+	}
+	
+	/**
+	 * @throws UnsupportedOperationException if this container is backed by a read replica.
+	 */
+	protected void checkWritable() {
+		if(replica) {
+			throw new UnsupportedOperationException("Container of " + entityType.getSimpleName() + " is backed by a read replica and is read-only");
+		}
+	}
+	
+	@Override
+	protected boolean isReadOnlyEntity(Object pojo) {
+		return replica || super.isReadOnlyEntity(pojo);
 	}
 	
 	/**
@@ -86,9 +133,14 @@ public class DefaultHbnContainer<T> extends CustomHbnContainer<T> {
 	
 	@Override
 	public boolean removeItem(Object itemId) throws UnsupportedOperationException {
+		checkWritable();
 		boolean result = super.removeItem(itemId);
 		sessionFactory.getCurrentSession().getTransaction().commit();
-		sessionFactory.getCurrentSession().beginTransaction();
+		
+		if(!sessionFactory.getCurrentSession().getTransaction().isActive()) {
+			sessionFactory.getCurrentSession().beginTransaction();
+		}
+		
 		return result;
 	}
 	
@@ -96,10 +148,28 @@ public class DefaultHbnContainer<T> extends CustomHbnContainer<T> {
 	 * Removes all items in the container.
 	 */
 	public boolean removeAllItems() throws UnsupportedOperationException {
+		checkWritable();
 		update("delete from " + entityType.getSimpleName());
+		
+		invalidateSize();
+		clearInternalCache();
+		fireItemSetChange();
+		
 		return true;
 	}
 	
+	@Override
+	public Object addItem() throws UnsupportedOperationException {
+		checkWritable();
+		return super.addItem();
+	}
+	
+	@Override
+	public Serializable updateEntity(T entity) {
+		checkWritable();
+		return super.updateEntity(entity);
+	}
+	
 	/**
 	 * Adds a new Entity to the container and returns an EntityItem.
 	 * @param itemId Entity to add.
@@ -108,6 +178,7 @@ public class DefaultHbnContainer<T> extends CustomHbnContainer<T> {
 	@SuppressWarnings("rawtypes")
 	@Override
 	public Item addItem(Object itemId) throws UnsupportedOperationException {
+		checkWritable();
 		T dto = (T) saveOrUpdateEntity((T) itemId);
 		return new EntityItem((Serializable) dto);
 	}
@@ -132,11 +203,14 @@ public class DefaultHbnContainer<T> extends CustomHbnContainer<T> {
 	 * @return id for the saved Entity.
 	 */
 	public Serializable saveOrUpdateEntity(T entity) {
+		checkWritable();
 		beforeSaveOrUpdate(entity);
 		
 		entity = (T) sessionFactory.getCurrentSession().merge(entity);
 		sessionFactory.getCurrentSession().saveOrUpdate(entity);
 		
+		getCache().invalidate(getIdForPojo(entity));
+		invalidateSize();
 		clearInternalCache();
 		fireItemSetChange();
 		
@@ -151,20 +225,98 @@ public class DefaultHbnContainer<T> extends CustomHbnContainer<T> {
 	 */
 	@Override
 	public Serializable saveEntity(T entity) {
+		checkWritable();
 		sessionFactory.getCurrentSession().save(entity);
 		
+		invalidateSize();
 		clearInternalCache();
 		fireItemSetChange();
 		
 		return (Serializable) getIdForPojo(entity);
 	}
 	
+	/**
+	 * Saves or updates the given Entities using JDBC batching (see "db.jdbc.batch_size" property). The session is
+	 * flushed every "db.jdbc.batch_size" Entities and the saved Entities are evicted from it, so the session doesn't
+	 * grow with the number of Entities saved. Other Entities loaded in the current session stay attached.
+	 * Insert batching is disabled by Hibernate for Entities with IDENTITY generated ids.
+	 * @param entities Entities to save or update.
+	 * @return ids for the saved Entities.
+	 */
+	public List<Serializable> saveAll(Collection<T> entities) {
+		return saveAll(entities, Constants.dbJdbcBatchSize());
+	}
+	
+	/**
+	 * Saves or updates the given Entities, flushing the session and evicting the saved Entities every flushInterval
+	 * Entities.
+	 * @param entities Entities to save or update.
+	 * @param flushInterval Number of Entities saved between flushes.
+	 * @return ids for the saved Entities.
+	 */
+	public List<Serializable> saveAll(Collection<T> entities, int flushInterval) {
+		checkWritable();
+		Session session = sessionFactory.getCurrentSession();
+		List<Serializable> ids = new ArrayList<Serializable>(entities.size());
+		List<T> saved = new ArrayList<T>();
+		
+		for(T entity : entities) {
+			beforeSaveOrUpdate(entity);
+			
+			if(getIdForPojo(entity) == null) {
+				session.save(entity);
+			} else {
+				entity = (T) session.merge(entity);
+			}
+			
+			ids.add((Serializable) getIdForPojo(entity));
+			afterSaveOrUpdate(entity);
+			saved.add(entity);
+			
+			if(flushInterval > 0 && saved.size() == flushInterval) {
+				flushAndEvict(session, saved);
+			}
+		}
+		
+		flushAndEvict(session, saved);
+		
+		getCache().invalidateAll();
+		invalidateSize();
+		clearInternalCache();
+		fireItemSetChange();
+		
+		return ids;
+	}
+	
+	/**
+	 * Flushes the session and evicts the given Entities only (not the whole session, which can hold Entities used
+	 * elsewhere in the request).
+	 */
+	private void flushAndEvict(Session session, List<T> saved) {
+		session.flush();
+		
+		for(T entity : saved) {
+			session.evict(entity);
+		}
+		
+		saved.clear();
+	}
+	
+	/**
+	 * @return true if the Entity is in the second-level cache (see "db.cache.enabled" property and
+	 * CrudTable.cacheConcurrency()).
+	 */
+	public boolean isCached() {
+		return ((SessionFactoryImplementor) sessionFactory).getEntityPersister(entityType.getName()).hasCache();
+	}
+	
 	/**
 	 * Gets all the Entities in the container.
 	 * @return all Entities in the container.
 	 */
 	public List<T> listAll() {
 		Criteria crit = getCriteria();
+		crit.setCacheable(isCached());
 		return crit.list();
 	}
 	
@@ -387,6 +539,7 @@ public class DefaultHbnContainer<T> extends CustomHbnContainer<T> {
 	 * @param query query to execute.
 	 */
 	public void update(final String query) {
+		checkWritable();
 		getQuery(query, null, null, null, null, null, null).executeUpdate();
 	}
 	
@@ -397,6 +550,7 @@ public class DefaultHbnContainer<T> extends CustomHbnContainer<T> {
 	 * @param params query parameters.
 	 */
 	public void update(final String query, final Object[] params) {
+		checkWritable();
 		getQuery(query, null, params, null, null, null, null).executeUpdate();
 	}
 	
@@ -407,6 +561,7 @@ public class DefaultHbnContainer<T> extends CustomHbnContainer<T> {
 	 * @param params query parameters.
 	 */
 	public void update(final String query, final String[] paramNames, final Object[] params) {
+		checkWritable();
 		getQuery(query, paramNames, params, null, null, null, null).executeUpdate();
 	}
 	
@@ -419,6 +574,7 @@ public class DefaultHbnContainer<T> extends CustomHbnContainer<T> {
 	 * @param collectionParams query parameters of type Collection.
 	 */
 	public void update(final String query, final String[] paramNames, final Object[] params, final String[] collectionParamNames, Collection<?>[] collectionParams) {
+		checkWritable();
 		getQuery(query, paramNames, params, collectionParamNames, collectionParams, null, null).executeUpdate();
 	}
 	
@@ -677,21 +833,8 @@ public class DefaultHbnContainer<T> extends CustomHbnContainer<T> {
 			
 		} else if(clazz.equals(Date.class)) {
 			try {
-				Date date1;
-				Date date2;
-				
-				if(filter.filterString.isEmpty()) {
-					date1 = new Date(Long.MIN_VALUE);
-				} else {
-					int length = filter.filterString.length() < Utils.getDateTimeFormatPattern().length() ? filter.filterString.length() : Utils.getDateTimeFormatPattern().length();
-					date1 = new SimpleDateFormat(Utils.getDateTimeFormatPattern().substring(0, length)).parse(filter.filterString);
-				}
-				if(filter.filterString2.isEmpty()) {
-					date2 = Utils.getMaxDate();
-				} else {
-					int length = filter.filterString2.length() < Utils.getDateTimeFormatPattern().length() ? filter.filterString2.length() : Utils.getDateTimeFormatPattern().length();
-					date2 = new SimpleDateFormat(Utils.getDateTimeFormatPattern().substring(0, length)).parse(filter.filterString2);
-				}
+				Date date1 = parseFilterDate(filter.filterString, new Date(Long.MIN_VALUE));
+				Date date2 = parseFilterDate(filter.filterString2, Utils.getMaxDate());
 				criterion = Restrictions.between(filter.getPropertyId().toString(), date1, date2);
 			} catch (ParseException e) {
 				Date date1 = new Date(1);
@@ -716,6 +859,21 @@ public class DefaultHbnContainer<T> extends CustomHbnContainer<T> {
 		return criterion;
 	}
 	
+	/**
+	 * Parses a date typed in a filter field, which can be any prefix of the date-time format (see
+	 * Utils.getDateTimeFormatPattern()).
+	 * @param filterString Text typed in the filter field.
+	 * @param emptyDate Date returned if the text is empty.
+	 */
+	protected Date parseFilterDate(String filterString, Date emptyDate) throws ParseException {
+		if(filterString.isEmpty()) {
+			return emptyDate;
+		}
+		
+		int length = filterString.length() < Utils.getDateTimeFormatPattern().length() ? filterString.length() : Utils.getDateTimeFormatPattern().length();
+		return new SimpleDateFormat(Utils.getDateTimeFormatPattern().substring(0, length)).parse(filterString);
+	}
+	
 	public void refresh() {
 		clearInternalCache();
 		fireItemSetChange();
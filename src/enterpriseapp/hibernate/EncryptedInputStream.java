@@ -0,0 +1,214 @@
+package enterpriseapp.hibernate;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+import org.jasypt.util.binary.BasicBinaryEncryptor;
+
+/**
+ * Input stream that decrypts data written by EncryptedOutputStream, block by block. Files in the legacy format
+ * (chunks encrypted with jasypt, written by previous versions of Db.encryptFile) are detected and decrypted too.
+ *
+ * @author Alejandro Duarte
+ *
+ */
+public class EncryptedInputStream extends InputStream {
+
+	private static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+
+	private final DataInputStream in;
+	private byte[] block = new byte[0];
+	private int position;
+	private int limit;
+	private long blocks;
+	private boolean finished;
+
+	private Cipher cipher;
+	private SecretKey key;
+	private byte[] header;
+	private byte[] noncePrefix;
+	private int blockSize;
+
+	private BasicBinaryEncryptor legacyEncryptor;
+
+	/**
+	 * @param in Stream to read the encrypted data from. It's closed when this stream is closed.
+	 * @param password Encryption password.
+	 * @throws IOException
+	 */
+	public EncryptedInputStream(InputStream in, String password) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(in));
+		byte[] magic = new byte[EncryptedOutputStream.MAGIC.length];
+
+		this.in.mark(magic.length);
+		this.in.readFully(magic);
+
+		if(!Arrays.equals(magic, EncryptedOutputStream.MAGIC)) {
+			this.in.reset();
+			legacyEncryptor = new BasicBinaryEncryptor();
+			legacyEncryptor.setPassword(password);
+			return;
+		}
+
+		int version = this.in.readUnsignedByte();
+
+		if(version != EncryptedOutputStream.VERSION) {
+			throw new IOException("Unsupported encryption format version: " + version);
+		}
+
+		int iterations = this.in.readInt();
+		blockSize = this.in.readInt();
+		byte[] salt = new byte[EncryptedOutputStream.SALT_LENGTH];
+		noncePrefix = new byte[EncryptedOutputStream.NONCE_PREFIX_LENGTH];
+		this.in.readFully(salt);
+		this.in.readFully(noncePrefix);
+
+		if(blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+			throw new IOException("Wrong block size: " + blockSize);
+		}
+
+		header = new byte[magic.length + 1 + 4 + 4 + salt.length + noncePrefix.length];
+		System.arraycopy(magic, 0, header, 0, magic.length);
+		header[magic.length] = (byte) version;
+		writeInt(iterations, header, magic.length + 1);
+		writeInt(blockSize, header, magic.length + 5);
+		System.arraycopy(salt, 0, header, magic.length + 9, salt.length);
+		System.arraycopy(noncePrefix, 0, header, magic.length + 9 + salt.length, noncePrefix.length);
+
+		if(!EncryptedOutputStream.isGcmSupported()) {
+			throw new IOException(EncryptedOutputStream.CIPHER + " not supported by this JVM (Java 7 or later is required to decrypt this file)");
+		}
+
+		try {
+			cipher = Cipher.getInstance(EncryptedOutputStream.CIPHER);
+
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+
+		key = EncryptedOutputStream.deriveKey(password, salt, iterations);
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(position == limit && !fill()) {
+			return -1;
+		}
+
+		return block[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		if(length == 0) {
+			return 0;
+		}
+
+		if(position == limit && !fill()) {
+			return -1;
+		}
+
+		int n = Math.min(length, limit - position);
+		System.arraycopy(block, position, bytes, offset, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return limit - position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Reads and decrypts the next block (skipping empty blocks).
+	 * @return false if there are no more blocks.
+	 */
+	private boolean fill() throws IOException {
+		while(!finished) {
+			position = 0;
+			limit = 0;
+
+			try {
+				if(legacyEncryptor != null) {
+					readLegacyBlock();
+				} else {
+					readBlock();
+				}
+
+			} catch (EOFException e) {
+				throw new IOException("Truncated encrypted file", e);
+			}
+
+			if(limit > 0) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private void readBlock() throws IOException {
+		boolean last = in.readBoolean();
+		int encryptedLength = in.readInt();
+
+		if(encryptedLength < EncryptedOutputStream.TAG_LENGTH || encryptedLength > blockSize + EncryptedOutputStream.TAG_LENGTH) {
+			throw new IOException("Wrong block length: " + encryptedLength);
+		}
+
+		byte[] encryptedBuffer = new byte[encryptedLength];
+		in.readFully(encryptedBuffer);
+
+		try {
+			EncryptedOutputStream.initGcm(cipher, Cipher.DECRYPT_MODE, key, EncryptedOutputStream.iv(noncePrefix, blocks), EncryptedOutputStream.aad(header, blocks, last));
+			block = cipher.doFinal(encryptedBuffer);
+
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Wrong password or corrupted encrypted file", e);
+		}
+
+		limit = block.length;
+		blocks++;
+		finished = last;
+	}
+
+	private void readLegacyBlock() throws IOException {
+		int encryptedLength = in.readInt();
+
+		if(encryptedLength <= 0) {
+			if(-blocks != encryptedLength) {
+				throw new IOException("Wrong chunk count.");
+			}
+
+			finished = true;
+			return;
+		}
+
+		int originalLength = in.readInt();
+		byte[] encryptedBuffer = new byte[encryptedLength];
+		in.readFully(encryptedBuffer);
+
+		block = legacyEncryptor.decrypt(encryptedBuffer);
+		limit = Math.min(originalLength, block.length);
+		blocks++;
+	}
+
+	private static void writeInt(int value, byte[] bytes, int offset) {
+		for(int i = 0; i < 4; i++) {
+			bytes[offset + i] = (byte) (value >>> (24 - i * 8));
+		}
+	}
+
+}
@@ -0,0 +1,297 @@
+package enterpriseapp.hibernate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.jasypt.util.binary.BasicBinaryEncryptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Output stream that encrypts the data written to it with AES-GCM, block by block, so files of any size are encrypted
+ * in a single pass with constant memory (see EncryptedInputStream).
+ *
+ * Format: a header with the "EABK" magic bytes, the format version, the PBKDF2 iteration count, the block size, the
+ * salt and a random nonce prefix; followed by the blocks, each one written as a final flag (1 byte), the encrypted
+ * length (int) and the encrypted bytes (including the GCM tag). The key is derived once from the password. The IV of
+ * each block is the nonce prefix followed by the block number, and the header, block number and final flag are
+ * authenticated with the block, so modified, reordered or truncated files are detected.
+ *
+ * If AES-GCM isn't available in the JVM (Java 6, or Java 7 without a GCM provider) the legacy format, encrypted chunk
+ * by chunk with jasypt, is written instead. The GCM API (GCMParameterSpec and Cipher.updateAAD) was added in Java 7,
+ * so it's used through reflection to keep the class loadable on Java 6.
+ *
+ * @author Alejandro Duarte
+ *
+ */
+public class EncryptedOutputStream extends OutputStream {
+
+	private static final Logger logger = LoggerFactory.getLogger(EncryptedOutputStream.class);
+
+	static final byte[] MAGIC = {'E', 'A', 'B', 'K'};
+	static final int VERSION = 1;
+	static final int SALT_LENGTH = 16;
+	static final int NONCE_PREFIX_LENGTH = 4;
+	static final int TAG_LENGTH = 16;
+	static final int KEY_BITS = 128;
+	static final String CIPHER = "AES/GCM/NoPadding";
+
+	public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+	public static final int DEFAULT_ITERATIONS = 65536;
+
+	private static final Constructor<?> gcmParameterSpecConstructor;
+	private static final Method updateAADMethod;
+
+	static {
+		Constructor<?> constructor = null;
+		Method method = null;
+
+		try {
+			constructor = Class.forName("javax.crypto.spec.GCMParameterSpec").getConstructor(int.class, byte[].class);
+			method = Cipher.class.getMethod("updateAAD", byte[].class);
+
+		} catch (ClassNotFoundException e) {
+			constructor = null;
+
+		} catch (NoSuchMethodException e) {
+			constructor = null;
+		}
+
+		gcmParameterSpecConstructor = constructor;
+		updateAADMethod = method;
+	}
+
+	private final DataOutputStream out;
+	private final byte[] buffer;
+	private int count;
+	private long blocks;
+	private boolean closed;
+
+	private Cipher cipher;
+	private SecretKey key;
+	private byte[] header;
+	private byte[] noncePrefix;
+
+	private BasicBinaryEncryptor legacyEncryptor;
+
+	/**
+	 * @param out Stream to write the encrypted data to. It's closed when this stream is closed.
+	 * @param password Encryption password.
+	 * @throws IOException
+	 */
+	public EncryptedOutputStream(OutputStream out, String password) throws IOException {
+		this(out, password, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param out Stream to write the encrypted data to. It's closed when this stream is closed.
+	 * @param password Encryption password.
+	 * @param blockSize Number of bytes encrypted at once.
+	 * @throws IOException
+	 */
+	public EncryptedOutputStream(OutputStream out, String password, int blockSize) throws IOException {
+		this.out = new DataOutputStream(out);
+		this.buffer = new byte[blockSize];
+
+		if(!isGcmSupported()) {
+			logger.warn(CIPHER + " not supported by this JVM, using legacy encryption");
+
+		} else {
+			try {
+				cipher = Cipher.getInstance(CIPHER);
+
+			} catch (NoSuchAlgorithmException e) {
+				logger.warn(CIPHER + " not available, using legacy encryption");
+
+			} catch (NoSuchPaddingException e) {
+				logger.warn(CIPHER + " not available, using legacy encryption");
+			}
+		}
+
+		if(cipher == null) {
+			legacyEncryptor = new BasicBinaryEncryptor();
+			legacyEncryptor.setPassword(password);
+			return;
+		}
+
+		SecureRandom random = new SecureRandom();
+		byte[] salt = new byte[SALT_LENGTH];
+		noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+		random.nextBytes(salt);
+		random.nextBytes(noncePrefix);
+
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream headerOut = new DataOutputStream(headerBytes);
+		headerOut.write(MAGIC);
+		headerOut.writeByte(VERSION);
+		headerOut.writeInt(DEFAULT_ITERATIONS);
+		headerOut.writeInt(blockSize);
+		headerOut.write(salt);
+		headerOut.write(noncePrefix);
+		header = headerBytes.toByteArray();
+
+		key = deriveKey(password, salt, DEFAULT_ITERATIONS);
+		this.out.write(header);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if(count == buffer.length) {
+			writeBlock(false);
+		}
+
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		while(length > 0) {
+			if(count == buffer.length) {
+				writeBlock(false);
+			}
+
+			int n = Math.min(length, buffer.length - count);
+			System.arraycopy(bytes, offset, buffer, count, n);
+			count += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Encrypts the remaining data as the final block and closes the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if(closed) {
+			return;
+		}
+
+		closed = true;
+
+		try {
+			writeBlock(true);
+
+			if(legacyEncryptor != null) {
+				out.writeInt((int) -blocks);
+			}
+
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeBlock(boolean last) throws IOException {
+		if(legacyEncryptor != null) {
+			if(count > 0) {
+				byte[] encryptedBuffer = legacyEncryptor.encrypt(Arrays.copyOf(buffer, count));
+				out.writeInt(encryptedBuffer.length);
+				out.writeInt(count);
+				out.write(encryptedBuffer);
+				blocks++;
+			}
+
+		} else {
+			try {
+				initGcm(cipher, Cipher.ENCRYPT_MODE, key, iv(noncePrefix, blocks), aad(header, blocks, last));
+				byte[] encryptedBuffer = cipher.doFinal(buffer, 0, count);
+
+				out.writeBoolean(last);
+				out.writeInt(encryptedBuffer.length);
+				out.write(encryptedBuffer);
+				blocks++;
+
+			} catch (GeneralSecurityException e) {
+				throw new IOException(e);
+			}
+		}
+
+		count = 0;
+	}
+
+	/**
+	 * @return true if the JVM has the AES-GCM API (Java 7 or later).
+	 */
+	static boolean isGcmSupported() {
+		return gcmParameterSpecConstructor != null;
+	}
+
+	/**
+	 * Initializes the cipher for the given block. Same as cipher.init(mode, key, new GCMParameterSpec(...)) followed by
+	 * cipher.updateAAD(aad), called through reflection (see isGcmSupported()).
+	 */
+	static void initGcm(Cipher cipher, int mode, SecretKey key, byte[] iv, byte[] aad) throws GeneralSecurityException {
+		try {
+			cipher.init(mode, key, (AlgorithmParameterSpec) gcmParameterSpecConstructor.newInstance(TAG_LENGTH * 8, iv));
+			updateAADMethod.invoke(cipher, aad);
+
+		} catch (InvocationTargetException e) {
+			if(e.getCause() instanceof GeneralSecurityException) {
+				throw (GeneralSecurityException) e.getCause();
+			}
+
+			throw new GeneralSecurityException(e.getCause());
+
+		} catch (InstantiationException e) {
+			throw new GeneralSecurityException(e);
+
+		} catch (IllegalAccessException e) {
+			throw new GeneralSecurityException(e);
+		}
+	}
+
+	static SecretKey deriveKey(String password, byte[] salt, int iterations) throws IOException {
+		try {
+			SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+			byte[] key = factory.generateSecret(new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_BITS)).getEncoded();
+			return new SecretKeySpec(key, "AES");
+
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
+
+	static byte[] iv(byte[] noncePrefix, long block) {
+		byte[] iv = Arrays.copyOf(noncePrefix, noncePrefix.length + 8);
+
+		for(int i = 0; i < 8; i++) {
+			iv[noncePrefix.length + i] = (byte) (block >>> (56 - i * 8));
+		}
+
+		return iv;
+	}
+
+	static byte[] aad(byte[] header, long block, boolean last) {
+		byte[] aad = Arrays.copyOf(header, header.length + 9);
+
+		for(int i = 0; i < 8; i++) {
+			aad[header.length + i] = (byte) (block >>> (56 - i * 8));
+		}
+
+		aad[header.length + 8] = (byte) (last ? 1 : 0);
+		return aad;
+	}
+
+}
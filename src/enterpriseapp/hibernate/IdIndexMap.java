@@ -0,0 +1,239 @@
+package enterpriseapp.hibernate;
+
+import java.util.HashMap;
+
+/**
+ * Bounded map between item identifiers and their indexes in a container, used by CustomHbnContainer to answer
+ * indexOfId and getIdByIndex without querying the database. Lookups work in both directions: identifier to index
+ * through a HashMap, and index to identifier through an open addressing table keyed by primitive ints, so indexes
+ * are never boxed. Entries are kept in access order and the least recently used entry is evicted when the map is
+ * full. All operations run in constant time.
+ * 
+ * An identifier has at most one index and an index has at most one identifier: putting an entry removes any entry
+ * with the same identifier or with the same index.
+ * 
+ * This class is not thread-safe.
+ * 
+ * @author Alejandro Duarte
+ *
+ */
+public class IdIndexMap {
+	
+	private static class Entry {
+		final Object id;
+		final int index;
+		Entry before;
+		Entry after;
+		
+		Entry(Object id, int index) {
+			this.id = id;
+			this.index = index;
+		}
+	}
+	
+	private final int maxSize;
+	private final HashMap<Object, Entry> byId;
+	private final Entry[] byIndex;
+	private final int mask;
+	private final Entry header = new Entry(null, -1);
+	
+	/**
+	 * @param maxSize Maximum number of entries.
+	 */
+	public IdIndexMap(int maxSize) {
+		if(maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be greater than 0");
+		}
+		
+		this.maxSize = maxSize;
+		byId = new HashMap<Object, Entry>(maxSize * 4 / 3 + 2);
+		
+		int capacity = 2;
+		while(capacity < maxSize * 2) {
+			capacity <<= 1;
+		}
+		
+		byIndex = new Entry[capacity];
+		mask = capacity - 1;
+		header.before = header;
+		header.after = header;
+	}
+	
+	/**
+	 * @param id Item identifier.
+	 * @return The index of the item or -1 if the identifier is not in the map.
+	 */
+	public int getIndex(Object id) {
+		Entry entry = byId.get(id);
+		
+		if(entry == null) {
+			return -1;
+		}
+		
+		touch(entry);
+		return entry.index;
+	}
+	
+	/**
+	 * @param index Item index.
+	 * @return The identifier of the item at the given index or null if the index is not in the map.
+	 */
+	public Object getId(int index) {
+		int slot = findSlot(index);
+		
+		if(slot < 0) {
+			return null;
+		}
+		
+		Entry entry = byIndex[slot];
+		touch(entry);
+		return entry.id;
+	}
+	
+	/**
+	 * Maps the identifier to the index, removing any previous mapping of either of them. Evicts the least recently used
+	 * entry if the map gets full.
+	 */
+	public void put(Object id, int index) {
+		Entry entry = byId.get(id);
+		
+		if(entry != null) {
+			if(entry.index == index) {
+				touch(entry);
+				return;
+			}
+			
+			removeEntry(entry);
+		}
+		
+		int slot = findSlot(index);
+		
+		if(slot >= 0) {
+			removeEntry(byIndex[slot]);
+		}
+		
+		entry = new Entry(id, index);
+		byId.put(id, entry);
+		insertIndex(entry);
+		link(entry);
+		
+		if(byId.size() > maxSize) {
+			removeEntry(header.after);
+		}
+	}
+	
+	/**
+	 * Removes the mapping of the given identifier.
+	 */
+	public void remove(Object id) {
+		Entry entry = byId.get(id);
+		
+		if(entry != null) {
+			removeEntry(entry);
+		}
+	}
+	
+	public int size() {
+		return byId.size();
+	}
+	
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	public void clear() {
+		byId.clear();
+		
+		for(int i = 0; i < byIndex.length; i++) {
+			byIndex[i] = null;
+		}
+		
+		header.before = header;
+		header.after = header;
+	}
+	
+	private void removeEntry(Entry entry) {
+		byId.remove(entry.id);
+		removeIndex(entry.index);
+		unlink(entry);
+	}
+	
+	private void touch(Entry entry) {
+		if(entry != header.before) {
+			unlink(entry);
+			link(entry);
+		}
+	}
+	
+	private void link(Entry entry) {
+		entry.after = header;
+		entry.before = header.before;
+		header.before.after = entry;
+		header.before = entry;
+	}
+	
+	private void unlink(Entry entry) {
+		entry.before.after = entry.after;
+		entry.after.before = entry.before;
+		entry.before = null;
+		entry.after = null;
+	}
+	
+	private int slotOf(int index) {
+		int h = index * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+	
+	private int findSlot(int index) {
+		int slot = slotOf(index);
+		
+		while(byIndex[slot] != null) {
+			if(byIndex[slot].index == index) {
+				return slot;
+			}
+			
+			slot = (slot + 1) & mask;
+		}
+		
+		return -1;
+	}
+	
+	private void insertIndex(Entry entry) {
+		int slot = slotOf(entry.index);
+		
+		while(byIndex[slot] != null) {
+			slot = (slot + 1) & mask;
+		}
+		
+		byIndex[slot] = entry;
+	}
+	
+	/**
+	 * Removes the index from the open addressing table shifting back the following entries of the probe sequence so
+	 * lookups never stop at a hole.
+	 */
+	private void removeIndex(int index) {
+		int hole = findSlot(index);
+		
+		if(hole < 0) {
+			return;
+		}
+		
+		byIndex[hole] = null;
+		int slot = (hole + 1) & mask;
+		
+		while(byIndex[slot] != null) {
+			int home = slotOf(byIndex[slot].index);
+			
+			// move the entry to the hole if its home slot is not cyclically in (hole, slot]
+			if(((slot - home) & mask) >= ((slot - hole) & mask)) {
+				byIndex[hole] = byIndex[slot];
+				byIndex[slot] = null;
+				hole = slot;
+			}
+			
+			slot = (slot + 1) & mask;
+		}
+	}
+	
+}
@@ -0,0 +1,348 @@
+package enterpriseapp.hibernate;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+
+import org.hibernate.HibernateException;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.service.spi.Configurable;
+import org.hibernate.service.spi.ServiceRegistryAwareService;
+import org.hibernate.service.spi.ServiceRegistryImplementor;
+import org.hibernate.service.spi.Stoppable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import enterpriseapp.Utils;
+
+/**
+ * Connection provider that wraps the connection pool selected with the "db.pool.provider" property ("c3p0",
+ * "hikari" or the class name of a Hibernate ConnectionProvider) and collects pool statistics (see
+ * ConnectionPoolStatistics). If "db.pool.leakDetectionThreshold" is greater than 0, a warning with the stack trace of
+ * the code that checked out the connection is logged for connections held longer than that many milliseconds.
+ * 
+ * Pool implementations are accessed through reflection (c3p0) and JMX (Hikari), so only the selected one is needed in
+ * the classpath.
+ * 
+ * @author Alejandro Duarte
+ *
+ */
+public class InstrumentedConnectionProvider implements ConnectionProvider, Configurable, Stoppable, ServiceRegistryAwareService {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private static final Logger logger = LoggerFactory.getLogger(InstrumentedConnectionProvider.class);
+	
+	public static final String PROVIDER = "enterpriseapp.pool.provider";
+	public static final String DATABASE = "enterpriseapp.pool.database";
+	public static final String MAX_SIZE = "enterpriseapp.pool.maxSize";
+	public static final String LEAK_DETECTION_THRESHOLD = "enterpriseapp.pool.leakDetectionThreshold";
+	
+	public static final String C3P0 = "c3p0";
+	public static final String HIKARI = "hikari";
+	
+	private final ConnectionPoolStatistics statistics = new ConnectionPoolStatistics(this);
+	
+	private final Map<Connection, Checkout> checkouts = Collections.synchronizedMap(new IdentityHashMap<Connection, Checkout>());
+	
+	private ServiceRegistryImplementor serviceRegistry;
+	
+	private ConnectionProvider delegate;
+	
+	private String providerName;
+	
+	private String database;
+	
+	private int maxSize;
+	
+	private long leakDetectionThreshold;
+	
+	private ScheduledExecutorService leakDetector;
+	
+	private static class Checkout {
+		private final long time = System.currentTimeMillis();
+		private final Throwable stackTrace = new Throwable("Connection checked out by " + Thread.currentThread().getName());
+		private boolean reported;
+	}
+	
+	@Override
+	public void injectServices(ServiceRegistryImplementor serviceRegistry) {
+		this.serviceRegistry = serviceRegistry;
+	}
+	
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void configure(Map configurationValues) {
+		providerName = getValue(configurationValues, PROVIDER, C3P0);
+		database = getValue(configurationValues, DATABASE, Db.PRIMARY);
+		maxSize = new Integer(getValue(configurationValues, MAX_SIZE, "0"));
+		leakDetectionThreshold = new Long(getValue(configurationValues, LEAK_DETECTION_THRESHOLD, "0"));
+		
+		String className;
+		
+		if(C3P0.equals(providerName)) {
+			className = "org.hibernate.c3p0.internal.C3P0ConnectionProvider";
+		} else if(HIKARI.equals(providerName)) {
+			className = "org.hibernate.hikaricp.internal.HikariCPConnectionProvider";
+		} else {
+			className = providerName;
+		}
+		
+		try {
+			delegate = (ConnectionProvider) Class.forName(className).newInstance();
+			
+		} catch (Exception e) {
+			throw new HibernateException("Couldn't instantiate connection provider " + className, e);
+		}
+		
+		if(delegate instanceof ServiceRegistryAwareService) {
+			((ServiceRegistryAwareService) delegate).injectServices(serviceRegistry);
+		}
+		
+		if(delegate instanceof Configurable) {
+			((Configurable) delegate).configure(configurationValues);
+		}
+		
+		if(leakDetectionThreshold > 0) {
+			leakDetector = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "connection-leak-detector-" + database);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			
+			long period = Math.max(leakDetectionThreshold / 2, 1000);
+			leakDetector.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					detectLeaks();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
+		
+		Utils.registerMBean(statistics, "enterpriseapp:type=ConnectionPool,database=" + database);
+		logger.info("Using " + providerName + " connection pool (" + database + ")");
+	}
+	
+	@Override
+	public Connection getConnection() throws SQLException {
+		statistics.acquiring();
+		long start = System.nanoTime();
+		Connection connection;
+		
+		try {
+			connection = delegate.getConnection();
+			
+		} catch (SQLException e) {
+			statistics.acquireFailed();
+			throw e;
+			
+		} catch (RuntimeException e) {
+			statistics.acquireFailed();
+			throw e;
+		}
+		
+		statistics.acquired(System.nanoTime() - start);
+		
+		if(leakDetector != null) {
+			checkouts.put(connection, new Checkout());
+		}
+		
+		return connection;
+	}
+	
+	@Override
+	public void closeConnection(Connection connection) throws SQLException {
+		if(leakDetector != null) {
+			Checkout checkout = checkouts.remove(connection);
+			
+			if(checkout != null && checkout.reported) {
+				logger.info("Possibly leaked connection (" + database + ") returned after " + (System.currentTimeMillis() - checkout.time) + " ms");
+			}
+		}
+		
+		statistics.released();
+		delegate.closeConnection(connection);
+	}
+	
+	@Override
+	public boolean supportsAggressiveRelease() {
+		return delegate.supportsAggressiveRelease();
+	}
+	
+	@SuppressWarnings("rawtypes")
+	@Override
+	public boolean isUnwrappableAs(Class unwrapType) {
+		return ConnectionProvider.class.equals(unwrapType) || InstrumentedConnectionProvider.class.isAssignableFrom(unwrapType) || delegate.isUnwrappableAs(unwrapType);
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> T unwrap(Class<T> unwrapType) {
+		if(ConnectionProvider.class.equals(unwrapType) || InstrumentedConnectionProvider.class.isAssignableFrom(unwrapType)) {
+			return (T) this;
+		}
+		
+		return delegate.unwrap(unwrapType);
+	}
+	
+	@Override
+	public void stop() {
+		if(leakDetector != null) {
+			leakDetector.shutdownNow();
+		}
+		
+		Utils.unregisterMBean("enterpriseapp:type=ConnectionPool,database=" + database);
+		
+		if(delegate instanceof Stoppable) {
+			((Stoppable) delegate).stop();
+		}
+	}
+	
+	/**
+	 * @return Pool statistics.
+	 */
+	public ConnectionPoolStatistics getStatistics() {
+		return statistics;
+	}
+	
+	/**
+	 * @return Name of the pool implementation ("c3p0", "hikari" or a class name).
+	 */
+	public String getProviderName() {
+		return providerName;
+	}
+	
+	/**
+	 * @return Maximum number of connections in the pool, or 0 if unknown.
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	/**
+	 * @return Idle connections in the pool, or -1 if the pool implementation doesn't provide it.
+	 */
+	public int getIdleConnections() {
+		try {
+			if(C3P0.equals(providerName)) {
+				return getC3p0Value("getNumIdleConnectionsDefaultUser");
+			}
+			
+			if(HIKARI.equals(providerName)) {
+				ObjectName name = new ObjectName("com.zaxxer.hikari:type=Pool (" + getPoolName(database) + ")");
+				return ((Number) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "IdleConnections")).intValue();
+			}
+			
+		} catch (Exception e) {
+			logger.debug("Couldn't get idle connections (" + database + ")", e);
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * @return Prepared statements in the statement cache of the pool, or -1 if the pool implementation doesn't have
+	 * one (Hikari leaves statement caching to the JDBC driver).
+	 */
+	public int getCachedStatements() {
+		return getC3p0StatementCacheValue("getStatementCacheNumStatementsAllUsers");
+	}
+	
+	/**
+	 * @return Cached prepared statements currently in use, or -1 if the pool implementation doesn't have a statement
+	 * cache.
+	 */
+	public int getCheckedOutCachedStatements() {
+		return getC3p0StatementCacheValue("getStatementCacheNumCheckedOutStatementsAllUsers");
+	}
+	
+	/**
+	 * @return Connections with prepared statements in the statement cache, or -1 if the pool implementation doesn't
+	 * have a statement cache.
+	 */
+	public int getConnectionsWithCachedStatements() {
+		return getC3p0StatementCacheValue("getStatementCacheNumConnectionsWithCachedStatementsAllUsers");
+	}
+	
+	private int getC3p0StatementCacheValue(String methodName) {
+		if(C3P0.equals(providerName)) {
+			try {
+				return getC3p0Value(methodName);
+				
+			} catch (Exception e) {
+				logger.debug("Couldn't get statement cache statistics (" + database + ")", e);
+			}
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Calls an int getter of the c3p0 PooledDataSource wrapped by the delegate, without linking to c3p0 classes.
+	 */
+	private int getC3p0Value(String methodName) throws Exception {
+		if(!delegate.isUnwrappableAs(DataSource.class)) {
+			return -1;
+		}
+		
+		DataSource dataSource = delegate.unwrap(DataSource.class);
+		Class<?> pooledDataSource = Class.forName("com.mchange.v2.c3p0.PooledDataSource", false, dataSource.getClass().getClassLoader());
+		
+		if(!pooledDataSource.isInstance(dataSource)) {
+			return -1;
+		}
+		
+		Method method = pooledDataSource.getMethod(methodName);
+		return ((Number) method.invoke(dataSource)).intValue();
+	}
+	
+	/**
+	 * @param database Database name.
+	 * @return Name given to the pool of the database (used by pools that register their own JMX MBeans).
+	 */
+	public static String getPoolName(String database) {
+		return "enterpriseapp-" + database;
+	}
+	
+	protected void detectLeaks() {
+		long now = System.currentTimeMillis();
+		List<Checkout> leaks = new ArrayList<Checkout>();
+		
+		synchronized(checkouts) {
+			for(Checkout checkout : checkouts.values()) {
+				if(!checkout.reported && now - checkout.time > leakDetectionThreshold) {
+					checkout.reported = true;
+					leaks.add(checkout);
+				}
+			}
+		}
+		
+		for(Checkout checkout : leaks) {
+			statistics.leakWarning();
+			logger.warn("Possible connection leak (" + database + "): connection checked out " + (now - checkout.time) + " ms ago", checkout.stackTrace);
+		}
+	}
+	
+	@SuppressWarnings("rawtypes")
+	private static String getValue(Map configurationValues, String key, String defaultValue) {
+		Object value = configurationValues.get(key);
+		return value == null || value.toString().trim().isEmpty() ? defaultValue : value.toString().trim();
+	}
+	
+}
@@ -0,0 +1,120 @@
+package enterpriseapp.hibernate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.FlushMode;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.context.internal.ThreadLocalSessionContext;
+import org.hibernate.context.spi.CurrentSessionContext;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+
+/**
+ * Thread local session context that begins the transaction the first time the current session is requested during
+ * a request (see SessionInterceptor). Requests that never call Db.getCurrentSession() don't open a session nor check
+ * out a connection. Transactions of read-only requests are read-only and never flushed (FlushMode.MANUAL).
+ * Outside requests (jobs, background threads) it behaves as ThreadLocalSessionContext.
+ * 
+ * Used when the "db.lazyTransactions" property is true.
+ * 
+ * @author Alejandro Duarte
+ *
+ */
+public class LazyTransactionSessionContext implements CurrentSessionContext {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private static final ThreadLocal<RequestState> requestState = new ThreadLocal<RequestState>();
+	
+	private final ThreadLocalSessionContext delegate;
+	
+	/**
+	 * State of the request being served by the current thread.
+	 */
+	public static class RequestState {
+		private final boolean readOnly;
+		private final List<Session> sessions = new ArrayList<Session>();
+		private int transactions;
+		
+		RequestState(boolean readOnly) {
+			this.readOnly = readOnly;
+		}
+		
+		public boolean isReadOnly() {
+			return readOnly;
+		}
+		
+		/**
+		 * @return The last session used during the request, or null if no session was used.
+		 */
+		public Session getSession() {
+			return sessions.isEmpty() ? null : sessions.get(sessions.size() - 1);
+		}
+		
+		/**
+		 * @return Sessions used during the request (one per database).
+		 */
+		public List<Session> getSessions() {
+			return sessions;
+		}
+		
+		/**
+		 * @return Number of transactions begun during the request.
+		 */
+		public int getTransactions() {
+			return transactions;
+		}
+	}
+	
+	public LazyTransactionSessionContext(SessionFactoryImplementor factory) {
+		delegate = new ThreadLocalSessionContext(factory);
+	}
+	
+	/**
+	 * Marks the beginning of a request in the current thread.
+	 * @param readOnly true if the transactions of the request must be read-only.
+	 * @return State of the request, which collects the sessions used during the request.
+	 */
+	public static RequestState beginRequest(boolean readOnly) {
+		RequestState state = new RequestState(readOnly);
+		requestState.set(state);
+		return state;
+	}
+	
+	/**
+	 * Marks the end of the request in the current thread. Sessions requested afterwards in this thread don't begin
+	 * transactions automatically.
+	 * @return State of the finished request, or null if beginRequest wasn't called.
+	 */
+	public static RequestState endRequest() {
+		RequestState state = requestState.get();
+		requestState.remove();
+		return state;
+	}
+	
+	@Override
+	public Session currentSession() throws HibernateException {
+		Session session = delegate.currentSession();
+		RequestState state = requestState.get();
+		
+		if(state != null) {
+			if(!state.sessions.contains(session)) {
+				state.sessions.add(session);
+			}
+			
+			if(!session.getTransaction().isActive()) {
+				session.beginTransaction();
+				state.transactions++;
+				
+				if(state.readOnly) {
+					session.setDefaultReadOnly(true);
+					session.setFlushMode(FlushMode.MANUAL);
+				}
+			}
+		}
+		
+		return session;
+	}
+	
+}
@@ -27,24 +27,22 @@ public class LogBasedAuditInterceptor extends EmptyInterceptor {
 	
 	@Override
 	public boolean onSave(Object dto, Serializable id, Object[] values, String[] properties, Type[] tipo) {
-		logger.info(getAuditLog(Constants.uiCreate, dto, id, values, properties));
+		logger.info(getAuditLog(Constants.uiCreate, dto, id, values, null, properties, tipo));
 		return false;
 	}
 	
 	@Override
 	public boolean onFlushDirty(Object dto, Serializable id, Object[] valor, Object[] valorAnterior, String[] propiedad, Type[] tipo) {
-		logger.info(getAuditLog(Constants.uiModify, dto, id, valor, propiedad));
+		logger.info(getAuditLog(Constants.uiModify, dto, id, valor, Constants.appAuditDiffOnly() ? valorAnterior : null, propiedad, tipo));
 		return false;
 	}
 	
 	@Override
 	public void onDelete(Object dto, Serializable id, Object[] valor, String[] propiedad, Type[] tipo) {
-		logger.info(getAuditLog(Constants.uiDelete, dto, id, valor, propiedad));
+		logger.info(getAuditLog(Constants.uiDelete, dto, id, valor, null, propiedad, tipo));
 	}
 	
-	private String getAuditLog(String action, Object dto, Serializable id, Object[] valor, String[] propiedad) {
-		String details = getDetails(valor, propiedad);
-		String entityType = dto.getClass().getSimpleName();
+	private String getAuditLog(String action, Object dto, Serializable id, Object[] valor, Object[] valorAnterior, String[] propiedad, Type[] tipo) {
 		String user = null;
 		String ip = null;
 		
@@ -62,26 +60,12 @@ public class LogBasedAuditInterceptor extends EmptyInterceptor {
 			ip = Constants.uiUnknownIp;
 		}
 		
-		return Constants.appLogBasedAuditFormat
-			.replace("${user}", user)
-			.replace("${ip}", ip)
-			.replace("${action}", action)
-			.replace("${type}", entityType)
-			.replace("${id}", "" + id)
-			.replace("${details}", details);
+		return AuditTemplate.compile(Constants.appLogBasedAuditFormat)
+			.render(user, ip, action, dto.getClass(), id, valor, valorAnterior, propiedad, tipo);
 	}
 	
 	public String getDetails(Object[] values, String[] properties) {
-		String details = "";
-		
-		for(int i = 0; i < properties.length; i++) {
-			details += "[" + properties[i] + "=" + values[i] + "]";
-			if(i != properties.length - 1) {
-				details += ", ";
-			}
-		}
-		
-		return details;
+		return AuditTemplate.renderDetails(null, values, properties);
 	}
 	
 }
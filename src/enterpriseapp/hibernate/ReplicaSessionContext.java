@@ -0,0 +1,41 @@
+package enterpriseapp.hibernate;
+
+import org.hibernate.FlushMode;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.context.internal.ThreadLocalSessionContext;
+import org.hibernate.context.spi.CurrentSessionContext;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+
+/**
+ * Thread local session context used by read replicas (see the "db.replicas" property). The current session always
+ * has a read-only transaction in progress that is never flushed (FlushMode.MANUAL). Sessions are committed and closed
+ * by Db.closeReplicaSessions().
+ * 
+ * @author Alejandro Duarte
+ *
+ */
+public class ReplicaSessionContext implements CurrentSessionContext {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private final ThreadLocalSessionContext delegate;
+	
+	public ReplicaSessionContext(SessionFactoryImplementor factory) {
+		delegate = new ThreadLocalSessionContext(factory);
+	}
+	
+	@Override
+	public Session currentSession() throws HibernateException {
+		Session session = delegate.currentSession();
+		
+		if(!session.getTransaction().isActive()) {
+			session.beginTransaction();
+			session.setDefaultReadOnly(true);
+			session.setFlushMode(FlushMode.MANUAL);
+		}
+		
+		return session;
+	}
+	
+}
@@ -0,0 +1,21 @@
+package enterpriseapp.hibernate;
+
+/**
+ * Receives the progress of a database restore (see Db.restoreBackup). Methods are called from the restore threads.
+ *
+ * @author Alejandro Duarte
+ *
+ */
+public interface RestoreListener {
+
+	/**
+	 * Called each time a chunk of rows is committed.
+	 */
+	void chunkRestored(RestoreProgress progress);
+
+	/**
+	 * Called when the restore finishes, successfully or not.
+	 */
+	void restoreFinished(RestoreProgress progress, Exception failure);
+
+}
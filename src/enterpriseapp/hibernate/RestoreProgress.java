@@ -0,0 +1,110 @@
+package enterpriseapp.hibernate;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of a database restore (see BackupReader). The counters are updated by the restore threads, so the UI can
+ * poll them at any time (for example, from a ProgressIndicator) while the restore runs.
+ *
+ * @author Alejandro Duarte
+ *
+ */
+public class RestoreProgress {
+
+	private final long totalBytes;
+	private final long startTime = System.currentTimeMillis();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong rows = new AtomicLong();
+	private final AtomicLong chunks = new AtomicLong();
+	private volatile String currentEntry;
+	private volatile long endTime;
+
+	RestoreProgress(long totalBytes) {
+		this.totalBytes = totalBytes;
+	}
+
+	/**
+	 * @return Size in bytes of the backup file, or -1 if unknown.
+	 */
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * @return Bytes of the backup file read so far.
+	 */
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * @return Fraction (0 to 1) of the backup file read so far, or -1 if the size of the file is unknown.
+	 */
+	public float getProgress() {
+		if(totalBytes <= 0) {
+			return isFinished() ? 1 : -1;
+		}
+
+		return Math.min(1f, (float) getBytesRead() / totalBytes);
+	}
+
+	/**
+	 * @return Rows inserted, replaced or deleted so far.
+	 */
+	public long getRows() {
+		return rows.get();
+	}
+
+	/**
+	 * @return Chunks committed so far.
+	 */
+	public long getChunks() {
+		return chunks.get();
+	}
+
+	/**
+	 * @return Name of the last entry read from the backup file.
+	 */
+	public String getCurrentEntry() {
+		return currentEntry;
+	}
+
+	public long getElapsedTime() {
+		return (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime;
+	}
+
+	public double getRowsPerSecond() {
+		return getElapsedTime() == 0 ? 0 : getRows() * 1000d / getElapsedTime();
+	}
+
+	public double getBytesPerSecond() {
+		return getElapsedTime() == 0 ? 0 : getBytesRead() * 1000d / getElapsedTime();
+	}
+
+	public boolean isFinished() {
+		return endTime != 0;
+	}
+
+	void addBytesRead(long bytes) {
+		bytesRead.addAndGet(bytes);
+	}
+
+	void addChunk(long rows) {
+		this.rows.addAndGet(rows);
+		chunks.incrementAndGet();
+	}
+
+	void setCurrentEntry(String currentEntry) {
+		this.currentEntry = currentEntry;
+	}
+
+	void finish() {
+		endTime = System.currentTimeMillis();
+	}
+
+	@Override
+	public String toString() {
+		return getRows() + " rows, " + getBytesRead() + (totalBytes > 0 ? "/" + totalBytes : "") + " bytes in " + getElapsedTime() + " ms (" + Math.round(getRowsPerSecond()) + " rows/s)";
+	}
+
+}
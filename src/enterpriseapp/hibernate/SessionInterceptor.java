@@ -8,22 +8,61 @@ import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
 
 import org.hibernate.Session;
 import org.hibernate.StaleObjectStateException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import enterpriseapp.Utils;
+import enterpriseapp.ui.Constants;
+
+/**
+ * Servlet filter that wraps each request in a Hibernate transaction.
+ * 
+ * If the "db.lazyTransactions" property is true, the transaction is begun the first time the request uses
+ * Db.getCurrentSession() (see LazyTransactionSessionContext), so requests that don't use the database never check out
+ * a connection. Requests whose path (relative to the context path) starts with one of the prefixes in the
+ * "readOnlyPaths" init parameter (comma separated) use read-only transactions that are never flushed.
+ * 
+ * Sessions of read replicas (see Db.getReadSession()) are committed and closed at the end of each request.
+ * 
+ * Request counters are exposed through the "enterpriseapp:type=SessionInterceptor" JMX MBean.
+ */
 public class SessionInterceptor implements Filter {
 	
 	private static final Logger logger = LoggerFactory.getLogger(SessionInterceptor.class);
 	
+	private static final SessionInterceptorStatistics statistics = new SessionInterceptorStatistics();
+	
+	private boolean lazyTransactions;
+	
+	private String[] readOnlyPaths = new String[0];
+	
+	/**
+	 * @return Request counters.
+	 */
+	public static SessionInterceptorStatistics getStatistics() {
+		return statistics;
+	}
+	
 	@Override
 	public void init(FilterConfig filterConfig) throws ServletException {
+		lazyTransactions = Constants.dbLazyTransactions();
+		String paths = filterConfig.getInitParameter("readOnlyPaths");
+		
+		if(paths != null && !paths.trim().isEmpty()) {
+			readOnlyPaths = paths.replace(" ", "").split(",");
+		}
+		
+		Utils.registerMBean(statistics, "enterpriseapp:type=SessionInterceptor");
 	}
 
 	@Override
 	public void destroy() {
+		Utils.unregisterMBean("enterpriseapp:type=SessionInterceptor");
+		
 		final Session session = Db.getCurrentSession();
 
 		if(session.getTransaction().isActive()) {
@@ -37,7 +76,13 @@ public class SessionInterceptor implements Filter {
 
 	@Override
 	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+		if(lazyTransactions) {
+			doFilterLazily(request, response, chain);
+			return;
+		}
+		
 		final Session session = Db.getCurrentSession();
+		int transactions = 0;
 
 		try {
 			if(!session.getTransaction().isActive()) {
@@ -46,7 +91,9 @@ public class SessionInterceptor implements Filter {
 
 			chain.doFilter(request, response);
 
+			// transactions ended by the application itself are not counted
 			if(session.getTransaction().isActive()) {
+				transactions = 1;
 				session.getTransaction().commit();
 			}
 			
@@ -54,7 +101,9 @@ public class SessionInterceptor implements Filter {
 			logger.error("", e);
 
 			if(session.getTransaction().isActive()) {
+				transactions = 1;
 				session.getTransaction().rollback();
+				statistics.rollback();
 			}
 
 			throw e;
@@ -63,10 +112,100 @@ public class SessionInterceptor implements Filter {
 			logger.error("", e);
 
 			if(session.getTransaction().isActive()) {
+				transactions = 1;
 				session.getTransaction().rollback();
+				statistics.rollback();
 			}
 
 			throw new ServletException(e);
+			
+		} finally {
+			statistics.request(false, transactions);
+			Db.closeReplicaSessions();
+			ContainerFactory.clearSessionContainers();
 		}
 	}
+	
+	protected void doFilterLazily(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+		final boolean readOnly = isReadOnly(request);
+		final LazyTransactionSessionContext.RequestState state = LazyTransactionSessionContext.beginRequest(readOnly);
+		
+		try {
+			try {
+				chain.doFilter(request, response);
+				
+			} finally {
+				// sessions requested while committing don't begin new transactions
+				LazyTransactionSessionContext.endRequest();
+			}
+			
+			for(Session session : state.getSessions()) {
+				if(session.isOpen() && session.getTransaction().isActive()) {
+					session.getTransaction().commit();
+				}
+			}
+			
+		} catch(StaleObjectStateException e) {
+			logger.error("", e);
+			rollback(state);
+			throw e;
+			
+		} catch(Throwable e) {
+			logger.error("", e);
+			rollback(state);
+			throw new ServletException(e);
+			
+		} finally {
+			statistics.request(readOnly, state.getTransactions());
+			close(state);
+			Db.closeReplicaSessions();
+			ContainerFactory.clearSessionContainers();
+		}
+	}
+	
+	private void rollback(LazyTransactionSessionContext.RequestState state) {
+		for(Session session : state.getSessions()) {
+			try {
+				if(session.isOpen() && session.getTransaction().isActive()) {
+					session.getTransaction().rollback();
+					statistics.rollback();
+				}
+			} catch(RuntimeException e) {
+				logger.error("Couldn't rollback transaction", e);
+			}
+		}
+	}
+	
+	/**
+	 * Closes the sessions still open (for example, when a commit failed), releasing their connections.
+	 */
+	private void close(LazyTransactionSessionContext.RequestState state) {
+		for(Session session : state.getSessions()) {
+			try {
+				if(session.isOpen()) {
+					session.close();
+				}
+			} catch(RuntimeException e) {
+				logger.error("Couldn't close session", e);
+			}
+		}
+	}
+	
+	protected boolean isReadOnly(ServletRequest request) {
+		if(readOnlyPaths.length == 0 || !(request instanceof HttpServletRequest)) {
+			return false;
+		}
+		
+		HttpServletRequest httpRequest = (HttpServletRequest) request;
+		String path = httpRequest.getRequestURI().substring(httpRequest.getContextPath().length());
+		
+		for(String prefix : readOnlyPaths) {
+			if(path.startsWith(prefix)) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
 }
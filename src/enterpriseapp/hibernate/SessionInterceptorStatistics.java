@@ -0,0 +1,66 @@
+package enterpriseapp.hibernate;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request counters of SessionInterceptor, registered as the "enterpriseapp:type=SessionInterceptor" JMX MBean.
+ * Requests without session are the requests served without checking out a database connection (only counted when
+ * lazy transactions are enabled).
+ * 
+ * @author Alejandro Duarte
+ *
+ */
+public class SessionInterceptorStatistics implements SessionInterceptorStatisticsMBean {
+	
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong requestsWithoutSession = new AtomicLong();
+	private final AtomicLong readOnlyRequests = new AtomicLong();
+	private final AtomicLong transactions = new AtomicLong();
+	private final AtomicLong rollbacks = new AtomicLong();
+	
+	public long getRequests() {
+		return requests.get();
+	}
+	
+	public long getRequestsWithoutSession() {
+		return requestsWithoutSession.get();
+	}
+	
+	public long getReadOnlyRequests() {
+		return readOnlyRequests.get();
+	}
+	
+	public long getTransactions() {
+		return transactions.get();
+	}
+	
+	public long getRollbacks() {
+		return rollbacks.get();
+	}
+	
+	public void reset() {
+		requests.set(0);
+		requestsWithoutSession.set(0);
+		readOnlyRequests.set(0);
+		transactions.set(0);
+		rollbacks.set(0);
+	}
+	
+	void request(boolean readOnly, int transactionCount) {
+		requests.incrementAndGet();
+		transactions.addAndGet(transactionCount);
+		
+		if(transactionCount == 0) {
+			requestsWithoutSession.incrementAndGet();
+		}
+		
+		if(readOnly) {
+			readOnlyRequests.incrementAndGet();
+		}
+	}
+	
+	void rollback() {
+		rollbacks.incrementAndGet();
+	}
+	
+}
@@ -0,0 +1,23 @@
+package enterpriseapp.hibernate;
+
+/**
+ * Management interface of SessionInterceptorStatistics.
+ * 
+ * @author Alejandro Duarte
+ *
+ */
+public interface SessionInterceptorStatisticsMBean {
+	
+	long getRequests();
+	
+	long getRequestsWithoutSession();
+	
+	long getReadOnlyRequests();
+	
+	long getTransactions();
+	
+	long getRollbacks();
+	
+	void reset();
+	
+}
@@ -3,6 +3,8 @@ package enterpriseapp.hibernate.annotation;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
 /**
  * Sets CRUD table details.
  * @author Alejandro Duarte
@@ -19,4 +21,11 @@ public @interface CrudTable {
 	
 	boolean embedded() default false;
 	
+	/**
+	 * Second-level cache concurrency strategy for the entity. Only used when the "db.cache.enabled" property is true.
+	 * Use READ_ONLY or NONSTRICT_READ_WRITE for lookup entities shown in EntityField and EntitySetField components.
+	 * @return Cache concurrency strategy, NONE (default) to not cache the entity.
+	 */
+	CacheConcurrencyStrategy cacheConcurrency() default CacheConcurrencyStrategy.NONE;
+	
 }
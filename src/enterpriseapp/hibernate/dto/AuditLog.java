@@ -6,7 +6,8 @@ import java.util.Date;
  * If you includes "db.interceptor=enterpriseapp.hibernate.LogBasedAuditInterceptor" in your configuration files, You must
  * define an Entity class implementing this interface. You must create a custom ContainerFactory returning a proper
  * DefaultHbnContainer for your audit Entity class when the method getContainer(Class<?> clazz) is called with
- * enterpriseapp.hibernate.dto.AuditLog.class as parameter.
+ * enterpriseapp.hibernate.dto.AuditLog.class as parameter. Return an AuditLogContainer for your audit Entity class so
+ * the CRUD also searches the archived audit logs (see AuditLogArchive).
  * 
  * @author Alejandro Duarte
  *
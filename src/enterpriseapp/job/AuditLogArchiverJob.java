@@ -0,0 +1,84 @@
+package enterpriseapp.job;
+
+import java.util.Calendar;
+import java.util.Date;
+
+import org.quartz.Job;
+import org.quartz.JobBuilder;
+import org.quartz.JobDetail;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.JobKey;
+import org.quartz.SchedulerException;
+import org.quartz.Trigger;
+import org.quartz.TriggerBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import enterpriseapp.EnterpriseApplication;
+import enterpriseapp.Utils;
+import enterpriseapp.hibernate.AuditLogArchive;
+import enterpriseapp.ui.Constants;
+
+/**
+ * Quartz job that moves the audit logs older than "app.audit.archiveAfterDays" days to monthly archive tables (see
+ * AuditLogArchive) on a daily basis.
+ * 
+ * @author Alejandro Duarte
+ *
+ */
+public class AuditLogArchiverJob implements Job {
+	
+	private static Logger logger = LoggerFactory.getLogger(AuditLogArchiverJob.class);
+
+	@Override
+	public void execute(JobExecutionContext context) throws JobExecutionException {
+		try {
+			Calendar before = Calendar.getInstance();
+			before.add(Calendar.DAY_OF_MONTH, -Constants.appAuditArchiveAfterDays());
+			
+			int archived = AuditLogArchive.archive(before.getTime(), Constants.appAuditArchiveBatchSize());
+			logger.info(archived + " audit logs archived.");
+			
+		} catch (Exception e) {
+			logger.error("Error archiving audit logs.", e);
+			
+		} finally {
+			scheduleAuditLogArchiverJob();
+		}
+	}
+
+	/**
+	 * Schedules next job execution.
+	 * @throws UnsupportedOperationException if archive tables can't be created in the database (see
+	 * AuditLogArchive.isSupported).
+	 */
+	public static void scheduleAuditLogArchiverJob() {
+		if(!AuditLogArchive.isSupported()) {
+			throw new UnsupportedOperationException("Audit log archiving (app.audit.archive) is not supported by the database dialect");
+		}
+		
+		try {
+			Calendar calendar = Calendar.getInstance();
+			calendar.set(Calendar.MILLISECOND, 0);
+			calendar.set(Calendar.SECOND, 0);
+			calendar.set(Calendar.MINUTE, 0);
+			calendar.set(Calendar.HOUR_OF_DAY, Constants.appAuditArchiveHour());
+			
+			if(!calendar.getTime().after(new Date())) {
+				calendar.add(Calendar.DAY_OF_MONTH, 1);
+			}
+			
+			JobKey jobKey = new JobKey("AuditLogArchiverJob " + calendar.getTime().toString());
+			JobDetail job = JobBuilder.newJob(AuditLogArchiverJob.class).withIdentity(jobKey).build();
+			Trigger trigger = TriggerBuilder.newTrigger().startAt(calendar.getTime()).build();
+			EnterpriseApplication.getScheduler().scheduleJob(job, trigger);
+			
+			logger.info("AuditLogArchiverJob scheduled at " + Utils.dateToString(calendar.getTime(), Utils.getAlternateDateTimeFormatPattern()));
+			
+		} catch (SchedulerException e) {
+			logger.error("Error scheduling AuditLogArchiverJob.", e);
+		}
+	}
+	
+}
@@ -20,6 +20,22 @@ public abstract class Constants {
 	public static final String dbPoolValidationQuery() { return Utils.getProperty("db.pool.validationQuery"); }
 	public static final String dbInterceptor() { return Utils.getProperty("db.interceptor"); }
 	public static final String dbMappingFiles() { return Utils.getProperty("db.mappingFiles"); }
+	public static final int dbJdbcBatchSize() { return new Integer(Utils.getProperty("db.jdbc.batch_size", "50")); }
+	public static final int dbBackupThreads() { return new Integer(Utils.getProperty("db.backup.threads", "4")); }
+	public static final int dbBackupChunkSize() { return new Integer(Utils.getProperty("db.backup.chunkSize", "4194304")); }
+	public static final int dbBackupIncrementalOverlap() { return new Integer(Utils.getProperty("db.backup.incrementalOverlap", "300")); }
+	public static final String dbReplicas() { return Utils.getProperty("db.replicas"); }
+	public static final boolean dbReportsOnReplica() { return new Boolean(Utils.getProperty("db.reportsOnReplica", "false")); }
+	public static final boolean dbLazyTransactions() { return new Boolean(Utils.getProperty("db.lazyTransactions", "false")); }
+	
+	public static final int containerRowBufferSize() { return new Integer(Utils.getProperty("container.rowBufferSize", "100")); }
+	public static final int containerIdToIndexMaxSize() { return new Integer(Utils.getProperty("container.idToIndexMaxSize", "300")); }
+	public static final long containerCacheMaximumSize() { return new Long(Utils.getProperty("container.cache.maximumSize", "10000")); }
+	public static final long containerCacheMaximumWeight() { return new Long(Utils.getProperty("container.cache.maximumWeight", "0")); }
+	public static final String containerCacheExpiry() { return Utils.getProperty("container.cache.expiry", "access"); }
+	public static final long containerCacheExpirySeconds() { return new Long(Utils.getProperty("container.cache.expirySeconds", "120")); }
+	public static final String containerCacheValues() { return Utils.getProperty("container.cache.values", "weak"); }
+	public static final boolean containerFactoryPooled() { return new Boolean(Utils.getProperty("container.factory.pooled", "false")); }
 	
 	public static final String mailSmtpHost = Utils.getProperty("mail.smtp.host");
 	public static final String mailSmtpPort = Utils.getProperty("mail.smtp.port");
@@ -30,6 +46,20 @@ public abstract class Constants {
 	
 	public static final boolean appCollectLogFiles = new Boolean(Utils.getProperty("app.collectLogFiles"));
 	public static final String appLogBasedAuditFormat = Utils.getProperty("app.logBasedAuditFormat");
+	public static final boolean appAuditAsync() { return new Boolean(Utils.getProperty("app.audit.async", "false")); }
+	public static final int appAuditQueueSize() { return new Integer(Utils.getProperty("app.audit.queueSize", "10000")); }
+	public static final int appAuditBatchSize() { return new Integer(Utils.getProperty("app.audit.batchSize", "100")); }
+	public static final long appAuditFlushInterval() { return new Long(Utils.getProperty("app.audit.flushInterval", "1000")); }
+	public static final long appAuditOfferTimeout() { return new Long(Utils.getProperty("app.audit.offerTimeout", "100")); }
+	public static final boolean appAuditDiffOnly() { return new Boolean(Utils.getProperty("app.audit.diffOnly", "false")); }
+	public static final int appAuditMaxValueLength() { return new Integer(Utils.getProperty("app.audit.maxValueLength", "0")); }
+	public static final boolean appAuditExcludeDownloadable() { return new Boolean(Utils.getProperty("app.audit.excludeDownloadable", "false")); }
+	public static final boolean appAuditArchive() { return new Boolean(Utils.getProperty("app.audit.archive", "false")); }
+	public static final int appAuditArchiveAfterDays() { return new Integer(Utils.getProperty("app.audit.archiveAfterDays", "90")); }
+	public static final int appAuditArchiveBatchSize() { return new Integer(Utils.getProperty("app.audit.archiveBatchSize", "1000")); }
+	public static final int appAuditArchiveHour() { return new Integer(Utils.getProperty("app.audit.archiveHour", "3")); }
+	public static final int appAuditArchiveSearchMaxResults() { return new Integer(Utils.getProperty("app.audit.archiveSearchMaxResults", "1000")); }
+	public static final String appAuditSpillFile() { return Utils.getProperty("app.audit.spillFile", System.getProperty("java.io.tmpdir") + "/audit-spill.dat"); }
 	
 	public static final String reportPageWidth = Utils.getProperty("report.pageWidth", "215.9");
 	public static final String reportPageHeight = Utils.getProperty("report.pageHeight", "279.4");
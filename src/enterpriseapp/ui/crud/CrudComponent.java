@@ -75,6 +75,7 @@ public class CrudComponent<T extends Dto> extends CustomComponent {
 	protected HorizontalLayout navigatorLayout;
 	protected AbstractSplitPanel split;
 	protected int filterLayoutRows;
+	protected List<T> importedEntities;
 	
 	/**
 	 * Creates a new instance using a default configuration.
@@ -352,6 +353,16 @@ public class CrudComponent<T extends Dto> extends CustomComponent {
 	 * @param dto Dto to save or update.
 	 */
 	public void saveOrUpdate(T dto) {
+		if(importedEntities != null) {
+			importedEntities.add(dto);
+			
+			if(importedEntities.size() >= Constants.dbJdbcBatchSize()) {
+				saveImportedEntities();
+			}
+			
+			return;
+		}
+		
 		getContainer().addItem(dto);
 		table.updateTable();
 		HashSet<Object> set = new HashSet<Object>();
@@ -710,7 +721,32 @@ public class CrudComponent<T extends Dto> extends CustomComponent {
 	}
 	
 	/**
-	 * Imports data from string.
+	 * Saves the entities imported since the last call (see importFromClipboard). Hibernate containers save them in JDBC
+	 * batches (see DefaultHbnContainer.saveAll).
+	 */
+	@SuppressWarnings("unchecked")
+	protected void saveImportedEntities() {
+		if(importedEntities.isEmpty()) {
+			return;
+		}
+		
+		try {
+			if(getContainer() instanceof DefaultHbnContainer) {
+				((DefaultHbnContainer<T>) getContainer()).saveAll(importedEntities);
+				
+			} else {
+				for(T dto : importedEntities) {
+					getContainer().addItem(dto);
+				}
+			}
+		} finally {
+			importedEntities.clear();
+		}
+	}
+	
+	/**
+	 * Imports data from string. Entities are saved in batches of "db.jdbc.batch_size" entities; entities imported
+	 * before a line with errors are saved.
 	 * @param clipboardContent One register per line. Tab delimited values for properties.
 	 */
 	public void importFromClipboard(String clipboardContent, boolean showNotification) {
@@ -718,6 +754,36 @@ public class CrudComponent<T extends Dto> extends CustomComponent {
 			return;
 		}
 		
+		importedEntities = new ArrayList<T>();
+		
+		try {
+			showNotification &= importLines(clipboardContent);
+			
+		} finally {
+			try {
+				saveImportedEntities();
+				
+			} catch (Exception e) {
+				logger.error("Error saving imported values." , e);
+				Notification.show(Constants.uiError, Constants.uiImportFailed + ".", Notification.TYPE_ERROR_MESSAGE);
+				showNotification = false;
+				
+			} finally {
+				importedEntities = null;
+				table.updateTable();
+			}
+		}
+		
+		if(showNotification) {
+			Notification.show(Constants.uiSaved);
+		}
+	}
+	
+	/**
+	 * Imports each line using the form (see importFromClipboard).
+	 * @return true if all the lines were imported.
+	 */
+	protected boolean importLines(String clipboardContent) {
 		int shownImportPropertiesCount = getShownImportPropertiesCount(type.getSimpleName());
 		List<Object> properties = getImportProperties();
 		int lineNumber = 0;
@@ -732,7 +798,7 @@ public class CrudComponent<T extends Dto> extends CustomComponent {
 					
 					if(values.length != shownImportPropertiesCount) {
 						Notification.show(Constants.uiError, Constants.uiImportFailedWrongColumnCount + " " + lineNumber + " (" + line + ").", Notification.TYPE_ERROR_MESSAGE);
-						return;
+						return false;
 					}
 					
 					listener.formNewButtonClicked();
@@ -774,17 +840,15 @@ public class CrudComponent<T extends Dto> extends CustomComponent {
 				}
 			} catch (InvalidValueException e) {
 				Notification.show(Constants.uiError, Constants.uiImportFailed + " " + lineNumber + " (" + line + ")" + (e.getMessage() == null ? "." : ": " + e.getMessage()), Notification.TYPE_ERROR_MESSAGE);
-				return;
+				return false;
 			} catch (Exception e) {
 				logger.error("Error processing value to import." , e);
 				Notification.show(Constants.uiError, Constants.uiImportFailed + " " + lineNumber + " (" + line + ").", Notification.TYPE_ERROR_MESSAGE);
-				return;
+				return false;
 			}
 		}
 		
-		if(showNotification) {
-			Notification.show(Constants.uiSaved);
-		}
+		return true;
 	}
 	
 	/**
@@ -795,12 +859,12 @@ public class CrudComponent<T extends Dto> extends CustomComponent {
 	}
 	
 	/**
-	 * Returns a new Container instance, using the ContainerFactory.
-	 * @return a new instance of the container.
+	 * Returns a new Container instance, using the ContainerFactory (see ContainerFactory.getSessionContainer(Class)).
+	 * @return a new instance of the container, or the container reused in the current session if containers are pooled.
 	 */
 	public Container getNewInstanceOfContainer() {
 		if(isHbnContainer) {
-			return ContainerFactory.getInstance().getContainer(type);
+			return ContainerFactory.getInstance().getSessionContainer(type);
 		}
 		
 		return container;
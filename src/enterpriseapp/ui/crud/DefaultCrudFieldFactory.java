@@ -217,7 +217,7 @@ public class DefaultCrudFieldFactory extends DefaultFieldFactory {
 				Dto dto = (Dto) bean;
 				
 				if(dto.getId() != null) {
-					bean = (Dto) ContainerFactory.getInstance().getContainer(bean.getClass()).getEntity((Serializable) dto.getId());
+					bean = (Dto) ContainerFactory.getInstance().getSessionContainer(bean.getClass()).getEntity((Serializable) dto.getId());
 				}
 				
 				String getterName;
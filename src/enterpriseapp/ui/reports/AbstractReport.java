@@ -26,6 +26,7 @@ import net.sf.jasperreports.engine.export.ooxml.JRPptxExporter;
 import net.sf.jasperreports.engine.export.ooxml.JRXlsxExporter;
 import net.sf.jasperreports.j2ee.servlets.ImageServlet;
 
+import org.hibernate.Session;
 import org.vaadin.hene.popupbutton.PopupButton;
 
 import ar.com.fdvs.dj.core.DynamicJasperHelper;
@@ -67,6 +68,7 @@ import com.vaadin.ui.themes.BaseTheme;
 
 import enterpriseapp.EnterpriseApplication;
 import enterpriseapp.Utils;
+import enterpriseapp.hibernate.Db;
 import enterpriseapp.ui.Constants;
 
 /**
@@ -145,6 +147,14 @@ public abstract class AbstractReport extends CustomComponent implements ClickLis
 	 */
 	public abstract Collection<?> getData();
 	
+	/**
+	 * @return Session to use in getData(). If the "db.reportsOnReplica" property is true, returns a session of a read
+	 * replica (see Db.getReadSession()).
+	 */
+	protected Session getSession() {
+		return Constants.dbReportsOnReplica() ? Db.getReadSession() : Db.getCurrentSession();
+	}
+	
 	/**
 	 * @return A custom component to add to the accordion component. You can use it to add custom filtering or configuration
 	 * to the report. Return null if no component is needed.
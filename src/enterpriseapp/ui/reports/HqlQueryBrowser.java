@@ -224,7 +224,7 @@ public class HqlQueryBrowser extends CustomComponent implements ClickListener, I
 	protected void executeQuery() {
 		try {
 			if(queryTextArea.getValue() != null && !queryTextArea.getValue().toString().trim().isEmpty()) {
-				Query query = Db.getCurrentSession().createQuery(queryTextArea.getValue().toString());
+				Query query = (Constants.dbReportsOnReplica() ? Db.getReadSession() : Db.getCurrentSession()).createQuery(queryTextArea.getValue().toString());
 				query.setResultTransformer(AliasToEntityMapResultTransformer.INSTANCE);
 				setQueryParams(query);
 				